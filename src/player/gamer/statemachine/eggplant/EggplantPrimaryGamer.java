@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import player.gamer.statemachine.StateMachineGamer;
+import player.gamer.statemachine.eggplant.completesearch.FactoredSearch;
 import player.gamer.statemachine.eggplant.expansion.DepthLimitedExpansionEvaluator;
 import player.gamer.statemachine.eggplant.expansion.ExpansionEvaluator;
 import player.gamer.statemachine.eggplant.heuristic.Heuristic;
@@ -16,6 +17,7 @@ import player.gamer.statemachine.eggplant.heuristic.PropNetAnalyticsHeuristic;
 import player.gamer.statemachine.eggplant.metagaming.EndgameBook;
 import player.gamer.statemachine.eggplant.metagaming.OpeningBook;
 import player.gamer.statemachine.eggplant.misc.CacheValue;
+import player.gamer.statemachine.eggplant.misc.JointMoveIterator;
 import player.gamer.statemachine.eggplant.misc.Log;
 import player.gamer.statemachine.eggplant.misc.StateMachineFactory;
 import player.gamer.statemachine.eggplant.misc.TimeUpException;
@@ -45,6 +47,8 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 	protected EggplantConfigPanel config = new EggplantConfigPanel();
 	protected ExpansionEvaluator expansionEvaluator;
 	protected Heuristic heuristic;
+	/** Set while playing a factored machine, whose subgames are searched separately */
+	protected FactoredSearch factoredSearch;
 	protected OpeningBook openingBook;
 	protected EndgameBook endBook;
 	protected int maxSearchDepth;
@@ -68,6 +72,8 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 	private final float PRINCIPAL_MOVE_DEPTH_FACTOR = 0.1f;
 	private final float DEPTH_INITIAL_OFFSET = 0.5f;
 	private List<String> timeLog = new ArrayList<String>();
+	/** Joint move cursors of alphaBeta, one per depth */
+	private final JointMoveIterator.Pool jointMoveIterators = new JointMoveIterator.Pool();
 	// private final String testers = "mop";
 	/*
 	 * Heuristic testing codes m - Monte Carlo o - Opponent mobility p - Player
@@ -177,12 +183,17 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 		// endBook.buildEndgameBook(machine, state, role, 6, 4, 8, start +
 		// (timeout - start) / 2);
 		heuristic = getHeuristic();
+		factoredSearch = getFactoredSearch(machine, role);
 
 		bestWorkingMove = new ValuedMove(-2, machine.getRandomMove(state, role));
 		Log.println('y', "Beginning metagame evaluation with machine " + machine);
 		while (true) {
 			try {
 				try {
+					if (factoredSearch != null) {
+						factoredSearch.search(state, timeout - GRACE_PERIOD);
+						break;
+					}
 					Log.println('i', "Beginning heuristic update");
 					heuristic.update(machine, state, role, minGoal - 1, maxGoal + 1,
 							0, rootDepth);
@@ -212,6 +223,7 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 				
 				findGoalBounds(machine, role);
 				heuristic = getHeuristic();
+				factoredSearch = getFactoredSearch(machine, role);
 				Log.println('y', "End switching to " + newMachine);
 			}
 		}
@@ -244,11 +256,16 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 					
 					Log.println('i', "State on turn " + rootDepth + " : " + state.getContents());
 					try {
-						heuristic.update(machine, state, role, minGoal - 1, maxGoal + 1,
-								0, rootDepth);
-						iterativeDeepening(machine, state, role, minGoal - 1, maxGoal + 1,
-								machine.getLegalMoves(state, role).size() == 1, timeout
-										- GRACE_PERIOD);
+						if (factoredSearch != null) {
+							bestWorkingMove = factoredSearch.search(state, timeout - GRACE_PERIOD);
+						}
+						else {
+							heuristic.update(machine, state, role, minGoal - 1, maxGoal + 1,
+									0, rootDepth);
+							iterativeDeepening(machine, state, role, minGoal - 1, maxGoal + 1,
+									machine.getLegalMoves(state, role).size() == 1, timeout
+											- GRACE_PERIOD);
+						}
 					} catch (Throwable ex) {
 						if (ex instanceof UpdateMachineException) {
 							throw (UpdateMachineException)ex;
@@ -272,6 +289,7 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 						
 						findGoalBounds(machine, role);
 						heuristic = getHeuristic();
+						factoredSearch = getFactoredSearch(machine, role);
 					}
 				}
 			}
@@ -514,14 +532,14 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 		ValuedMove maxMove = new ValuedMove(-3, null);
 		for (Move move : possibleMoves) {
 //DEBUG		Log.println('a', "Considering move " + move + " at depth " + actualDepth);
-			List<List<Move>> jointMoves = machine.getLegalJointMoves(state,
-					role, move);
+			JointMoveIterator jointMoves = jointMoveIterators.get(actualDepth);
+			jointMoves.reset(machine, state, role, move);
 			int minValue = maxGoal + 1;
 			int minDepth = rootDepth + actualDepth;
 			int newBeta = beta;
-			for (List<Move> jointMove : jointMoves) {
-				MachineState nextState = machine.getNextState(state, jointMove);
-//DEBUG			Log.println('a', "Considering joint move " + jointMove + " with state = " + nextState);
+			while (jointMoves.hasNext()) {
+				MachineState nextState = jointMoves.next();
+//DEBUG			Log.println('a', "Considering joint move with state = " + nextState);
 				ValuedMove bestMove;
 				if (principalMoveFound) {
 //DEBUG				Log.println('d', "NUIDS : At offset " + pvDepthOffset + "; " + nextState);
@@ -560,6 +578,11 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 	
 	public void generateBooleanPropNetStateMachine() {
 		Log.println('y', "Threaded BPNSM compute started " + System.currentTimeMillis());
+		// A game played before can be played from its snapshot at once
+		CachedBooleanPropNetStateMachine snapshot = new CachedBooleanPropNetStateMachine(getRoleName());
+		if (snapshot.initializeFromSnapshot(getMatch().getDescription())) {
+			Log.println('y', "Snapshot BPNSM loaded " + System.currentTimeMillis());
+		}
 		CachedBooleanPropNetStateMachine bpnet = new CachedBooleanPropNetStateMachine(getRoleName());
 		bpnet.initialize(getMatch().getDescription());
 		Log.println('y', "Threaded BPNSM compute ended " + System.currentTimeMillis());
@@ -589,6 +612,17 @@ public class EggplantPrimaryGamer extends StateMachineGamer {
 				+ avgGoal);
 	}
 	
+	private FactoredSearch getFactoredSearch(StateMachine machine, Role role) {
+		if (StateMachineFactory.getCurrentMachineDescription() == StateMachineFactory.CACHED_BPNSM_FACTOR
+				&& machine instanceof BooleanPropNetStateMachine && ((BooleanPropNetStateMachine) machine).getFactors() != null
+				&& machine.getRoles().size() == 1) {
+			Log.println('h', "Searching factors separately");
+			((BooleanPropNetStateMachine) machine).initFactorOperators();
+			return new FactoredSearch((BooleanPropNetStateMachine) machine, role, minGoal, maxGoal, (int) avgGoal);
+		}
+		return null;
+	}
+
 	private Heuristic getHeuristic() {
 		
 		MobilityHeuristic mob = new MobilityHeuristic(MobilityType.ONE_STEP, numPlayers);
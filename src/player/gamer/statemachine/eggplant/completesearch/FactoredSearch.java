@@ -0,0 +1,192 @@
+package player.gamer.statemachine.eggplant.completesearch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import player.gamer.statemachine.eggplant.misc.CacheValue;
+import player.gamer.statemachine.eggplant.misc.Log;
+import player.gamer.statemachine.eggplant.misc.TimeUpException;
+import player.gamer.statemachine.eggplant.misc.ValuedMove;
+import util.statemachine.MachineState;
+import util.statemachine.Move;
+import util.statemachine.Role;
+import util.statemachine.StateMachine;
+import util.statemachine.exceptions.GoalDefinitionException;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+import util.statemachine.implementation.propnet.BooleanPropNetStateMachine;
+
+/**
+ * Searches the independent subgames of a factored single-player game one at
+ * a time. The game ends as soon as one of its subgames does and its goals
+ * are disjunctive, so a state is worth the best value reachable in any
+ * single subgame, and the move played is the best move of that subgame. The
+ * space searched is the sum of the subgames' spaces rather than their
+ * product.
+ *
+ * With opponents this no longer holds: an opponent can end the game sooner
+ * in another subgame, so the value of one subgame says little about the
+ * game. Such games are searched jointly instead.
+ *
+ * Each subgame is searched with iterative deepening alpha-beta. Subgame
+ * states searched to the end keep their value between turns, so a subgame
+ * the player did not move in is not searched again.
+ */
+public class FactoredSearch {
+	private final BooleanPropNetStateMachine machine;
+	private final BooleanPropNetStateMachine[] factors;
+	private final Role role;
+	private final int minGoal;
+	private final int maxGoal;
+	/** Value of a non-terminal state at the depth limit */
+	private final int unknownValue;
+	/** Exact values of solved subgame states, one map per factor */
+	private final List<HashMap<MachineState, ValuedMove>> solved;
+	private int statesSearched;
+	/** Cleared when the current search reaches its depth limit */
+	private boolean complete;
+
+	/**
+	 * @param machine a single-player machine whose factor operators are built
+	 */
+	public FactoredSearch(BooleanPropNetStateMachine machine, Role role, int minGoal, int maxGoal, int unknownValue) {
+		if (machine.getRoles().size() != 1)
+			throw new IllegalArgumentException("Factored search needs a single-player game");
+		this.machine = machine;
+		this.factors = machine.getFactors();
+		this.role = role;
+		this.minGoal = minGoal;
+		this.maxGoal = maxGoal;
+		this.unknownValue = unknownValue;
+		this.solved = new ArrayList<HashMap<MachineState, ValuedMove>>();
+		for (int i = 0; i < factors.length; i++) {
+			solved.add(new HashMap<MachineState, ValuedMove>());
+		}
+	}
+
+	/**
+	 * Searches every subgame of state until endTime or until the best move
+	 * is known to win, and returns the best move found. The returned value is
+	 * marked terminal if it is exact.
+	 */
+	public ValuedMove search(MachineState state, long endTime) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+		MachineState[] factorStates = new MachineState[factors.length];
+		ValuedMove[] values = new ValuedMove[factors.length];
+		boolean[] exact = new boolean[factors.length];
+		for (int i = 0; i < factors.length; i++) {
+			factorStates[i] = machine.getFactorState(state, i);
+			ValuedMove known = solved.get(i).get(factorStates[i]);
+			if (known != null) {
+				values[i] = known;
+				exact[i] = true;
+			}
+		}
+		statesSearched = 0;
+		int depth = 1;
+		try {
+			for (;; depth++) {
+				boolean allExact = true;
+				for (int i = 0; i < factors.length; i++) {
+					if (exact[i]) {
+						continue;
+					}
+					complete = true;
+					values[i] = alphaBeta(factors[i], factorStates[i], minGoal - 1, maxGoal + 1, 0, depth,
+							new HashMap<MachineState, CacheValue>(), endTime);
+					if (complete) {
+						exact[i] = true;
+						solved.get(i).put(factorStates[i], values[i]);
+					} else {
+						allExact = false;
+					}
+				}
+				ValuedMove best = combine(values, exact);
+				Log.println('i', "Factored search depth " + depth + "; best = " + best + " searched " + statesSearched + " states");
+				if (allExact || (best.terminal && best.value == maxGoal)) {
+					return best;
+				}
+			}
+		} catch (TimeUpException ex) {
+			ValuedMove best = combine(values, exact);
+			Log.println('i', "Factored search interrupted at depth " + depth + "; best = " + best + " searched " + statesSearched + " states");
+			return best;
+		}
+	}
+
+	/**
+	 * Picks the best subgame move. Equal values go to the exact one, then to
+	 * the one decided soonest.
+	 */
+	private ValuedMove combine(ValuedMove[] values, boolean[] exact) {
+		ValuedMove best = new ValuedMove(-2, null);
+		for (int i = 0; i < values.length; i++) {
+			ValuedMove value = values[i];
+			if (value == null || value.move == null) {
+				continue;
+			}
+			boolean better = best.move == null || value.value > best.value;
+			if (!better && value.value == best.value) {
+				better = (exact[i] && !best.terminal) || (exact[i] == best.terminal && value.depth < best.depth);
+			}
+			if (better) {
+				best = new ValuedMove(value.value, value.move, value.depth, exact[i]);
+			}
+		}
+		return best;
+	}
+
+	private ValuedMove alphaBeta(StateMachine factor, MachineState state, int alpha, int beta, int depth, int maxDepth,
+			HashMap<MachineState, CacheValue> cache, long endTime) throws MoveDefinitionException, TransitionDefinitionException,
+			GoalDefinitionException, TimeUpException {
+		if (System.currentTimeMillis() > endTime)
+			throw new TimeUpException();
+		statesSearched++;
+
+		if (factor.isTerminal(state)) {
+			int goal = factor.getGoal(state, role);
+			return new ValuedMove(goal < 0 ? minGoal : goal, null, depth, true);
+		}
+		if (depth >= maxDepth) {
+			complete = false;
+			return new ValuedMove(unknownValue, null, depth, false);
+		}
+		CacheValue cached = cache.get(state);
+		if (cached != null && alpha >= cached.alpha && beta <= cached.beta) {
+			return cached.valuedMove;
+		}
+
+		int alphaIn = alpha;
+		ValuedMove maxMove = new ValuedMove(-3, null, depth);
+		for (Move move : factor.getLegalMoves(state, role)) {
+			int minValue = maxGoal + 1;
+			int minDepth = depth;
+			int newBeta = beta;
+			for (List<Move> jointMove : factor.getLegalJointMoves(state, role, move)) {
+				MachineState nextState = factor.getNextState(state, jointMove);
+				ValuedMove next = alphaBeta(factor, nextState, alpha, newBeta, depth + 1, maxDepth, cache, endTime);
+				if (next.value < minValue) {
+					minValue = next.value;
+					minDepth = next.depth;
+					if (minValue <= alpha)
+						break;
+					if (minValue < newBeta)
+						newBeta = minValue;
+				}
+			}
+			if (maxMove.value < minValue) {
+				maxMove.value = minValue;
+				maxMove.depth = minDepth;
+				maxMove.move = move;
+				if (maxMove.value >= beta)
+					break;
+				if (maxMove.value > alpha)
+					alpha = maxMove.value;
+			}
+		}
+		if (maxMove.move != null) {
+			cache.put(state, new CacheValue(maxMove, alphaIn, beta));
+		}
+		return maxMove;
+	}
+}
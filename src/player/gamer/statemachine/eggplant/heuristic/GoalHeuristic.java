@@ -13,21 +13,33 @@ import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.implementation.propnet.BooleanPropNetStateMachine;
 
 public class GoalHeuristic implements Heuristic {
-	private final float[][][] significance;
+	private static final int WORD_BITS = 64;
+
 	private final int[] goalValues;
 	private final int numGoals;
 	private final int numBaseProps;	
 	private final int maxGoal;
 	private final int minGoal;
+
+	/**
+	 * Significance of every goal with every base proposition false; setting
+	 * a base proposition adds its weight. Only the words of the packed state
+	 * holding a base proposition with a weight are listed for each goal, and
+	 * weights[goal] holds 64 entries per listed word, indexed by bit.
+	 */
+	private final float[] baseSignificance;
+	private final int[][] words;
+	private final long[][] masks;
+	private final float[][] weights;
 	
 	public GoalHeuristic(BooleanPropNetStateMachine machine, int role) {
 		float[][][][] significanceRef = new float[1][][][];
 		int[][] goalValuesRef = new int[1][];
 		machine.populateGoalHeuristicArrays(role, significanceRef, goalValuesRef);
-		this.significance = significanceRef[0];
+		float[][][] significance = significanceRef[0];
 		this.goalValues = goalValuesRef[0];
 		this.numGoals = this.goalValues.length;
-		this.numBaseProps = this.significance[0].length;
+		this.numBaseProps = significance[0].length;
 		
 		int minGoal = goalValues[0];
 		int maxGoal = goalValues[0];
@@ -74,6 +86,41 @@ public class GoalHeuristic implements Heuristic {
 		}
 		this.maxGoal = maxGoal;
 		this.minGoal = minGoal;
+
+		this.baseSignificance = new float[numGoals];
+		this.words = new int[numGoals][];
+		this.masks = new long[numGoals][];
+		this.weights = new float[numGoals][];
+		int numWords = BooleanMachineState.numWords(numBaseProps);
+		for (int goal = 0; goal < numGoals; goal++) {
+			long[] goalMasks = new long[numWords];
+			int usedWords = 0;
+			for (int baseProp = 0; baseProp < numBaseProps; baseProp++) {
+				baseSignificance[goal] += significance[goal][baseProp][1];
+				if (significance[goal][baseProp][0] != significance[goal][baseProp][1]) {
+					int word = baseProp / WORD_BITS;
+					if (goalMasks[word] == 0)
+						usedWords++;
+					goalMasks[word] |= 1L << (baseProp % WORD_BITS);
+				}
+			}
+			words[goal] = new int[usedWords];
+			masks[goal] = new long[usedWords];
+			weights[goal] = new float[usedWords * WORD_BITS];
+			int used = 0;
+			for (int word = 0; word < numWords; word++) {
+				if (goalMasks[word] == 0)
+					continue;
+				words[goal][used] = word;
+				masks[goal][used] = goalMasks[word];
+				for (int bit = 0; bit < WORD_BITS; bit++) {
+					int baseProp = word * WORD_BITS + bit;
+					if ((goalMasks[word] & (1L << bit)) != 0)
+						weights[goal][used * WORD_BITS + bit] = significance[goal][baseProp][0] - significance[goal][baseProp][1];
+				}
+				used++;
+			}
+		}
 	}
 	
 	@Override
@@ -81,14 +128,24 @@ public class GoalHeuristic implements Heuristic {
 			int alpha, int beta, int depth, int absDepth, long timeout)
 			throws MoveDefinitionException, TimeUpException {
 		if (machine instanceof BooleanPropNetStateMachine && state instanceof BooleanMachineState) {
-			boolean[] baseProps = ((BooleanMachineState)state).getBooleanContents();
+			long[] stateWords = ((BooleanMachineState)state).getPackedContents();
 			float[] goalSignificance = new float[numGoals];
 			float sum = 0;
 			for (int goal = 0; goal < numGoals; goal++) {
-				for (int baseProp = 0; baseProp < numBaseProps; baseProp++) {
-					goalSignificance[goal] += baseProps[baseProp] ? (significance[goal][baseProp][0]) : (significance[goal][baseProp][1]);
+				int[] goalWords = words[goal];
+				long[] goalMasks = masks[goal];
+				float[] goalWeights = weights[goal];
+				float significance = baseSignificance[goal];
+				// Only the set bits with a weight are visited
+				for (int i = 0; i < goalWords.length; i++) {
+					long bits = stateWords[goalWords[i]] & goalMasks[i];
+					while (bits != 0) {
+						significance += goalWeights[i * WORD_BITS + Long.numberOfTrailingZeros(bits)];
+						bits &= bits - 1;
+					}
 				}
-				sum += goalSignificance[goal];
+				goalSignificance[goal] = significance;
+				sum += significance;
 			}
 			// Calculated normalized weighted goal proximity
 			float goalProximity = 0;
@@ -65,14 +65,13 @@ public class LatchHeuristic implements Heuristic {
 	}
 	
 	public int eval(BooleanPropNetStateMachine machine, BooleanMachineState state) {
-		boolean[] baseProps = state.getBooleanContents();
 		int[] ar;
 		for (int latch : determiningLatches.keySet()) {
 			ar = determiningLatches.get(latch);
-			if (baseProps[latch] && ar[1] != 0) {
+			if (state.get(latch) && ar[1] != 0) {
 				return ~goals[ar[1]][1];
 			}
-			if (!baseProps[latch] && ar[0] != 0) {
+			if (!state.get(latch) && ar[0] != 0) {
 				return ~goals[ar[0]][1];
 			}
 		}
@@ -81,12 +80,12 @@ public class LatchHeuristic implements Heuristic {
 		boolean[] goalsPrevented = new boolean[goals.length];
 		for (int latch : preventingLatches.keySet()) {
 			ar = preventingLatches.get(latch);
-			if (baseProps[latch] && ar[1] != 0 && !goalsPrevented[ar[1]]) {
+			if (state.get(latch) && ar[1] != 0 && !goalsPrevented[ar[1]]) {
 				goalsPrevented[ar[1]] = true;
 				sum -= goals[ar[1]][1];
 				count--;
 			}
-			if (!baseProps[latch] && ar[0] != 0 && !goalsPrevented[ar[0]]) {
+			if (!state.get(latch) && ar[0] != 0 && !goalsPrevented[ar[0]]) {
 				goalsPrevented[ar[0]] = true;
 				sum -= goals[ar[0]][1];
 				count--;
@@ -105,14 +104,14 @@ public class LatchHeuristic implements Heuristic {
 			int alpha, int beta, int depth, int absDepth, long timeout)
 			throws MoveDefinitionException, TimeUpException {
 		if (machine instanceof BooleanPropNetStateMachine && state instanceof BooleanMachineState) {
-			boolean[] baseProps = ((BooleanMachineState) state).getBooleanContents();
+			BooleanMachineState baseProps = (BooleanMachineState) state;
 			int[] ar;
 			for (int latch : determiningLatches.keySet()) {
 				ar = determiningLatches.get(latch);
-				if (baseProps[latch] && ar[1] != 0) {
+				if (baseProps.get(latch) && ar[1] != 0) {
 					return goals[ar[1]][1];
 				}
-				if (!baseProps[latch] && ar[0] != 0) {
+				if (!baseProps.get(latch) && ar[0] != 0) {
 					return goals[ar[0]][1];
 				}
 			}
@@ -121,12 +120,12 @@ public class LatchHeuristic implements Heuristic {
 			boolean[] goalsPrevented = new boolean[goals.length];
 			for (int latch : preventingLatches.keySet()) {
 				ar = preventingLatches.get(latch);
-				if (baseProps[latch] && ar[1] != 0 && !goalsPrevented[ar[1]]) {
+				if (baseProps.get(latch) && ar[1] != 0 && !goalsPrevented[ar[1]]) {
 					goalsPrevented[ar[1]] = true;
 					sum -= goals[ar[1]][1];
 					count--;
 				}
-				if (!baseProps[latch] && ar[0] != 0 && !goalsPrevented[ar[0]]) {
+				if (!baseProps.get(latch) && ar[0] != 0 && !goalsPrevented[ar[0]]) {
 					goalsPrevented[ar[0]] = true;
 					sum -= goals[ar[0]][1];
 					count--;
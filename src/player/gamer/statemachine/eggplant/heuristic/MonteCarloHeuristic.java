@@ -9,6 +9,7 @@ import util.statemachine.exceptions.GoalDefinitionException;
 import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.exceptions.TransitionDefinitionException;
 import util.statemachine.implementation.propnet.BooleanPropNetStateMachine;
+import util.statemachine.implementation.propnet.PlayoutStatistics;
 
 public class MonteCarloHeuristic implements Heuristic {
 	private final int MIN_REASONABLE_TRIALS = 8;
@@ -71,17 +72,21 @@ public class MonteCarloHeuristic implements Heuristic {
 	@Override
 	public void update(StateMachine machine, MachineState state, Role role, int alpha, int beta, int depth, int absDepth) {
 		if (machine instanceof BooleanPropNetStateMachine) {
+			BooleanPropNetStateMachine bpnsm = (BooleanPropNetStateMachine) machine;
+			// Probes are timed in batches so that batched playouts are credited
+			int batchSize = bpnsm.getMonteCarloBatchSize();
 			int totalDepth = 0;
 			int[] probeDepth = new int[1];
 			long startTime = System.currentTimeMillis();
-			for (int i = 0; i < testProbes; i++) {
-				((BooleanPropNetStateMachine) machine).monteCarlo(state, probeDepth);
+			for (int i = 0; i < testProbes; i += batchSize) {
+				int probes = Math.min(batchSize, testProbes - i);
+				bpnsm.monteCarloBatch(state, probes, probeDepth);
 				totalDepth += probeDepth[0];
 				long curTime = System.currentTimeMillis() - startTime - 1;
 				if (curTime > 0) {
-					if (targetTime*i/(float)curTime < MIN_REASONABLE_TRIALS) {
+					if (targetTime*(i+probes-1)/(float)curTime < MIN_REASONABLE_TRIALS) {
 						numTrials = 0;
-						Log.println('j', "Monte Carlo Disabled after " + (i+1) + " probes; time taken " + curTime + " ms" );
+						Log.println('j', "Monte Carlo Disabled after " + (i+probes) + " probes; time taken " + curTime + " ms" );
 						return;
 					}
 				}
@@ -89,6 +94,15 @@ public class MonteCarloHeuristic implements Heuristic {
 			long endTime = System.currentTimeMillis();
 			float avgDepth = totalDepth / (float) testProbes;
 			float totalTime = (endTime - startTime);
+			if (bpnsm.isParallelMonteCarlo()) {
+				// eval runs its trials on every core, so time them that way
+				PlayoutStatistics statistics = bpnsm.newPlayoutStatistics(1);
+				int[] stats = new int[statistics.size()];
+				startTime = System.currentTimeMillis();
+				bpnsm.playoutStatistics(state, testProbes, statistics, stats);
+				totalTime = System.currentTimeMillis() - startTime + 1;
+				avgDepth = statistics.getAverageDepth(stats);
+			}
 			
 			numTrials = Math.round(testProbes/totalTime * targetTime); //TODO: find more intelligent function
 			weight = numTrials/avgDepth;
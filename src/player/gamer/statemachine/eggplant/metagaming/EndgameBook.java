@@ -7,6 +7,7 @@ import player.gamer.statemachine.eggplant.heuristic.MobilityHeuristic;
 import player.gamer.statemachine.eggplant.heuristic.MobilityType;
 import player.gamer.statemachine.eggplant.misc.CacheValue;
 import player.gamer.statemachine.eggplant.misc.DepthLimitException;
+import player.gamer.statemachine.eggplant.misc.JointMoveIterator;
 import player.gamer.statemachine.eggplant.misc.Log;
 import player.gamer.statemachine.eggplant.misc.TimeUpException;
 import player.gamer.statemachine.eggplant.misc.ValuedMove;
@@ -21,6 +22,8 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 public class EndgameBook {
   public HashMap<MachineState, CacheValue> book;
   private MobilityHeuristic heuristic;
+  /** Joint move cursors of alphaBeta, one per remaining depth */
+  private final JointMoveIterator.Pool jointMoveIterators = new JointMoveIterator.Pool();
 
   public EndgameBook(int numPlayers) {
     book = new HashMap<MachineState, CacheValue>();
@@ -127,11 +130,12 @@ public class EndgameBook {
     List<Move> possibleMoves = machine.getLegalMoves(state, role);
     heuristic.update(machine, state, role, alpha, beta, 0, 0);
     for (Move move : possibleMoves) {
-      List<List<Move>> jointMoves = machine.getLegalJointMoves(state, role, move);
+      JointMoveIterator jointMoves = jointMoveIterators.get(depthLimit);
+      jointMoves.reset(machine, state, role, move);
       int min = 100;
       int newBeta = beta;
-      for (List<Move> jointMove : jointMoves) {
-        MachineState nextState = machine.getNextState(state, jointMove);
+      while (jointMoves.hasNext()) {
+        MachineState nextState = jointMoves.next();
         int value = cachingAlphaBeta(machine, nextState, role, alpha, newBeta, cache, depthLimit - 1, endTime).value;
         if (value < min) {
           min = value;
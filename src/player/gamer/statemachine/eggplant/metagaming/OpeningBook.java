@@ -5,6 +5,7 @@ import java.util.List;
 
 import player.gamer.statemachine.eggplant.heuristic.Heuristic;
 import player.gamer.statemachine.eggplant.heuristic.MonteCarloHeuristic;
+import player.gamer.statemachine.eggplant.misc.JointMoveIterator;
 import player.gamer.statemachine.eggplant.misc.Log;
 import player.gamer.statemachine.eggplant.misc.TimeUpException;
 import player.gamer.statemachine.eggplant.misc.ValuedMove;
@@ -24,6 +25,8 @@ public class OpeningBook {
 	private StateMachine startMachine;
 	private MachineState startState;
 	private Role role;
+	/** Joint move cursors of miniMax, one per depth */
+	private final JointMoveIterator.Pool jointMoveIterators = new JointMoveIterator.Pool();
 	
 	public OpeningBook(StateMachine startMachine, MachineState startState, Role role) {
 		this.startMachine = startMachine;
@@ -85,10 +88,11 @@ public class OpeningBook {
 		heuristic.update(machine, state, role, 0, 100, depth, 0);
 
 		for (Move move : possibleMoves) {
-			List<List<Move>> jointMoves = machine.getLegalJointMoves(state, role, move);
+			JointMoveIterator jointMoves = jointMoveIterators.get(depth);
+			jointMoves.reset(machine, state, role, move);
 			int min = 100;
-			for (List<Move> jointMove : jointMoves) {
-				MachineState nextState = machine.getNextState(state, jointMove);
+			while (jointMoves.hasNext()) {
+				MachineState nextState = jointMoves.next();
 				int value = memoizedMiniMax(machine, nextState, role, depth + 1, maxDepth, cache, endTime).value;
 				if (value < min) min = value;
 			}
@@ -0,0 +1,146 @@
+package player.gamer.statemachine.eggplant.misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import util.statemachine.MachineState;
+import util.statemachine.Move;
+import util.statemachine.Role;
+import util.statemachine.StateMachine;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+import util.statemachine.implementation.propnet.BooleanPropNetStateMachine;
+
+/**
+ * Cursor over the joint moves in which one role plays a given move, in the
+ * order of getLegalJointMoves. The joint moves are counted through one at a
+ * time rather than built up front, so a search that cuts off after a few of
+ * them pays for no more.
+ *
+ * On a BooleanPropNetStateMachine the legal moves of every role are gathered
+ * as input propositions with one propagation, and each joint move is written
+ * into the same int[]. Other machines get a fresh Move list per joint move.
+ *
+ * An iterator is reset for every state searched, so a search keeps one per
+ * depth in a Pool.
+ */
+public class JointMoveIterator {
+	private StateMachine machine;
+	/** The machine, if it takes joint moves as input propositions */
+	private BooleanPropNetStateMachine booleanMachine;
+	private MachineState state;
+	private int numRoles;
+
+	/** Legal input propositions of every role, and their number */
+	private int[][] inputs;
+	private int[] counts;
+	private int[] jointMove;
+
+	/** Legal moves of every role, for other machines */
+	private List<List<Move>> moves;
+
+	/** Legal index of every role in the next joint move */
+	private int[] cursor;
+	private boolean hasNext;
+
+	/**
+	 * Starts over on the joint moves of state in which role plays move.
+	 */
+	public void reset(StateMachine machine, MachineState state, Role role, Move move) throws MoveDefinitionException {
+		if (machine != this.machine) {
+			setMachine(machine);
+		}
+		this.state = state;
+		if (booleanMachine != null) {
+			int roleIndex = booleanMachine.getRoleIndex(role);
+			booleanMachine.getAllLegalInputs(state, inputs, counts);
+			int input = booleanMachine.getInput(roleIndex, move);
+			if (input < 0)
+				throw new MoveDefinitionException(state, role);
+			inputs[roleIndex][0] = input;
+			counts[roleIndex] = 1;
+		} else {
+			List<Role> roles = machine.getRoles();
+			for (int r = 0; r < numRoles; r++) {
+				Role other = roles.get(r);
+				moves.set(r, other.equals(role) ? Collections.singletonList(move) : machine.getLegalMoves(state, other));
+				counts[r] = moves.get(r).size();
+			}
+		}
+		hasNext = true;
+		for (int r = 0; r < numRoles; r++) {
+			cursor[r] = 0;
+			if (counts[r] == 0)
+				hasNext = false;
+		}
+	}
+
+	private void setMachine(StateMachine machine) {
+		this.machine = machine;
+		this.numRoles = machine.getRoles().size();
+		this.counts = new int[numRoles];
+		this.cursor = new int[numRoles];
+		if (machine instanceof BooleanPropNetStateMachine) {
+			booleanMachine = (BooleanPropNetStateMachine) machine;
+			inputs = new int[numRoles][];
+			for (int r = 0; r < numRoles; r++) {
+				inputs[r] = new int[Math.max(1, booleanMachine.getNumLegals(r))];
+			}
+			jointMove = new int[numRoles];
+			moves = null;
+		} else {
+			booleanMachine = null;
+			inputs = null;
+			jointMove = null;
+			moves = new ArrayList<List<Move>>(Collections.<List<Move>>nCopies(numRoles, null));
+		}
+	}
+
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	/**
+	 * The state reached by the next joint move.
+	 */
+	public MachineState next() throws TransitionDefinitionException {
+		MachineState next;
+		if (booleanMachine != null) {
+			for (int r = 0; r < numRoles; r++) {
+				jointMove[r] = inputs[r][cursor[r]];
+			}
+			next = booleanMachine.getNextState(state, jointMove);
+		} else {
+			List<Move> joint = new ArrayList<Move>(numRoles);
+			for (int r = 0; r < numRoles; r++) {
+				joint.add(moves.get(r).get(cursor[r]));
+			}
+			next = machine.getNextState(state, joint);
+		}
+		// The last role's moves change fastest
+		hasNext = false;
+		for (int r = numRoles - 1; r >= 0; r--) {
+			if (++cursor[r] < counts[r]) {
+				hasNext = true;
+				break;
+			}
+			cursor[r] = 0;
+		}
+		return next;
+	}
+
+	/**
+	 * One iterator per search depth, reused from one search to the next.
+	 */
+	public static class Pool {
+		private final List<JointMoveIterator> iterators = new ArrayList<JointMoveIterator>();
+
+		public JointMoveIterator get(int depth) {
+			while (iterators.size() <= depth) {
+				iterators.add(new JointMoveIterator());
+			}
+			return iterators.get(depth);
+		}
+	}
+}
@@ -13,6 +13,8 @@ public class StateMachineFactory {
 	public static final int CACHED_BPNSM_FACTOR = 0;
 	public static final int CACHED_BPNSM_NATIVE = 10;
 	public static final int CACHED_BPNSM_JAVASSIST = 20;
+	public static final int CACHED_BPNSM_INTERPRETED = 25;
+	public static final int CACHED_BPNSM_SNAPSHOT = 27;
 	public static final int CACHED_PROVER = 30;
 	
 	private static class PrioritizedStateMachine implements Comparable<PrioritizedStateMachine>{
@@ -32,6 +34,12 @@ public class StateMachineFactory {
 
 	/** Reset MUST be called between games! */
 	public static void reset() {
+		// The machines of the last game hold native state the collector won't free
+		for (PrioritizedStateMachine previous : pq) {
+			if (previous.machine instanceof BooleanPropNetStateMachine) {
+				((BooleanPropNetStateMachine) previous.machine).disposeNativeOperator();
+			}
+		}
 		pq.clear();
 		pq.add(new PrioritizedStateMachine(CACHED_PROVER, new CachedProverStateMachine()));
 	}
@@ -55,6 +63,10 @@ public class StateMachineFactory {
 			PrioritizedStateMachine poppedMachine = pq.poll();
 			if (poppedMachine.priority == CACHED_BPNSM_NATIVE) {
 				((BooleanPropNetStateMachine) poppedMachine.machine).setOperator(true);
+				((BooleanPropNetStateMachine) poppedMachine.machine).disposeNativeOperator();
+			}
+			else if (poppedMachine.priority == CACHED_BPNSM_JAVASSIST) {
+				((BooleanPropNetStateMachine) poppedMachine.machine).setInterpretedOperator();
 			}
 			Log.println('y', "Popped: " + poppedMachine);
 		} catch (Exception ex) {
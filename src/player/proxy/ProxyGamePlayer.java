@@ -92,7 +92,6 @@ public final class ProxyGamePlayer extends Thread implements Subject
 	        processArgs.add(command);
 	        processArgs.add("-mx" + GamerConfiguration.getMemoryForGamer() + "m");
 	        processArgs.add("-server");
-	        processArgs.add("-XX:-DontCompileHugeMethods");
 	        processArgs.add("-XX:MinHeapFreeRatio=10");
 	        processArgs.add("-XX:MaxHeapFreeRatio=10");
 	        
@@ -5,11 +5,13 @@ import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -109,6 +111,11 @@ public final class BooleanPropNet {
 	private final int internalPropStart;
 	/** A reference to the single, unique, TerminalProposition. */
 	private final int terminalIndex;
+	/**
+	 * Dependency level of every internal proposition, 0 for the others.
+	 * Internal propositions are indexed in level order.
+	 */
+	private final int[] propLevels;
 	
 	public static final int GOAL_SCALE_FACTOR = 1000;
 
@@ -136,73 +143,8 @@ public final class BooleanPropNet {
 		Map<Role, Set<Proposition>> tempLegalPropositions = new HashMap<Role, Set<Proposition>>();
 		Map<Role, Set<Proposition>> tempGoalPropositions = new HashMap<Role, Set<Proposition>>();
 		
-		int numFiltered, totalNumFiltered = 0;
 		Set<Component> filteredComponents = new HashSet<Component>(components);
-
-		boolean hasFiltered;
-		
-		do {
-			hasFiltered = false;
-
-			Log.println('t', "Beginning filtering iteration");
-
-//			try {
-				totalNumFiltered += numFiltered = condenseIdenticalOutputs(components, filteredComponents);
-				Log.println('t', "Filtered " + numFiltered + " identical outputs");
-				if (numFiltered > 0) {
-					hasFiltered = true;
-					components = new HashSet<Component>(filteredComponents);
-				}
-//			} catch (Exception ex) {
-//				ex.printStackTrace();
-//			}
-
-//			try {
-				totalNumFiltered += numFiltered = condenseSingleAndOr(components, filteredComponents);
-				Log.println('t', "Filtered " + numFiltered + " single and/or");
-
-				if (numFiltered > 0) {
-					hasFiltered = true;
-					components = new HashSet<Component>(filteredComponents);
-				}
-//			} catch (Exception ex) {
-//				ex.printStackTrace();
-//			}
-
-//			try {
-				totalNumFiltered += numFiltered = condenseBaseProps(components, filteredComponents);
-				Log.println('t', "Filtered " + numFiltered + " base props");
-				if (numFiltered > 0) {
-					hasFiltered = true;
-					components = new HashSet<Component>(filteredComponents);
-				}
-//			} catch (Exception ex) {
-//				ex.printStackTrace();
-//			}
-
-//			try {
-				totalNumFiltered += numFiltered = condenseConstants(components, filteredComponents);
-				Log.println('t', "Filtered " + numFiltered + " constants");
-				if (numFiltered > 0) {
-					hasFiltered = true;
-					components = new HashSet<Component>(filteredComponents);
-				}
-//			} catch (Exception ex) {
-//				ex.printStackTrace();
-//			}
-
-//			try {
-				numFiltered = pruneSpuriousConnections(components, filteredComponents);
-				Log.println('t', "Pruned " + numFiltered + " connections");
-				if (numFiltered > 0) {
-					hasFiltered = true;
-					components = new HashSet<Component>(filteredComponents);
-				}
-//			} catch (Exception ex) {
-//				ex.printStackTrace();
-//			}
-			
-		} while (hasFiltered);
+		int totalNumFiltered = optimize(filteredComponents);
 		
 		// Update all components field 
 		this.components = filteredComponents;
@@ -293,13 +235,15 @@ public final class BooleanPropNet {
 			index++;
 		}
 		
-		// Setup internal props with ordering given by topological sort from terminal
-		// Allows for spatial locality optimization in the propgation methods
+		// Setup internal props in dependency level order, searched from terminal
+		// first. Allows for spatial locality optimization in the propagation
+		// methods, and each level is a contiguous range
 		internalPropStart = index;
 		List<Proposition> preferredOrdering = new LinkedList<Proposition>();
 		preferredOrdering.add(terminalProposition);
 		preferredOrdering.addAll(allPropositions);
-		List<Proposition> ordering = getOrdering(allPropositions, preferredOrdering);
+		propLevels = new int[propIndex.length];
+		List<Proposition> ordering = getOrdering(preferredOrdering);
 		for (Proposition internalProp : ordering) {
 			propIndex[index] = internalProp;
 			propMap.put(internalProp, index);
@@ -407,37 +351,27 @@ public final class BooleanPropNet {
 	public int getTerminalIndex() {
 		return terminalIndex;
 	}
+	public int[] getPropLevels() {
+		return propLevels;
+	}
 	
-	public List<Proposition> getOrdering(Set<Proposition> propositions, List<Proposition> preferredOrdering) {
-		LinkedList<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the components in the PropNet
-		HashSet<Component> components = new HashSet<Component>(this.components);
-				
-		// Remove all base propositions from components 
+	/**
+	 * Orders the given internal propositions, and any they depend on, by
+	 * dependency level. Every proposition is recorded in propLevels.
+	 */
+	private List<Proposition> getOrdering(List<Proposition> preferredOrdering) {
+		Set<Proposition> sources = new HashSet<Proposition>();
 		for (int i = initIndex; i < inputPropStart; i++) {
-			components.remove(propIndex[i]);
-		}
-		
-		// TODO: Optimize this. Not efficient at all
-		Iterator<Component> componentIterator = components.iterator();
-		while (componentIterator.hasNext()) {
-			Component component = componentIterator.next();
-			if ((component instanceof Proposition) && component.getInputs().size() < 1) {
-				componentIterator.remove();
-			}
+			sources.add(propIndex[i]);
 		}
-		
-		// Use DFS to compute topological sort of propositions
-		
-		for (int i = 0; i < preferredOrdering.size(); i++) {
-			Proposition currComponent = preferredOrdering.get(i);
-			if (propositions.contains(currComponent)) {
-				topologicalSort(currComponent, order, propositions, components);
-			}
+		Map<Proposition, Integer> levels = new HashMap<Proposition, Integer>();
+		List<Proposition> order = topologicalSort(preferredOrdering, sources, levels);
+		for (int i = 0; i < order.size(); i++) {
+			propLevels[internalPropStart + i] = levels.get(order.get(i));
 		}
 		return order;
 	}
+
 	/**
 	 * Returns a representation of the PropNet in .dot format.
 	 * 
@@ -477,18 +411,251 @@ public final class BooleanPropNet {
         }
     }
 
-	public static void topologicalSort(Component currComponent, List<Proposition> order,
-			Set<Proposition> propositions, Set<Component> components) {
-		for (Component input : currComponent.getInputs()) {
-			if (components.contains(input)) { // not yet visited
-				topologicalSort(input, order, propositions, components);
+	/**
+	 * Orders the targets and every proposition they depend on so that each
+	 * proposition comes after all of its inputs. The search stops at sources
+	 * and at propositions without inputs, which are never ordered themselves.
+	 *
+	 * The ordering is computed with Kahn's algorithm rather than a recursive
+	 * search, so it needs no stack however deep the net. A proposition's
+	 * level is 0 if it reads no ordered proposition, and one more than its
+	 * deepest input otherwise. The propositions are returned grouped by
+	 * level, lowest first, so the propositions of one level never depend on
+	 * each other and can be evaluated in any order.
+	 *
+	 * @param levels if not null, receives the level of every proposition
+	 *        ordered
+	 */
+	public static List<Proposition> topologicalSort(Collection<Proposition> targets, Set<Proposition> sources, Map<Proposition, Integer> levels) {
+		// Number the cone of the targets breadth first from the targets
+		Map<Component, Integer> coneIndex = new HashMap<Component, Integer>();
+		List<Component> cone = new ArrayList<Component>();
+		for (Proposition target : targets) {
+			if (isOrdered(target, sources) && !coneIndex.containsKey(target)) {
+				coneIndex.put(target, cone.size());
+				cone.add(target);
+			}
+		}
+		for (int i = 0; i < cone.size(); i++) {
+			for (Component input : cone.get(i).getInputs()) {
+				if (coneIndex.containsKey(input))
+					continue;
+				if (input instanceof Proposition && !isOrdered((Proposition) input, sources))
+					continue;
+				coneIndex.put(input, cone.size());
+				cone.add(input);
+			}
+		}
+
+		int size = cone.size();
+		int[] pending = new int[size];
+		int[] queue = new int[size];
+		int head = 0, tail = 0;
+		for (int i = 0; i < size; i++) {
+			for (Component input : cone.get(i).getInputs()) {
+				if (coneIndex.containsKey(input))
+					pending[i]++;
+			}
+			if (pending[i] == 0)
+				queue[tail++] = i;
+		}
+
+		// A gate takes the level of its deepest input, a proposition one more
+		int[] level = new int[size];
+		int maxLevel = 0;
+		while (head < tail) {
+			int current = queue[head++];
+			Component component = cone.get(current);
+			int outputLevel = level[current];
+			if (component instanceof Proposition) {
+				outputLevel++;
+				maxLevel = Math.max(maxLevel, level[current]);
+			}
+			for (Component output : component.getOutputs()) {
+				Integer next = coneIndex.get(output);
+				if (next == null)
+					continue;
+				if (level[next] < outputLevel)
+					level[next] = outputLevel;
+				if (--pending[next] == 0)
+					queue[tail++] = next;
+			}
+		}
+		if (tail < size) {
+			// Only a cycle without a transition leaves components behind;
+			// they go last, in the order they were found
+			Log.println('t', (size - tail) + " components in a cycle could not be ordered");
+			maxLevel++;
+			for (int i = 0; i < size; i++) {
+				if (pending[i] > 0) {
+					level[i] = maxLevel;
+					queue[tail++] = i;
+				}
+			}
+		}
+
+		// Stable counting sort of the propositions by level
+		int[] levelStart = new int[maxLevel + 2];
+		for (int i = 0; i < size; i++) {
+			if (cone.get(i) instanceof Proposition)
+				levelStart[level[i] + 1]++;
+		}
+		for (int l = 0; l <= maxLevel; l++) {
+			levelStart[l + 1] += levelStart[l];
+		}
+		Proposition[] sorted = new Proposition[levelStart[maxLevel + 1]];
+		for (int i = 0; i < size; i++) {
+			Component component = cone.get(queue[i]);
+			if (component instanceof Proposition) {
+				sorted[levelStart[level[queue[i]]]++] = (Proposition) component;
+				if (levels != null)
+					levels.put((Proposition) component, level[queue[i]]);
+			}
+		}
+		return new ArrayList<Proposition>(Arrays.asList(sorted));
+	}
+
+	/**
+	 * Orders the same propositions as topologicalSort, depth first: each
+	 * proposition comes right after the last of its inputs not already
+	 * ordered, so a gate usually follows closely on the gates it reads. The
+	 * generated operators are cut into methods along this ordering, and this
+	 * keeps most gates in the same method as their inputs. The search keeps
+	 * its own stack, so it does not recurse however deep the net.
+	 */
+	public static List<Proposition> depthFirstSort(Collection<Proposition> targets, Set<Proposition> sources) {
+		List<Proposition> order = new ArrayList<Proposition>();
+		// Components on the stack are mapped to false, finished ones to true
+		Map<Component, Boolean> finished = new HashMap<Component, Boolean>();
+		LinkedList<Component> stack = new LinkedList<Component>();
+		LinkedList<Iterator<Component>> inputs = new LinkedList<Iterator<Component>>();
+		int cycles = 0;
+		for (Proposition target : targets) {
+			if (!isOrdered(target, sources) || finished.containsKey(target))
+				continue;
+			finished.put(target, false);
+			stack.push(target);
+			inputs.push(target.getInputs().iterator());
+			while (!stack.isEmpty()) {
+				Iterator<Component> next = inputs.peek();
+				if (next.hasNext()) {
+					Component input = next.next();
+					if (input instanceof Proposition && !isOrdered((Proposition) input, sources))
+						continue;
+					Boolean done = finished.get(input);
+					if (done == null) {
+						finished.put(input, false);
+						stack.push(input);
+						inputs.push(input.getInputs().iterator());
+					} else if (!done) {
+						cycles++;
+					}
+					continue;
+				}
+				Component component = stack.pop();
+				inputs.pop();
+				finished.put(component, true);
+				if (component instanceof Proposition)
+					order.add((Proposition) component);
+			}
+		}
+		if (cycles > 0) {
+			// Only a cycle without a transition gets here; its gates are
+			// ordered as if the closing input came later
+			Log.println('t', cycles + " inputs in a cycle could not be ordered");
+		}
+		return order;
+	}
+
+	private static boolean isOrdered(Proposition proposition, Set<Proposition> sources) {
+		return proposition.getInputs().size() > 0 && !sources.contains(proposition);
+	}
+
+	/**
+	 * Simplifies the network in place until no rewrite applies. Every
+	 * component is examined once; after that only the components touched by
+	 * a rewrite are examined again. Components that cannot reach a special,
+	 * base or transition node are removed whenever the worklist runs dry.
+	 *
+	 * @return the number of components filtered
+	 */
+	private int optimize(Set<Component> filteredComponents) {
+		int[] counts = new int[NUM_REWRITES];
+		counts[PRUNED] = pruneSpuriousConnections(filteredComponents, filteredComponents);
+		Map<GateSignature, Component> signatures = new HashMap<GateSignature, Component>();
+		Set<Component> worklist = new LinkedHashSet<Component>(filteredComponents);
+		while (!worklist.isEmpty()) {
+			while (!worklist.isEmpty()) {
+				Iterator<Component> next = worklist.iterator();
+				Component component = next.next();
+				next.remove();
+				if (!filteredComponents.contains(component)) {
+					continue;
+				}
+				if (component instanceof And || component instanceof Or || component instanceof Not) {
+					if (eliminateCommonSubexpression(component, signatures, filteredComponents, worklist)) {
+						counts[COMMON]++;
+						continue;
+					}
+					if (!(component instanceof Not)) {
+						counts[SINGLE] += condenseSingleAndOr(component, filteredComponents, worklist);
+					}
+				}
+				else if (component instanceof Proposition) {
+					counts[BASE] += condenseBaseProps((Proposition) component, filteredComponents, worklist);
+					if (filteredComponents.contains(component)) {
+						counts[CONSTANT] += condenseConstants(component, filteredComponents, worklist);
+					}
+				}
+				else if (component instanceof Constant) {
+					counts[CONSTANT] += condenseConstants(component, filteredComponents, worklist);
+				}
 			}
+			counts[DEAD] += removeDeadCones(filteredComponents, worklist);
+		}
+		counts[PRUNED] += pruneSpuriousConnections(filteredComponents, filteredComponents);
+		Log.println('t', "Filtered " + counts[COMMON] + " common subexpressions, " + counts[SINGLE] + " single and/or, " + counts[BASE] + " base props, "
+				+ counts[CONSTANT] + " constants, " + counts[DEAD] + " dead components; pruned " + counts[PRUNED] + " connections");
+		return counts[COMMON] + counts[SINGLE] + counts[BASE] + counts[CONSTANT] + counts[DEAD];
+	}
+	
+	private static final int COMMON = 0;
+	private static final int SINGLE = 1;
+	private static final int BASE = 2;
+	private static final int CONSTANT = 3;
+	private static final int DEAD = 4;
+	private static final int PRUNED = 5;
+	private static final int NUM_REWRITES = 6;
+	
+	/** The type and inputs of a gate; equal gates compute the same value */
+	private static final class GateSignature {
+		private final Class<?> type;
+		private final Set<Component> inputs;
+		private final int hash;
+		
+		GateSignature(Component gate) {
+			this.type = gate.getClass();
+			this.inputs = new HashSet<Component>(gate.getInputs());
+			this.hash = type.hashCode() * 31 + inputs.hashCode();
+		}
+		
+		boolean matches(Component gate) {
+			return gate.getClass() == type && gate.getInputs().equals(inputs);
 		}
-		if (currComponent instanceof Proposition) {
-			order.add((Proposition) currComponent);
-			propositions.remove(currComponent);
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof GateSignature)) {
+				return false;
+			}
+			GateSignature other = (GateSignature) o;
+			return type == other.type && inputs.equals(other.inputs);
 		}
-		components.remove(currComponent);
 	}
 	
 	private boolean isSpecialNode(Proposition prop) {
@@ -508,7 +675,7 @@ public final class BooleanPropNet {
 		return false;
 	}
 	
-	private int removeIslands(Component connector, Set<Component> filteredComponents) {
+	private int removeIslands(Component connector, Set<Component> filteredComponents, Set<Component> worklist) {
 		assert connector.getOutputs().size() == 0;
 		int count = 0;
 		for (Component prop : connector.getInputs()) {
@@ -516,401 +683,350 @@ public final class BooleanPropNet {
 			if (!isSpecialNode((Proposition)prop) && prop.getOutputs().size() == 0) { // continue processing
 				filteredComponents.remove(prop);
 				if (prop.getInputs().size() > 0) {
-					count += removeIslands(prop.getSingleInput(), filteredComponents);
+					count += removeIslands(prop.getSingleInput(), filteredComponents, worklist);
 				}
 			}
+			else {
+				worklist.add(prop);
+			}
 		}
 		count++;
 		filteredComponents.remove(connector);
 		return count;
 	}
 	
-	private int condenseIdenticalOutputs(Set<Component> components, Set<Component> filteredComponents) {
-		int numFiltered = 0;
-		for (Component component : components) {
-			if (component instanceof Proposition) {
-				Proposition prop = (Proposition) component;
-				Set<Component> outputs = prop.getOutputs();
-				List<Component> nots = new ArrayList<Component>();
-				List<Component> ands = new ArrayList<Component>();
-				List<Component> ors = new ArrayList<Component>();
-				
-				for (Component output : outputs) {
-					if (output instanceof Not) {
-						nots.add(output);
-					}
-					else if (output instanceof And) {
-						ands.add(output);
-					}
-					else if (output instanceof Or) {
-						ors.add(output);
-					}
-				}
-				if (nots.size() >= 2) {
-					// Combine all Nots
-					Component chosenNot = nots.get(0);
-					Proposition chosenNotProp = (Proposition) chosenNot.getSingleOutput();
-					for (int i = 1; i < nots.size(); i++) {
-						Component discardNot = nots.get(i);
-						Proposition discardNotProp = (Proposition) discardNot.getSingleOutput();
-						
-						// Make sure we don't remove a special node
-						if (isSpecialNode(discardNotProp)) {
-							continue;
-						}
-						
-						// Remove top connection
-						outputs.remove(discardNot);
-						discardNot.getInputs().remove(prop);
-						
-						// Shift bottom connection
-						for (Component discardNotPropOutput : discardNotProp.getOutputs()) {
-							discardNotPropOutput.getInputs().remove(discardNotProp);
-							chosenNotProp.addOutput(discardNotPropOutput);
-							discardNotPropOutput.addInput(chosenNotProp);
-						}
-						discardNotProp.getOutputs().clear();
-						
-						filteredComponents.remove(discardNot);
-						filteredComponents.remove(discardNotProp);
-						numFiltered++;
-					}
-				}
-				if (ands.size() >= 2) {
-					for (int i = 0; i < ands.size(); i++) {
-						Set<Component> sameInputAnds = new HashSet<Component>();
-						for (int j = i + 1; j < ands.size(); j++) {
-							if (ands.get(i).getInputs().equals(ands.get(j).getInputs())) {
-								sameInputAnds.add(ands.remove(j));
-								j--;
-							}
-						}
-						if (sameInputAnds.size() == 0) {
-							continue;
-						}
-						
-						Component chosenAnd = ands.get(i);
-						Proposition chosenAndProp = (Proposition) chosenAnd.getSingleOutput();
-						
-						for (Component discardAnd : sameInputAnds) {
-							Proposition discardAndProp = (Proposition) discardAnd.getSingleOutput();
-							
-							if (isSpecialNode(discardAndProp)) {
-								continue; 
-							}
-							
-							// Remove top connections
-							for (Component discardAndInput : discardAnd.getInputs()) {
-								discardAndInput.getOutputs().remove(discardAnd);
-							}
-							discardAnd.getInputs().clear();
-							
-							// Shift bottom connection
-							for (Component discardAndPropOutput : discardAndProp.getOutputs()) {
-								discardAndPropOutput.getInputs().remove(discardAndProp);
-								chosenAndProp.addOutput(discardAndPropOutput);
-								discardAndPropOutput.addInput(chosenAndProp);
-							}
-							discardAndProp.getOutputs().clear();
-							
-							filteredComponents.remove(discardAnd);
-							filteredComponents.remove(discardAndProp);
-							numFiltered++;
-						}
-							
-					}
-				}
-				if (ors.size() >= 2) {
-					for (int i = 0; i < ors.size(); i++) {
-						Set<Component> sameInputOrs = new HashSet<Component>();
-						for (int j = i + 1; j < ors.size(); j++) {
-							if (ors.get(i).getInputs().equals(ors.get(j).getInputs())) {
-								sameInputOrs.add(ors.remove(j));
-								j--;
-							}
-						}
-						if (sameInputOrs.size() == 0) {
-							continue;
-						}
-						
-						Component chosenOr = ors.get(i);
-						Proposition chosenOrProp = (Proposition) chosenOr.getSingleOutput();
-						
-						for (Component discardOr : sameInputOrs) {
-
-							Proposition discardOrProp = (Proposition) discardOr.getSingleOutput();
-							
-							if (isSpecialNode(discardOrProp)) {
-								continue; 
-							}
-							
-							// Remove top connections
-							for (Component discardOrInput : discardOr.getInputs()) {
-								discardOrInput.getOutputs().remove(discardOr);
-							}
-							discardOr.getInputs().clear();
-							
-							// Shift bottom connection
-							for (Component discardOrPropOutput : discardOrProp.getOutputs()) {
-								discardOrPropOutput.getInputs().remove(discardOrProp);
-								chosenOrProp.addOutput(discardOrPropOutput);
-								discardOrPropOutput.addInput(chosenOrProp);
-							}
-							discardOrProp.getOutputs().clear();
-							
-							filteredComponents.remove(discardOr);
-							filteredComponents.remove(discardOrProp);
-							numFiltered++;
-						}
-					}
-				}
+	/**
+	 * Merges gate into an earlier gate of the same type with the same inputs,
+	 * moving the outputs of its proposition over.
+	 * 
+	 * @return true if gate was removed
+	 */
+	private boolean eliminateCommonSubexpression(Component gate, Map<GateSignature, Component> signatures, Set<Component> filteredComponents,
+			Set<Component> worklist) {
+		if (gate.getInputs().size() == 0 || gate.getOutputs().size() != 1) {
+			return false;
+		}
+		GateSignature signature = new GateSignature(gate);
+		Component existing = signatures.get(signature);
+		if (existing == null || existing == gate || !filteredComponents.contains(existing) || !signature.matches(existing)) {
+			signatures.put(signature, gate);
+			return false;
+		}
+		Component chosen = existing;
+		Component discard = gate;
+		if (isSpecialNode((Proposition) discard.getSingleOutput())) {
+			if (isSpecialNode((Proposition) chosen.getSingleOutput())) {
+				return false;
 			}
+			chosen = gate;
+			discard = existing;
+			signatures.put(signature, gate);
 		}
-		return numFiltered;
+		Proposition chosenProp = (Proposition) chosen.getSingleOutput();
+		Proposition discardProp = (Proposition) discard.getSingleOutput();
+		
+		// Remove top connections
+		for (Component discardInput : discard.getInputs()) {
+			discardInput.getOutputs().remove(discard);
+			worklist.add(discardInput);
+		}
+		discard.getInputs().clear();
+		
+		// Shift bottom connection
+		for (Component discardPropOutput : discardProp.getOutputs()) {
+			discardPropOutput.getInputs().remove(discardProp);
+			chosenProp.addOutput(discardPropOutput);
+			discardPropOutput.addInput(chosenProp);
+			worklist.add(discardPropOutput);
+		}
+		discardProp.getOutputs().clear();
+		worklist.add(chosenProp);
+		
+		filteredComponents.remove(discard);
+		filteredComponents.remove(discardProp);
+		return true;
 	}
 	
-	private int condenseSingleAndOr(Set<Component> components, Set<Component> filteredComponents) {
-		int numFiltered = 0;
-		// First pass: condense all single input, single output Or and And		
-loop:	for (Component component : components) {
-			if ((component instanceof Or || component instanceof And) &&
-					component.getInputs().size() == 1 && component.getOutputs().size() == 1) { 
-				Proposition above = (Proposition) component.getSingleInput();
-				Proposition below = (Proposition) component.getSingleOutput();
-				
-				// Make sure below is not a special node
+	/**
+	 * Condenses a single input, single output Or or And into its input.
+	 */
+	private int condenseSingleAndOr(Component component, Set<Component> filteredComponents, Set<Component> worklist) {
+		if (component.getInputs().size() != 1 || component.getOutputs().size() != 1) {
+			return 0;
+		}
+		Proposition above = (Proposition) component.getSingleInput();
+		Proposition below = (Proposition) component.getSingleOutput();
+		
+		// Make sure below is not a special node
 
-				if (isSpecialNode(below)) {
-					continue loop;
-				}
-				
-				// Make sure below does not lead to a transition (only internal nodes can propagate)
+		if (isSpecialNode(below)) {
+			return 0;
+		}
+		
+		// Make sure below does not lead to a transition (only internal nodes can propagate)
 
-				Set<Component> belowOutputs = below.getOutputs();
-				for (Component connector : belowOutputs) {
-					if (connector instanceof Transition) {
-						continue loop;
-					}
-				}
-				
-				//DEBUG  Log.println('s', "Before filtering #" + numFiltered + ": " + above + " " + below);
-				//DEBUG  Log.println('s', "Debug #" + numFiltered + ": " + above.getInputs() + " " + above.getOutputs() + " " + below.getOutputs());
-				
-				// Rewire the connections: all of below's outputs become above's outputs
-				Set<Component> aboveOutputs = above.getOutputs();
-				//DEBUG  Log.println('s', "Filtering #" + numFiltered + ": " + aboveOutputs + "; " + belowOutputs);
-				for (Component connector : belowOutputs) {
-					//DEBUG  Log.println('s', "Processing " + connector);
-					aboveOutputs.add(connector);
-					connector.addInput(above);
-					connector.getInputs().remove(below);
-				}
-				aboveOutputs.remove(component);
-				// At this point, component points to below points to belowOutputs; can be removed
-				filteredComponents.remove(component);
-				filteredComponents.remove(below);
-				//DEBUG  Log.println('s', "Filtering #" + numFiltered + ": " + aboveOutputs + "; " + belowOutputs);
-				//DEBUG  Log.println('s', "After filtering #" + numFiltered + ": " + above.getInputs() + " " + above.getOutputs());
-				numFiltered++;
+		Set<Component> belowOutputs = below.getOutputs();
+		for (Component connector : belowOutputs) {
+			if (connector instanceof Transition) {
+				return 0;
 			}
 		}
-		return numFiltered;
+		
+		// Rewire the connections: all of below's outputs become above's outputs
+		Set<Component> aboveOutputs = above.getOutputs();
+		for (Component connector : belowOutputs) {
+			aboveOutputs.add(connector);
+			connector.addInput(above);
+			connector.getInputs().remove(below);
+			worklist.add(connector);
+		}
+		aboveOutputs.remove(component);
+		// At this point, component points to below points to belowOutputs; can be removed
+		filteredComponents.remove(component);
+		filteredComponents.remove(below);
+		worklist.add(above);
+		return 1;
 	}
 	
-	private int condenseBaseProps(Set<Component> components, Set<Component> filteredComponents) {
-		// Collapse base propositions if possible
+	/**
+	 * Collapses base propositions that are only ever read through the same
+	 * Or into a single base proposition holding the Or.
+	 */
+	private int condenseBaseProps(Proposition prop, Set<Component> filteredComponents, Set<Component> worklist) {
 		int numFiltered = 0;
-		for (Component component : components) {
-			if (component instanceof Proposition) {
-				Proposition prop = (Proposition) component;
-				if (prop.getInputs().size() == 1 && prop.getSingleInput() instanceof Transition) { // is a base prop
-					if (prop.getOutputs().size() == 1 && prop.getSingleOutput() instanceof Or) {
-						Component or = prop.getSingleOutput();
-						boolean collapsable = true;
-						for (Component orInput : or.getInputs()) {
-							if (!(orInput.getOutputs().size() == 1 && orInput.getInputs().size() == 1 && orInput.getSingleInput() instanceof Transition)) {
-								collapsable = false;
-								break;
-							}
-						}
-						if (collapsable) {
-							Proposition chosenBaseProp = prop;
-							Set<Component> orInputs = new HashSet<Component>(or.getInputs());
-							for (Component baseProp : orInputs) {
-								if (baseProp == chosenBaseProp) {
-									continue;
-								}
-								// Remove baseProp -> or connection
-								baseProp.getOutputs().remove(or);
-								or.getInputs().remove(baseProp);
-
-								Component transition = baseProp.getSingleInput();
-								Proposition aboveTransitionProp = (Proposition) transition.getSingleInput();
-
-								aboveTransitionProp.getOutputs().remove(transition);
-								transition.getInputs().remove(aboveTransitionProp);
-
-								aboveTransitionProp.addOutput(or);
-								or.addInput(aboveTransitionProp);
-
-								filteredComponents.remove(transition);
-								filteredComponents.remove(baseProp);
-
-								numFiltered++;
-							}
-							Proposition newBaseProp = (Proposition) or.getSingleOutput();
-							Component transition = chosenBaseProp.getSingleInput();
-							Proposition aboveTransitionProp = (Proposition) transition.getSingleInput();
-
-							aboveTransitionProp.getOutputs().remove(transition);
-							transition.getInputs().remove(aboveTransitionProp);
-
-							aboveTransitionProp.addOutput(or);
-							or.addInput(aboveTransitionProp);
-
-							chosenBaseProp.getOutputs().remove(or);
-							or.getInputs().remove(chosenBaseProp);
-
-							or.getOutputs().remove(newBaseProp);
-							newBaseProp.getInputs().remove(or);
-
-							transition.getOutputs().remove(chosenBaseProp);
-							chosenBaseProp.getInputs().remove(transition);
-
-							assert chosenBaseProp.getInputs().size() == 0;
-							assert chosenBaseProp.getOutputs().size() == 0;
-							assert transition.getInputs().size() == 0;
-							assert transition.getOutputs().size() == 0;
-							assert or.getOutputs().size() == 0;
-							assert newBaseProp.getInputs().size() == 0;
-
-							// Rewire!
-							newBaseProp.addInput(transition);
-							transition.addOutput(newBaseProp);
-
-							transition.addInput(chosenBaseProp);
-							chosenBaseProp.addOutput(transition);
-
-							chosenBaseProp.addInput(or);
-							or.addOutput(chosenBaseProp);
-						}
+		if (prop.getInputs().size() == 1 && prop.getSingleInput() instanceof Transition) { // is a base prop
+			if (prop.getOutputs().size() == 1 && prop.getSingleOutput() instanceof Or) {
+				Component or = prop.getSingleOutput();
+				for (Component orInput : or.getInputs()) {
+					if (!(orInput.getOutputs().size() == 1 && orInput.getInputs().size() == 1 && orInput.getSingleInput() instanceof Transition)) {
+						return 0;
 					}
 				}
+				Proposition chosenBaseProp = prop;
+				Set<Component> orInputs = new HashSet<Component>(or.getInputs());
+				for (Component baseProp : orInputs) {
+					if (baseProp == chosenBaseProp) {
+						continue;
+					}
+					// Remove baseProp -> or connection
+					baseProp.getOutputs().remove(or);
+					or.getInputs().remove(baseProp);
+
+					Component transition = baseProp.getSingleInput();
+					Proposition aboveTransitionProp = (Proposition) transition.getSingleInput();
+
+					aboveTransitionProp.getOutputs().remove(transition);
+					transition.getInputs().remove(aboveTransitionProp);
+
+					aboveTransitionProp.addOutput(or);
+					or.addInput(aboveTransitionProp);
+					worklist.add(aboveTransitionProp);
+
+					filteredComponents.remove(transition);
+					filteredComponents.remove(baseProp);
+
+					numFiltered++;
+				}
+				Proposition newBaseProp = (Proposition) or.getSingleOutput();
+				Component transition = chosenBaseProp.getSingleInput();
+				Proposition aboveTransitionProp = (Proposition) transition.getSingleInput();
+
+				aboveTransitionProp.getOutputs().remove(transition);
+				transition.getInputs().remove(aboveTransitionProp);
+
+				aboveTransitionProp.addOutput(or);
+				or.addInput(aboveTransitionProp);
+
+				chosenBaseProp.getOutputs().remove(or);
+				or.getInputs().remove(chosenBaseProp);
+
+				or.getOutputs().remove(newBaseProp);
+				newBaseProp.getInputs().remove(or);
+
+				transition.getOutputs().remove(chosenBaseProp);
+				chosenBaseProp.getInputs().remove(transition);
+
+				assert chosenBaseProp.getInputs().size() == 0;
+				assert chosenBaseProp.getOutputs().size() == 0;
+				assert transition.getInputs().size() == 0;
+				assert transition.getOutputs().size() == 0;
+				assert or.getOutputs().size() == 0;
+				assert newBaseProp.getInputs().size() == 0;
+
+				// Rewire!
+				newBaseProp.addInput(transition);
+				transition.addOutput(newBaseProp);
+
+				transition.addInput(chosenBaseProp);
+				chosenBaseProp.addOutput(transition);
+
+				chosenBaseProp.addInput(or);
+				or.addOutput(chosenBaseProp);
+				
+				worklist.add(aboveTransitionProp);
+				worklist.add(or);
+				worklist.add(newBaseProp);
 			}
 		}
 		return numFiltered;
 	}
 	
 
-	private int condenseConstants(Set<Component> components, Set<Component> filteredComponents) {
-		// Constant propagation
+	/**
+	 * Propagates the value of a Constant, or of a non-special proposition
+	 * with no single input (which is always false), into its outputs.
+	 */
+	private int condenseConstants(Component component, Set<Component> filteredComponents, Set<Component> worklist) {
 		int numFiltered = 0;
 		
-		for (Component component : components) {
-			Proposition constantProp = null;
-			boolean constantValue = false;
-			if (component instanceof Constant) {
-				constantValue = component.getValue();
-				if (component.getOutputs().size() == 0) {
-					continue;
-				}
-				constantProp = (Proposition) component.getSingleOutput();
+		Proposition constantProp = null;
+		boolean constantValue = false;
+		if (component instanceof Constant) {
+			constantValue = component.getValue();
+			if (component.getOutputs().size() == 0) {
+				return 0;
 			}
-			
-			if (component instanceof Proposition && component.getInputs().size() != 1 && !isSpecialNode((Proposition) component)) {
-				constantValue = false;
-				constantProp = (Proposition) component;
-			}
-			
-			if (constantProp == null) {
-				continue;
+			constantProp = (Proposition) component.getSingleOutput();
+		}
+		
+		if (component instanceof Proposition && component.getInputs().size() != 1 && !isSpecialNode((Proposition) component)) {
+			constantValue = false;
+			constantProp = (Proposition) component;
+		}
+		
+		if (constantProp == null) {
+			return 0;
+		}
+		
+		Set<Component> toSever = new HashSet<Component>();
+		Set<Component> toTrue = new HashSet<Component>();
+		Set<Component> toFalse = new HashSet<Component>();
+		for (Component output : constantProp.getOutputs()) {
+			if ((output instanceof And || output instanceof Or) && output.getInputs().size() == 1) {
+				if (constantValue) {
+					toTrue.add(output);
+				}
+				else {
+					toFalse.add(output);
+				}
 			}
-			
-			Set<Component> toSever = new HashSet<Component>();
-			Set<Component> toTrue = new HashSet<Component>();
-			Set<Component> toFalse = new HashSet<Component>();
-			for (Component output : constantProp.getOutputs()) {
-				if ((output instanceof And || output instanceof Or) && output.getInputs().size() == 1) {
-					if (constantValue) {
-						toTrue.add(output);
-					}
-					else {
-						toFalse.add(output);
-					}
+			else if (output instanceof And) {
+				if (constantValue) {
+					toSever.add(output);
 				}
-				else if (output instanceof And) {
-					if (constantValue) {
-						toSever.add(output);
-					}
-					else {
-						toFalse.add(output);
-					}
+				else {
+					toFalse.add(output);
 				}
-				else if (output instanceof Or) {
-					if (constantValue) {
-						toTrue.add(output);
-					}
-					else {
-						toSever.add(output);
-					}
+			}
+			else if (output instanceof Or) {
+				if (constantValue) {
+					toTrue.add(output);
 				}
-				else if (output instanceof Not) {
-					if (constantValue) {
-						toFalse.add(output);
-					}
-					else {
-						toTrue.add(output);
-					}
+				else {
+					toSever.add(output);
 				}
 			}
-
-			for (Component connectorSevered : toSever) {
-				connectorSevered.getInputs().remove(constantProp);
-				constantProp.getOutputs().remove(connectorSevered);
+			else if (output instanceof Not) {
+				if (constantValue) {
+					toFalse.add(output);
+				}
+				else {
+					toTrue.add(output);
+				}
 			}
-			for (Component connectorTrued : toTrue) {
+		}
 
-				Proposition propTrued = (Proposition) connectorTrued.getSingleOutput();
+		for (Component connectorSevered : toSever) {
+			connectorSevered.getInputs().remove(constantProp);
+			constantProp.getOutputs().remove(connectorSevered);
+			worklist.add(connectorSevered);
+			worklist.add(connectorSevered.getSingleOutput());
+		}
+		for (Component connectorTrued : toTrue) {
+			replaceWithConstant(connectorTrued, constantProp, true, filteredComponents, worklist);
+			numFiltered += removeIslands(connectorTrued, filteredComponents, worklist);
+		}
+		for (Component connectorFalsed : toFalse) {
+			replaceWithConstant(connectorFalsed, constantProp, false, filteredComponents, worklist);
+			numFiltered += removeIslands(connectorFalsed, filteredComponents, worklist);
+		}					
 
-				propTrued.getInputs().remove(connectorTrued);
-				connectorTrued.getOutputs().remove(propTrued);
+		if (!isSpecialNode(constantProp) && constantProp.getOutputs().size() == 0) {
+			filteredComponents.remove(constantProp);
+			filteredComponents.remove(component);
+			numFiltered++;
+		}
+		return numFiltered;
+	}
+	
+	private void replaceWithConstant(Component connector, Proposition constantProp, boolean value, Set<Component> filteredComponents,
+			Set<Component> worklist) {
+		Proposition prop = (Proposition) connector.getSingleOutput();
 
-				Component trueComponent = new Constant(true);
-				trueComponent.addOutput(propTrued);
-				propTrued.addInput(trueComponent);
+		prop.getInputs().remove(connector);
+		connector.getOutputs().remove(prop);
 
-				filteredComponents.add(trueComponent);
+		Component constant = new Constant(value);
+		constant.addOutput(prop);
+		prop.addInput(constant);
 
-				connectorTrued.getInputs().remove(constantProp);
-				constantProp.getOutputs().remove(connectorTrued);
+		filteredComponents.add(constant);
+		worklist.add(constant);
+		worklist.add(prop);
 
-				numFiltered += removeIslands(connectorTrued, filteredComponents);
+		connector.getInputs().remove(constantProp);
+		constantProp.getOutputs().remove(connector);
+	}
+	
+	/**
+	 * Removes every component that cannot reach a special proposition, a
+	 * base proposition or a transition, and queues the live components that
+	 * lose outputs.
+	 */
+	private int removeDeadCones(Set<Component> filteredComponents, Set<Component> worklist) {
+		Set<Component> live = new HashSet<Component>();
+		LinkedList<Component> toVisit = new LinkedList<Component>();
+		for (Component component : filteredComponents) {
+			if (component instanceof Transition) {
+				toVisit.add(component);
 			}
-			for (Component connectorFalsed : toFalse) {
-				Proposition propFalsed = (Proposition) connectorFalsed.getSingleOutput();
-
-				propFalsed.getInputs().remove(connectorFalsed);
-				connectorFalsed.getOutputs().remove(propFalsed);
-
-				Component falseComponent = new Constant(false);
-				falseComponent.addOutput(propFalsed);
-				propFalsed.addInput(falseComponent);
-
-				filteredComponents.add(falseComponent);
-
-				connectorFalsed.getInputs().remove(constantProp);
-				constantProp.getOutputs().remove(connectorFalsed);
-
-				numFiltered += removeIslands(connectorFalsed, filteredComponents);
-			}					
-
-			if (!isSpecialNode(constantProp) && constantProp.getOutputs().size() == 0) {
-				filteredComponents.remove(constantProp);
-				filteredComponents.remove(component);
-				numFiltered++;
+			else if (component instanceof Proposition) {
+				Proposition prop = (Proposition) component;
+				if (isSpecialNode(prop) || (prop.getInputs().size() == 1 && prop.getSingleInput() instanceof Transition)) {
+					toVisit.add(component);
+				}
 			}
 		}
-		return numFiltered;
+		while (!toVisit.isEmpty()) {
+			Component component = toVisit.removeLast();
+			if (live.add(component)) {
+				for (Component input : component.getInputs()) {
+					if (!live.contains(input) && filteredComponents.contains(input)) {
+						toVisit.add(input);
+					}
+				}
+			}
+		}
+		if (live.size() == filteredComponents.size()) {
+			return 0;
+		}
+		int numRemoved = 0;
+		Iterator<Component> componentIterator = filteredComponents.iterator();
+		while (componentIterator.hasNext()) {
+			Component component = componentIterator.next();
+			if (live.contains(component)) {
+				continue;
+			}
+			for (Component input : component.getInputs()) {
+				if (live.contains(input)) {
+					input.getOutputs().remove(component);
+					worklist.add(input);
+				}
+			}
+			componentIterator.remove();
+			numRemoved++;
+		}
+		return numRemoved;
 	}
 	
 	private int pruneSpuriousConnections(Set<Component> components, Set<Component> filteredComponents) {
@@ -942,4 +1058,4 @@ loop:	for (Component component : components) {
 		}
 		return numPruned;
 	}
-}
\ No newline at end of file
+}
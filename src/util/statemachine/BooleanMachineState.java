@@ -1,61 +1,247 @@
 package util.statemachine;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
 import util.gdl.grammar.GdlSentence;
 import util.propnet.architecture.components.Proposition;
 
+/**
+ * A machine state whose base propositions are packed 64 to a word. Its hash
+ * is the Zobrist hash of the base propositions: the XOR of a fixed 64-bit key
+ * for every one that is true. It is computed once at construction, so states
+ * can be used as map keys without rescanning the contents on every lookup. A
+ * state made from its predecessor only XORs in the keys of the propositions
+ * that flipped, which after a transition are usually few.
+ */
 public class BooleanMachineState extends MachineState {
-	private boolean[] baseProps;
+	private static final int WORD_SHIFT = 6;
+	private static final int WORD_MASK = 63;
+
+	private final long[] words;
+	private final int numBaseProps;
+	private final int hash;
+	private final long longHash;
 	private Proposition[] booleanOrdering;
 	private Set<GdlSentence> contents;
 
 	public BooleanMachineState(boolean[] baseProps, Proposition[] booleanOrdering) {
-		this.baseProps = baseProps;
+		this(baseProps, 0, baseProps.length, booleanOrdering);
+	}
+
+	/**
+	 * Packs props[from, to) as the base propositions of this state.
+	 */
+	public BooleanMachineState(boolean[] props, int from, int to, Proposition[] booleanOrdering) {
+		this(pack(props, from, to), to - from, booleanOrdering);
+	}
+
+	/**
+	 * Packs bytes [from, to) of an off-heap proposition buffer, one byte per
+	 * proposition, as the base propositions of this state.
+	 */
+	public BooleanMachineState(ByteBuffer props, int from, int to, Proposition[] booleanOrdering) {
+		this(pack(props, from, to), to - from, booleanOrdering);
+	}
+
+	/**
+	 * Packs props[from, to) as the base propositions of the state following
+	 * previous, whose hash is updated rather than computed afresh. previous
+	 * may be null.
+	 */
+	public BooleanMachineState(boolean[] props, int from, int to, Proposition[] booleanOrdering, BooleanMachineState previous) {
+		this(pack(props, from, to), to - from, booleanOrdering, previous);
+	}
+
+	public BooleanMachineState(ByteBuffer props, int from, int to, Proposition[] booleanOrdering, BooleanMachineState previous) {
+		this(pack(props, from, to), to - from, booleanOrdering, previous);
+	}
+
+	/**
+	 * Wraps an already packed word array. The array is not copied and must
+	 * not be modified afterwards.
+	 */
+	public BooleanMachineState(long[] words, int numBaseProps, Proposition[] booleanOrdering) {
+		this(words, numBaseProps, booleanOrdering, null);
+	}
+
+	/**
+	 * Wraps an already packed word array, hashing it from the differences to
+	 * previous when previous has the same size.
+	 */
+	public BooleanMachineState(long[] words, int numBaseProps, Proposition[] booleanOrdering, BooleanMachineState previous) {
+		this.words = words;
+		this.numBaseProps = numBaseProps;
 		this.booleanOrdering = booleanOrdering;
 		this.contents = null;
+		if (previous != null && previous.numBaseProps == numBaseProps) {
+			this.longHash = previous.longHash ^ zobristHash(words, previous.words);
+		} else {
+			this.longHash = zobristHash(words, null);
+		}
+		this.hash = (int) (longHash ^ (longHash >>> 32));
+	}
+
+	/**
+	 * XOR of the keys of the bits that differ between words and others, or
+	 * of the bits set in words if others is null.
+	 */
+	private static long zobristHash(long[] words, long[] others) {
+		long h = 0;
+		for (int w = 0; w < words.length; w++) {
+			long word = others == null ? words[w] : words[w] ^ others[w];
+			while (word != 0) {
+				h ^= zobristKey((w << WORD_SHIFT) + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * The Zobrist key of the baseProp'th base proposition. Keys are a fixed
+	 * function of the index, the SplitMix64 generator, so states over the
+	 * same propositions hash alike however they were made.
+	 */
+	public static long zobristKey(int baseProp) {
+		long z = (baseProp + 1) * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	public static int numWords(int numBaseProps) {
+		return (numBaseProps + WORD_MASK) >>> WORD_SHIFT;
+	}
+
+	public static long[] pack(boolean[] props, int from, int to) {
+		long[] words = new long[numWords(to - from)];
+		for (int i = from; i < to; i++) {
+			if (props[i]) {
+				int bit = i - from;
+				words[bit >>> WORD_SHIFT] |= 1L << (bit & WORD_MASK);
+			}
+		}
+		return words;
 	}
-	
+
+	public static long[] pack(ByteBuffer props, int from, int to) {
+		long[] words = new long[numWords(to - from)];
+		for (int i = from; i < to; i++) {
+			if (props.get(i) != 0) {
+				int bit = i - from;
+				words[bit >>> WORD_SHIFT] |= 1L << (bit & WORD_MASK);
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Writes the base propositions into props, starting at offset. Only the
+	 * set bits are visited, so props is expected to be cleared beforehand.
+	 */
+	public void unpack(boolean[] props, int offset) {
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				int bit = Long.numberOfTrailingZeros(word);
+				props[offset + (w << WORD_SHIFT) + bit] = true;
+				word &= word - 1;
+			}
+		}
+	}
+
+	/**
+	 * Writes the base propositions into an off-heap proposition buffer, one
+	 * byte per proposition, starting at offset. Only the set bits are visited.
+	 */
+	public void unpack(ByteBuffer props, int offset) {
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				int bit = Long.numberOfTrailingZeros(word);
+				props.put(offset + (w << WORD_SHIFT) + bit, (byte) 1);
+				word &= word - 1;
+			}
+		}
+	}
+
+	public boolean get(int baseProp) {
+		return (words[baseProp >>> WORD_SHIFT] & (1L << (baseProp & WORD_MASK))) != 0;
+	}
+
+	public int size() {
+		return numBaseProps;
+	}
+
+	public long[] getPackedContents() {
+		return words;
+	}
+
 	@Override
 	public Set<GdlSentence> getContents() {
-		// TODO Auto-generated method stub
 		if (this.contents == null) {
 			this.contents = new HashSet<GdlSentence>();
-			for (int i = 0; i < baseProps.length; i++) {
-				if (baseProps[i]) {
-					this.contents.add(booleanOrdering[i+1].getName().toSentence());
+			for (int w = 0; w < words.length; w++) {
+				long word = words[w];
+				while (word != 0) {
+					int bit = Long.numberOfTrailingZeros(word);
+					this.contents.add(booleanOrdering[(w << WORD_SHIFT) + bit + 1].getName().toSentence());
+					word &= word - 1;
 				}
 			}
 		}
 		return this.contents;
 	}
-	
+
 	public String toString() {
 		return getContents().toString();
-		//return Arrays.toString(this.baseprops);
 	}
-	
+
+	/**
+	 * Unpacks the base propositions into a fresh array. Prefer get() or
+	 * unpack() on hot paths.
+	 */
 	public boolean[] getBooleanContents() {
+		boolean[] baseProps = new boolean[numBaseProps];
+		unpack(baseProps, 0);
 		return baseProps;
 	}
-	
+
 	@Override
 	public int hashCode() {
-		return Arrays.hashCode(baseProps);
+		return hash;
+	}
+
+	/**
+	 * The full 64-bit Zobrist hash; hashCode() folds it to 32 bits.
+	 */
+	public long getLongHash() {
+		return longHash;
 	}
-	
+
 	@Override
 	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
         if (o != null) {
         	if (o instanceof BooleanMachineState) {
         		BooleanMachineState state = (BooleanMachineState) o;
-                return Arrays.equals(baseProps, state.baseProps);
+        		if (hash != state.hash || words.length != state.words.length) {
+        			return false;
+        		}
+        		for (int w = 0; w < words.length; w++) {
+        			if (words[w] != state.words[w]) {
+        				return false;
+        			}
+        		}
+        		return true;
         	}
         	else if (o instanceof MachineState) {
         		MachineState state = (MachineState) o;
-                return state.getContents().equals(getContents());        		
+                return state.getContents().equals(getContents());
         	}
         }
 
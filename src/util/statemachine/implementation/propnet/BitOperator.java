@@ -0,0 +1,16 @@
+package util.statemachine.implementation.propnet;
+
+/**
+ * Operator over 64 independent states at once: every proposition is a long
+ * and bit i of each long belongs to state i.
+ */
+public abstract class BitOperator {
+	public void propagate(long[] props) {
+		propagateInternal(props);
+		transition(props);
+	}
+	public abstract void transition(long[] props);
+	public abstract void propagateInternal(long[] props);
+	/** Propagates only what is needed for the terminal, legal and goal propositions */
+	public abstract void propagateDecision(long[] props);
+}
@@ -0,0 +1,117 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Runs up to 64 random playouts at once on a BitOperator, one playout per bit
+ * lane. Each lane picks a uniformly random legal move per role, independently
+ * of the other lanes, and stops contributing once it reaches a terminal state.
+ */
+public class BitPlayout {
+	public static final int LANES = 64;
+
+	private final int[][] legalPropMap;
+	private final int[] legalInputMap;
+	private final int[][] goals;
+	private final int inputPropStart;
+	private final int internalPropStart;
+	private final int terminalIndex;
+	private final Random rand;
+
+	/**
+	 * @param goals the {goal prop, goal value} pairs of the role whose goals
+	 *        are summed
+	 */
+	public BitPlayout(int[][] legalPropMap, int[] legalInputMap, int[][] goals, int inputPropStart, int internalPropStart, int terminalIndex) {
+		this.legalPropMap = legalPropMap;
+		this.legalInputMap = legalInputMap;
+		this.goals = goals;
+		this.inputPropStart = inputPropStart;
+		this.internalPropStart = internalPropStart;
+		this.terminalIndex = terminalIndex;
+		this.rand = new Random();
+	}
+
+	/**
+	 * A playout runner for the same game with its own generator, for
+	 * another thread to use.
+	 */
+	public BitPlayout fork() {
+		return new BitPlayout(legalPropMap, legalInputMap, goals, inputPropStart, internalPropStart, terminalIndex);
+	}
+
+	public static long lanes(int probes) {
+		return probes >= LANES ? -1L : (1L << probes) - 1;
+	}
+
+	/**
+	 * Plays out every lane set in lanes from the base propositions in props.
+	 *
+	 * @return the sum of the goal values reached over all lanes; depth[0] is
+	 *         set to the total number of transitions over all lanes if depth is
+	 *         not null
+	 */
+	public long playout(BitOperator operator, long[] props, long lanes, int[] depth) {
+		return playout(operator, props, lanes, depth, null);
+	}
+
+	/**
+	 * As playout, also adding the number of lanes that reached each goal to
+	 * goalCounts if it is not null.
+	 */
+	public long playout(BitOperator operator, long[] props, long lanes, int[] depth, int[] goalCounts) {
+		int[] chosen = new int[LANES];
+		int[] count = new int[LANES];
+		long active = lanes;
+		long sum = 0;
+		int totalDepth = 0;
+		while (true) {
+			Arrays.fill(props, inputPropStart, internalPropStart, 0L);
+			operator.propagateDecision(props);
+
+			long done = props[terminalIndex] & active;
+			if (done != 0) {
+				for (int i = 0; i < goals.length && done != 0; i++) {
+					long reached = props[goals[i][0]] & done;
+					sum += (long) goals[i][1] * Long.bitCount(reached);
+					if (goalCounts != null)
+						goalCounts[i] += Long.bitCount(reached);
+					done &= ~reached;
+				}
+				active &= ~(props[terminalIndex]);
+				if (active == 0)
+					break;
+			}
+
+			for (int role = 0; role < legalPropMap.length; role++) {
+				int[] legals = legalPropMap[role];
+				Arrays.fill(count, 0);
+				// Reservoir sample one legal move per lane
+				for (int index = 0; index < legals.length; index++) {
+					long bits = props[legals[index]] & active;
+					while (bits != 0) {
+						int lane = Long.numberOfTrailingZeros(bits);
+						if (rand.nextInt(++count[lane]) == 0)
+							chosen[lane] = index;
+						bits &= bits - 1;
+					}
+				}
+				long bits = active;
+				while (bits != 0) {
+					int lane = Long.numberOfTrailingZeros(bits);
+					if (count[lane] > 0)
+						props[legalInputMap[legals[chosen[lane]]]] |= 1L << lane;
+					bits &= bits - 1;
+				}
+			}
+
+			operator.propagateInternal(props);
+			operator.transition(props);
+			totalDepth += Long.bitCount(active);
+		}
+		if (depth != null)
+			depth[0] = totalDepth;
+		return sum;
+	}
+}
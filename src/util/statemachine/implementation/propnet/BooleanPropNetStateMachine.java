@@ -1,6 +1,8 @@
 package util.statemachine.implementation.propnet;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -9,7 +11,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 import player.gamer.statemachine.eggplant.misc.Log;
@@ -108,16 +109,58 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	private Move[] moveIndex;
 	
 	/** Latch mechanism */
-	private ArrayList<HashMap<Integer, int[]>> sameTurnEffects;
-	private ArrayList<HashMap<Integer, int[]>> nextTurnEffects;
+	private PropEffects propEffects;
 	private List<Integer> trueLatches;
 	private List<Integer> falseLatches;
 	private Set<Proposition> satisfiedLatches;
 	private Set<Proposition> relevantPropositions;
 	
+	/**
+	 * Machines for the independent subgames found by factor(), or null if
+	 * the game does not factor
+	 */
+	private BooleanPropNetStateMachine[] factors;
+	/** For every factor, the index here of each of its base propositions */
+	private int[][] factorBaseProps;
+	/** Held while the factors' operators are built or the factors forked */
+	private final Object factorLock = new Object();
+	
+	/**
+	 * When set, the JVM-side operator propagates only the cone of changed
+	 * propositions instead of being generated with Javassist
+	 */
+	private static boolean useIncrementalOperator = false;
+
+	/**
+	 * When set, nets wide enough for the level-parallel operator keep it as
+	 * their JVM-side operator instead of having one generated with Javassist
+	 */
+	private static boolean useParallelOperator = false;
+
+	/** Time in ms the latch analysis may take before giving up on the rest */
+	private static long latchAnalysisTime = 10000;
+
+	/** Number of native threads multiMonte spreads its playouts over */
+	private static int monteCarloThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Array form of the prop net shared by the table-driven operators */
+	private FlatPropNet flatPropNet;
+
+	private Operator interpretedOperator;
 	private Operator nativeOperator;
 	private Operator javassistOperator;
-	private Operator operator;
+	private volatile Operator operator;
+
+	/** 64-lane operators used for batched playouts */
+	private BitOperator nativeBitOperator;
+	private BitOperator javassistBitOperator;
+	private volatile BitOperator bitOperator;
+	private BitPlayout bitPlayout;
+
+	/** Off-heap proposition buffers for the native operator, one per thread */
+	private ThreadLocal<ByteBuffer> directProps;
+	private byte[] clearProps;
+
 	private Object operatorLock;
 	private Role mainRole;
 	
@@ -136,12 +179,101 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		mainRole = role;
 	}
 	
-	public BooleanPropNetStateMachine(BooleanPropNetStateMachine copy) {
-		this.basePropMap = new HashMap<GdlTerm, Integer>(copy.basePropMap);
-		this.basePropStart = copy.basePropStart;
-		this.defaultOrdering = new LinkedList<Proposition>(copy.defaultOrdering);
+	/**
+	 * A machine for another thread, made by fork(). The net, index maps and
+	 * compiled code are shared with copy; operators, generators, scratch
+	 * buffers and latch state are its own.
+	 */
+	protected BooleanPropNetStateMachine(BooleanPropNetStateMachine copy) {
+		super();
+		this.mainRole = copy.mainRole;
 		this.description = copy.description;
-		this.falseLatches = copy.falseLatches;
+		this.pnet = copy.pnet;
+		this.propIndex = copy.propIndex;
+		this.propMap = copy.propMap;
+		this.basePropMap = copy.basePropMap;
+		this.inputPropMap = copy.inputPropMap;
+		this.legalPropMap = copy.legalPropMap;
+		this.legalInputMap = copy.legalInputMap;
+		this.goalPropMap = copy.goalPropMap;
+		this.initIndex = copy.initIndex;
+		this.basePropStart = copy.basePropStart;
+		this.inputPropStart = copy.inputPropStart;
+		this.internalPropStart = copy.internalPropStart;
+		this.terminalIndex = copy.terminalIndex;
+		this.numProps = copy.numProps;
+		this.defaultOrdering = copy.defaultOrdering;
+		this.rolesList = copy.rolesList;
+		this.roleIndex = copy.roleIndex;
+		this.roleMap = copy.roleMap;
+		this.moveIndex = copy.moveIndex;
+		this.flatPropNet = copy.flatPropNet;
+		this.factorBaseProps = copy.factorBaseProps;
+		this.clearProps = copy.clearProps;
+		this.operatorLock = new Object();
+
+		synchronized (copy.operatorLock) {
+			this.propEffects = copy.propEffects;
+			if (copy.trueLatches != null) {
+				this.trueLatches = new ArrayList<Integer>(copy.trueLatches);
+				this.falseLatches = new ArrayList<Integer>(copy.falseLatches);
+				this.satisfiedLatches = new HashSet<Proposition>(copy.satisfiedLatches);
+			}
+			if (copy.relevantPropositions != null) {
+				this.relevantPropositions = new HashSet<Proposition>(copy.relevantPropositions);
+			}
+
+			// A factor whose operators were never built forks without any
+			if (copy.interpretedOperator != null) {
+				this.interpretedOperator = copy.interpretedOperator.fork();
+				if (copy.javassistOperator == copy.interpretedOperator) {
+					this.javassistOperator = this.interpretedOperator;
+				} else if (copy.javassistOperator != null) {
+					this.javassistOperator = copy.javassistOperator.fork();
+				}
+				if (copy.nativeOperator != null) {
+					this.nativeOperator = copy.nativeOperator.fork();
+					this.directProps = newDirectProps(numProps);
+				}
+				if (copy.operator == copy.nativeOperator) {
+					this.operator = this.nativeOperator;
+				} else if (copy.operator == copy.javassistOperator) {
+					this.operator = this.javassistOperator;
+				} else {
+					this.operator = this.interpretedOperator;
+				}
+			}
+
+			// The bit operators keep no state between calls
+			this.nativeBitOperator = copy.nativeBitOperator;
+			this.javassistBitOperator = copy.javassistBitOperator;
+			this.bitOperator = copy.bitOperator;
+			if (copy.bitPlayout != null) {
+				this.bitPlayout = copy.bitPlayout.fork();
+			}
+
+		}
+		synchronized (copy.factorLock) {
+			if (copy.factors != null) {
+				BooleanPropNetStateMachine[] minions = new BooleanPropNetStateMachine[copy.factors.length];
+				for (int i = 0; i < minions.length; i++) {
+					minions[i] = copy.factors[i].fork();
+				}
+				this.factors = minions;
+			}
+		}
+	}
+
+	/**
+	 * A machine for another search thread. It plays the same game on the
+	 * operators this one is using now, without compiling anything, and can be
+	 * used at the same time as this one without locking. Operators finished
+	 * later are not passed on, and the fork is not offered to the
+	 * StateMachineFactory. Call disposeNativeOperator() on the fork once it
+	 * is no longer needed.
+	 */
+	public BooleanPropNetStateMachine fork() {
+		return new BooleanPropNetStateMachine(this);
 	}
 	
 	/**
@@ -164,6 +296,7 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		this.description = null;
 		this.pnet = new BooleanPropNet(components);
 		this.rolesList = roles;
+		this.operatorLock = new Object();
 		initializeFromPropNet(this.pnet, true);
 	}
 
@@ -207,6 +340,98 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		}
 	}
 
+	/**
+	 * Initializes the machine from the snapshot stored by an earlier run of
+	 * the same game, if there is one. The machine runs on the interpreted
+	 * operator only and has no Component graph behind it, so it has no latch
+	 * analysis and cannot be factored; it is meant to play while initialize
+	 * builds the full machine.
+	 *
+	 * @return false if no usable snapshot was found
+	 */
+	public boolean initializeFromSnapshot(List<Gdl> description) {
+		File file = PropNetSnapshot.getFile(description);
+		if (!file.exists())
+			return false;
+		PropNetSnapshot snapshot;
+		try {
+			snapshot = PropNetSnapshot.read(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		this.description = description;
+		this.rolesList = computeRoles(description);
+		if (snapshot.legalPropMap.length != rolesList.size())
+			return false;
+
+		flatPropNet = snapshot.net;
+		numProps = flatPropNet.numProps;
+		initIndex = snapshot.initIndex;
+		basePropStart = flatPropNet.basePropStart;
+		inputPropStart = flatPropNet.inputPropStart;
+		internalPropStart = flatPropNet.internalPropStart;
+		terminalIndex = snapshot.terminalIndex;
+		legalPropMap = snapshot.legalPropMap;
+		legalInputMap = snapshot.legalInputMap;
+		goalPropMap = snapshot.goalPropMap;
+
+		computeRoleIndices(rolesList);
+
+		// Only the named propositions get objects, for states and moves
+		propIndex = new Proposition[numProps];
+		propMap = new HashMap<Proposition, Integer>();
+		basePropMap = new HashMap<GdlTerm, Integer>();
+		inputPropMap = new HashMap<GdlTerm, Integer>();
+		moveIndex = new Move[numProps];
+		for (int i = 0; i < internalPropStart; i++) {
+			propIndex[i] = new Proposition(snapshot.names[i]);
+			propMap.put(propIndex[i], i);
+			if (i >= basePropStart && i < inputPropStart) {
+				basePropMap.put(snapshot.names[i], i);
+			} else if (i >= inputPropStart) {
+				inputPropMap.put(snapshot.names[i], i);
+				moveIndex[i] = getMoveFromProposition(propIndex[i]);
+			}
+		}
+		defaultOrdering = new LinkedList<Proposition>();
+
+		if (mainRole == null)
+			mainRole = roleIndex[0];
+
+		trueLatches = new ArrayList<Integer>();
+		falseLatches = new ArrayList<Integer>();
+		satisfiedLatches = new HashSet<Proposition>();
+		relevantPropositions = null;
+
+		operatorLock = new Object();
+		interpretedOperator = buildInterpretedOperator();
+		operator = interpretedOperator;
+		Log.println('y', "Loaded prop net snapshot " + file.getName());
+		StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_SNAPSHOT, this);
+		return true;
+	}
+
+	/**
+	 * Stores the flattened net for initializeFromSnapshot in later runs,
+	 * unless it is already stored.
+	 */
+	private void saveSnapshot() {
+		File file = PropNetSnapshot.getFile(description);
+		if (file.exists())
+			return;
+		GdlTerm[] names = new GdlTerm[internalPropStart];
+		for (int i = 0; i < internalPropStart; i++) {
+			names[i] = propIndex[i].getName();
+		}
+		try {
+			new PropNetSnapshot(flatPropNet, initIndex, terminalIndex, legalPropMap, legalInputMap, goalPropMap, names).write(file);
+			Log.println('y', "Stored prop net snapshot " + file.getName());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Computes if the state is terminal. Should return the value of the
 	 * terminal proposition for the state.
@@ -214,6 +439,12 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	@Override
 	public boolean isTerminal(MachineState state) {
 		try {
+			NativeOperator direct = getDirectOperator();
+			if (direct != null) {
+				ByteBuffer props = initDirectPropositionsFromState(state);
+				direct.propagateTerminalOnlyDirect(props);
+				return props.get(terminalIndex) != 0;
+			}
 			boolean[] props = initBasePropositionsFromState(state);
 			operator.propagateTerminalOnly(props);
 			return props[terminalIndex];
@@ -245,17 +476,36 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	 */
 	@Override
 	public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+		return getGoal(state, roleMap.get(role));
+	}
+
+	/**
+	 * The goal of the role'th role in state, or -1 if it has none.
+	 */
+	public int getGoal(MachineState state, int role) {
 		try {
-			boolean[] props = initBasePropositionsFromState(state);
-			int roleIndex = roleMap.get(role);
-			int[][] goals = goalPropMap[roleIndex];
-			operator.propagateGoalOnly(props, roleIndex);
+			int[][] goals = goalPropMap[role];
+			boolean[] goalReached = new boolean[goals.length];
+			NativeOperator direct = getDirectOperator();
+			if (direct != null) {
+				ByteBuffer props = initDirectPropositionsFromState(state);
+				direct.propagateGoalOnlyDirect(props, role);
+				for (int i = 0; i < goals.length; i++) {
+					goalReached[i] = props.get(goals[i][0]) != 0;
+				}
+			} else {
+				boolean[] props = initBasePropositionsFromState(state);
+				operator.propagateGoalOnly(props, role);
+				for (int i = 0; i < goals.length; i++) {
+					goalReached[i] = props[goals[i][0]];
+				}
+			}
 			boolean goalFound = false;
 			int goalValue = -1;
 			for (int i = 0; i < goals.length; i++) {
-				if (props[goals[i][0]]) {
+				if (goalReached[i]) {
 					if (goalFound) {
-						throw new GoalDefinitionException(state, role);
+						throw new GoalDefinitionException(state, roleIndex[role]);
 					} else {
 						goalValue = goals[i][1];
 						goalFound = true;
@@ -281,7 +531,7 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		boolean[] props = new boolean[numProps];
 		props[initIndex] = true;
 		operator.propagate(props);
-		return new BooleanMachineState(Arrays.copyOfRange(props, basePropStart, inputPropStart), propIndex);
+		return new BooleanMachineState(props, basePropStart, inputPropStart, propIndex);
 	}
 
 	/**
@@ -289,26 +539,59 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	 */
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
-		List<Move> legalMoves = new LinkedList<Move>();
-
 		int roleIndex = roleMap.get(role);
-		
-		int[] legals = legalPropMap[roleIndex];			
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			direct.propagateAllLegalsDirect(props);
+			return collectLegalMoves(props, roleIndex);
+		}
+		boolean[] props = initBasePropositionsFromState(state);
+		operator.propagateAllLegals(props);
+		return collectLegalMoves(props, roleIndex);
+	}
 
+	/**
+	 * Computes the legal moves of every role with a single propagation,
+	 * indexed like getRoles().
+	 */
+	public List<List<Move>> getAllLegalMoves(MachineState state) {
+		List<List<Move>> allMoves = new ArrayList<List<Move>>(roleIndex.length);
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			direct.propagateAllLegalsDirect(props);
+			for (int role = 0; role < roleIndex.length; role++) {
+				allMoves.add(collectLegalMoves(props, role));
+			}
+			return allMoves;
+		}
 		boolean[] props = initBasePropositionsFromState(state);
-		
-		// Clear initial moves
-		for (int i = 0; i < legals.length; i++) {
-			props[legals[i]] = false;
+		operator.propagateAllLegals(props);
+		for (int role = 0; role < roleIndex.length; role++) {
+			allMoves.add(collectLegalMoves(props, role));
 		}
+		return allMoves;
+	}
+
+	private List<Move> collectLegalMoves(boolean[] props, int role) {
+		List<Move> legalMoves = new LinkedList<Move>();
+		int[] legals = legalPropMap[role];
 		for (int i = 0; i < legals.length; i++) {
-			int inputIndex = legalInputMap[legals[i]];
-			props[inputIndex] = true;
-			operator.propagateLegalOnly(props, roleIndex, i);
 			if (props[legals[i]]) {
-				legalMoves.add(moveIndex[inputIndex]);
+				legalMoves.add(moveIndex[legalInputMap[legals[i]]]);
+			}
+		}
+		return legalMoves;
+	}
+
+	private List<Move> collectLegalMoves(ByteBuffer props, int role) {
+		List<Move> legalMoves = new LinkedList<Move>();
+		int[] legals = legalPropMap[role];
+		for (int i = 0; i < legals.length; i++) {
+			if (props.get(legals[i]) != 0) {
+				legalMoves.add(moveIndex[legalInputMap[legals[i]]]);
 			}
-			props[inputIndex] = false;
 		}
 		return legalMoves;
 	}
@@ -319,23 +602,104 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves)
 	throws TransitionDefinitionException {
-		// Set up the base propositions
-		boolean[] props = initBasePropositionsFromState(state);
+		int[] jointMove = toJointMove(moves);
+		for (int input : jointMove) {
+			if (input < 0)
+				throw new TransitionDefinitionException(state, moves);
+		}
+		return getNextState(state, jointMove);
+	}
 
-		// Set up the input propositions
-		List<GdlTerm> doeses = toDoes(moves);
+	/**
+	 * Computes the next state given state and a joint move of input
+	 * proposition indices, one per role in the order of getRoles().
+	 */
+	public BooleanMachineState getNextState(MachineState state, int[] jointMove) {
+		// The next state's hash is updated from this one's
+		BooleanMachineState previous = state instanceof BooleanMachineState ? (BooleanMachineState) state : null;
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			for (int input : jointMove) {
+				props.put(input, (byte) 1);
+			}
+			direct.propagateDirect(props);
+			return new BooleanMachineState(props, basePropStart, inputPropStart, propIndex, previous);
+		}
 
-		// All input props start as false
+		// Set up the base propositions
+		boolean[] props = initBasePropositionsFromState(state);
 
-		for (GdlTerm does : doeses) {
-			//DEBUG  Log.println('c', "Marking move with " + does);
-			props[inputPropMap.get(does)] = true;
+		// Set up the input propositions; all of them start as false
+		for (int input : jointMove) {
+			props[input] = true;
 		}
 
 		//DEBUG  Log.println('c', "Before propagate: " + Arrays.toString(props));
 		operator.propagate(props);
 		//DEBUG  Log.println('c', "After propagate: " + Arrays.toString(props));
-		return new BooleanMachineState(Arrays.copyOfRange(props, basePropStart, inputPropStart), propIndex);
+		return new BooleanMachineState(props, basePropStart, inputPropStart, propIndex, previous);
+	}
+
+	/**
+	 * Writes the input propositions of the legal moves of role in state to
+	 * the front of inputs, which must hold getNumLegals(role) entries, and
+	 * returns their number.
+	 */
+	public int getLegalInputs(MachineState state, int role, int[] inputs) {
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			direct.propagateAllLegalsDirect(props);
+			return collectLegalInputs(props, role, inputs);
+		}
+		boolean[] props = initBasePropositionsFromState(state);
+		operator.propagateAllLegals(props);
+		return collectLegalInputs(props, role, inputs);
+	}
+
+	/**
+	 * Computes the legal moves of every role with a single propagation, as
+	 * input propositions written to the front of inputs[role], and their
+	 * number to counts[role].
+	 */
+	public void getAllLegalInputs(MachineState state, int[][] inputs, int[] counts) {
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			direct.propagateAllLegalsDirect(props);
+			for (int role = 0; role < roleIndex.length; role++) {
+				counts[role] = collectLegalInputs(props, role, inputs[role]);
+			}
+			return;
+		}
+		boolean[] props = initBasePropositionsFromState(state);
+		operator.propagateAllLegals(props);
+		for (int role = 0; role < roleIndex.length; role++) {
+			counts[role] = collectLegalInputs(props, role, inputs[role]);
+		}
+	}
+
+	private int collectLegalInputs(boolean[] props, int role, int[] inputs) {
+		int[] legals = legalPropMap[role];
+		int count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (props[legals[i]]) {
+				inputs[count++] = legalInputMap[legals[i]];
+			}
+		}
+		return count;
+	}
+
+	private int collectLegalInputs(ByteBuffer props, int role, int[] inputs) {
+		int[] legals = legalPropMap[role];
+		int count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (props.get(legals[i]) != 0) {
+				inputs[count++] = legalInputMap[legals[i]];
+			}
+		}
+		return count;
 	}
 	
 	// Must be called only once per turn!
@@ -354,10 +718,10 @@ public class BooleanPropNetStateMachine extends StateMachine {
 				if (props[latch]) {
 					if (satisfiedLatches.add(propIndex[latch])) {
 						trueIterator.remove();
-						for (int otherProp : sameTurnEffects.get(latch).keySet()) {
+						for (int otherProp : propEffects.getSameTurnProps(latch)) {
 							relevantPropositions.remove(propIndex[otherProp]);
 						}
-						for (int otherProp : nextTurnEffects.get(latch).keySet()) {
+						for (int otherProp : propEffects.getNextTurnProps(latch)) {
 							relevantPropositions.remove(propIndex[otherProp]);
 						}
 					}
@@ -369,10 +733,10 @@ public class BooleanPropNetStateMachine extends StateMachine {
 				if (!props[latch]) {
 					if (satisfiedLatches.add(propIndex[latch])) {
 						falseIterator.remove();
-						for (int otherProp : sameTurnEffects.get(latch).keySet()) {
+						for (int otherProp : propEffects.getSameTurnProps(latch)) {
 							relevantPropositions.remove(propIndex[otherProp]);
 						}
-						for (int otherProp : nextTurnEffects.get(latch).keySet()) {
+						for (int otherProp : propEffects.getNextTurnProps(latch)) {
 							relevantPropositions.remove(propIndex[otherProp]);
 						}
 					}
@@ -389,8 +753,7 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	private boolean[] initBasePropositionsFromState(MachineState state) {
 		if (state instanceof BooleanMachineState) {
 			boolean[] props = new boolean[numProps];
-			boolean[] baseProps = ((BooleanMachineState) state).getBooleanContents();
-			System.arraycopy(baseProps, 0, props, basePropStart, baseProps.length);
+			((BooleanMachineState) state).unpack(props, basePropStart);
 			return props;
 		} else {
 			Set<GdlSentence> initialTrueSentences = state.getContents();
@@ -401,6 +764,38 @@ public class BooleanPropNetStateMachine extends StateMachine {
 			return props;
 		}
 	}
+
+	/**
+	 * The current operator if it can work on off-heap buffers, null otherwise.
+	 */
+	private NativeOperator getDirectOperator() {
+		Operator current = operator;
+		if (current instanceof NativeOperator && directProps != null) {
+			return (NativeOperator) current;
+		}
+		return null;
+	}
+
+	/**
+	 * Clears this thread's off-heap buffer and sets the base propositions of
+	 * state in it. The buffer is reused by the next call on the same thread.
+	 */
+	private ByteBuffer initDirectPropositionsFromState(MachineState state) {
+		ByteBuffer props = directProps.get();
+		props.clear();
+		props.put(clearProps);
+		if (state instanceof BooleanMachineState) {
+			((BooleanMachineState) state).unpack(props, basePropStart);
+		} else {
+			Set<GdlSentence> initialTrueSentences = state.getContents();
+			for (GdlTerm propName : basePropMap.keySet()) {
+				if (initialTrueSentences.contains(propName.toSentence())) {
+					props.put(basePropMap.get(propName), (byte) 1);
+				}
+			}
+		}
+		return props;
+	}
 	
 	/**
 	 * This should compute the topological ordering of propositions. Each
@@ -415,47 +810,26 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	 *         set.
 	 */
 	public List<Proposition> getOrdering(int[] preferredOrdering) {
-		LinkedList<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the components in the PropNet
-		HashSet<Component> components = new HashSet<Component>(pnet.getComponents());
-		// Log.println('p', "Components: " + components);
-		
-		// All of the internal propositions in the prop net
-		HashSet<Proposition> propositions = new HashSet<Proposition>();
-		for (int i = internalPropStart; i < numProps; i++) {
-			propositions.add(propIndex[i]);
-		}
-		
-		// Remove all base propositions from components 
+		// The base and input propositions are set from the state and moves
+		Set<Proposition> sources = new HashSet<Proposition>();
 		for (int i = initIndex; i < inputPropStart; i++) {
-			components.remove(propIndex[i]);
-		}
-		
-		// TODO: Optimize this. Not efficient at all
-		Iterator<Component> componentIterator = components.iterator();
-		while (componentIterator.hasNext()) {
-			Component component = componentIterator.next();
-			if ((component instanceof Proposition) && component.getInputs().size() < 1) {
-				componentIterator.remove();
-			}
+			sources.add(propIndex[i]);
 		}
-		
-		// Use DFS to compute topological sort of propositions
+
+		List<Proposition> targets = new ArrayList<Proposition>();
 		if (preferredOrdering == null) { // sort all
-			while (!propositions.isEmpty()) {
-				Proposition currComponent = propositions.iterator().next();
-				BooleanPropNet.topologicalSort(currComponent, order, propositions, components);
+			// Internal propositions are indexed by level; starting from the
+			// deepest lets each one pull in its own inputs right before it
+			for (int i = numProps - 1; i >= internalPropStart; i--) {
+				targets.add(propIndex[i]);
 			}
 		}
 		else {
 			for (int i = 0; i < preferredOrdering.length; i++) {
-				Proposition currComponent = propIndex[preferredOrdering[i]];
-				if (propositions.contains(currComponent)) {
-					BooleanPropNet.topologicalSort(currComponent, order, propositions, components);
-				}
+				targets.add(propIndex[preferredOrdering[i]]);
 			}
 		}
+		List<Proposition> order = BooleanPropNet.depthFirstSort(targets, sources);
 		
 		//DEBUG  Log.println('p', "Order: " + order);
 		return order;
@@ -492,11 +866,13 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	public Map<Integer, int[]> getLatchesOn(int propNum) {
 		Map<Integer, int[]> affectingLatches = new HashMap<Integer, int[]>(); 
 		for (int latch : trueLatches) {
-			if (sameTurnEffects.get(latch).containsKey(propNum)) {
-				affectingLatches.put(latch, sameTurnEffects.get(latch).get(propNum));
+			int[] effect = propEffects.getSameTurnEffect(latch, propNum);
+			if (effect != null) {
+				affectingLatches.put(latch, effect);
 			}
-			if (nextTurnEffects.get(latch).containsKey(propNum)) {
-				affectingLatches.put(latch, nextTurnEffects.get(latch).get(propNum));
+			effect = propEffects.getNextTurnEffect(latch, propNum);
+			if (effect != null) {
+				affectingLatches.put(latch, effect);
 			}
 		}
 		return affectingLatches;
@@ -510,27 +886,87 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		return inputPropStart;
 	}
 
-	/* Helper methods */
+	/** Number of legal propositions of the role'th role */
+	public int getNumLegals(int role) {
+		return legalPropMap[role].length;
+	}
+
+	/** The move made legal by legalPropMap[role][legalIndex] */
+	public Move getLegalMove(int role, int legalIndex) {
+		return moveIndex[legalInputMap[legalPropMap[role][legalIndex]]];
+	}
+
+	/** The input proposition made legal by legalPropMap[role][legalIndex] */
+	public int getLegalInput(int role, int legalIndex) {
+		return legalInputMap[legalPropMap[role][legalIndex]];
+	}
+
 	/**
-	 * The Input propositions are indexed by (does ?player ?action) This
-	 * translates a List of Moves (backed by a sentence that is simply ?action)
-	 * to GdlTerms that can be used to get Propositions from inputPropositions
-	 * and accordingly set their values etc. This is a naive implementation when
-	 * coupled with setting input values, feel free to change this for a more
-	 * efficient implementation.
-	 * 
-	 * @param moves
-	 * @return
+	 * Computes the legal moves of every role with a single propagation, as
+	 * bitsets: bit i of legals[role] is set if legalPropMap[role][i] holds in
+	 * state. The words of legals must be cleared beforehand.
 	 */
-	private List<GdlTerm> toDoes(List<Move> moves) {
-		List<GdlTerm> doeses = new ArrayList<GdlTerm>(moves.size());
-		Map<Role, Integer> roleIndices = getRoleIndices();
+	public void getLegalBits(MachineState state, long[][] legals) {
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			direct.propagateAllLegalsDirect(props);
+			for (int role = 0; role < legals.length; role++) {
+				int[] roleLegals = legalPropMap[role];
+				for (int i = 0; i < roleLegals.length; i++) {
+					if (props.get(roleLegals[i]) != 0)
+						legals[role][i >>> 6] |= 1L << (i & 63);
+				}
+			}
+			return;
+		}
+		boolean[] props = initBasePropositionsFromState(state);
+		operator.propagateAllLegals(props);
+		for (int role = 0; role < legals.length; role++) {
+			int[] roleLegals = legalPropMap[role];
+			for (int i = 0; i < roleLegals.length; i++) {
+				if (props[roleLegals[i]])
+					legals[role][i >>> 6] |= 1L << (i & 63);
+			}
+		}
+	}
 
-		for (int i = 0; i < rolesList.size(); i++) {
-			int index = roleIndices.get(rolesList.get(i));
-			doeses.add(ProverQueryBuilder.toDoes(rolesList.get(i), moves.get(index)).toTerm());
+	/* Helper methods */
+	/**
+	 * The Input propositions are indexed by (does ?player ?action). This
+	 * translates a List of Moves (backed by a sentence that is simply ?action),
+	 * indexed like getRoles(), to the indices of their input propositions. A
+	 * move with no input proposition is given -1.
+	 */
+	public int[] toJointMove(List<Move> moves) {
+		int[] jointMove = new int[roleIndex.length];
+		for (int role = 0; role < roleIndex.length; role++) {
+			jointMove[role] = getInput(role, moves.get(role));
 		}
-		return doeses;
+		return jointMove;
+	}
+
+	/**
+	 * The input proposition of the role'th role making move, or -1 if there
+	 * is none.
+	 */
+	public int getInput(int role, Move move) {
+		Integer input = inputPropMap.get(ProverQueryBuilder.toDoes(roleIndex[role], move).toTerm());
+		return input == null ? -1 : input;
+	}
+
+	/** The move of the input proposition input */
+	public Move getMove(int input) {
+		return moveIndex[input];
+	}
+
+	/** The index of role in getRoles() */
+	public int getRoleIndex(Role role) {
+		return roleMap.get(role);
+	}
+
+	public int getNumRoles() {
+		return roleIndex.length;
 	}
 
 	/**
@@ -577,6 +1013,22 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	}
 
 	private void initOperator(boolean isFactor) {
+		if (operatorLock == null)
+			operatorLock = new Object();
+
+		// The interpreted operator needs no orderings or compilation, so the
+		// machine is usable while the generated operators are being built
+		flatPropNet = new FlatPropNet(propIndex, propMap, basePropStart, inputPropStart, internalPropStart);
+		interpretedOperator = buildInterpretedOperator();
+		operator = interpretedOperator;
+		Log.println('y', (interpretedOperator instanceof ParallelOperator ? "Parallel" : "Interpreted") + " operator built");
+		if (!isFactor) {
+			if (description != null) {
+				saveSnapshot();
+			}
+			StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_INTERPRETED, this);
+		}
+
 		List<Proposition> transitionOrdering = new ArrayList<Proposition>();
 		for (int i = basePropStart; i < inputPropStart; i++) {
 			transitionOrdering.add(propIndex[i]);
@@ -602,6 +1054,19 @@ public class BooleanPropNetStateMachine extends StateMachine {
 			legalOrderings.add(legalOrderingForRole);
 		}
 		
+		int numLegals = 0;
+		for (int role = 0; role < roleIndex.length; role++) {
+			numLegals += legalPropMap[role].length;
+		}
+		int[] allLegals = new int[numLegals];
+		numLegals = 0;
+		for (int role = 0; role < roleIndex.length; role++) {
+			System.arraycopy(legalPropMap[role], 0, allLegals, numLegals, legalPropMap[role].length);
+			numLegals += legalPropMap[role].length;
+		}
+		List<Proposition> allLegalOrdering = getOrdering(allLegals);
+		Log.println('r', "All legals ordering : " + allLegalOrdering.size());
+
 		List<List<Proposition>> goalOrderings = new LinkedList<List<Proposition>>();
 		for (int role = 0; role < roleIndex.length; role++) {
 			int[][] goalPropsAndValues = goalPropMap[role];
@@ -613,49 +1078,208 @@ public class BooleanPropNetStateMachine extends StateMachine {
 			Log.println('r', "Role " + role + " goal ordering : " + goalOrderings.get(role).size());
 		}
 		
-		operatorLock = new Object();
-
-		long javassistStart = System.currentTimeMillis();
-		Log.println('y', "Javassist started!");
-		javassistOperator = OperatorFactory.buildOperator(propMap, transitionOrdering, defaultOrdering, terminalOrdering, legalOrderings, goalOrderings,
-				legalPropMap, legalInputMap, inputPropStart, inputPropMap.size(), terminalIndex);
-		setOperator(true);
-		Log.println('y', "Javassist done!");
-		long javassistEnd = System.currentTimeMillis();
+		// Compiled operators are cached on disk under this key
+		OperatorCache.Key key = new OperatorCache.Key(flatPropNet, propMap);
+		key.add(transitionOrdering).add(defaultOrdering).add(terminalOrdering).add(allLegalOrdering);
+		for (List<List<Proposition>> legalOrderingForRole : legalOrderings) {
+			key.add(legalOrderingForRole.size());
+			for (List<Proposition> legalOrdering : legalOrderingForRole) {
+				key.add(legalOrdering);
+			}
+		}
+		key.add(goalOrderings.size());
+		for (List<Proposition> goalOrdering : goalOrderings) {
+			key.add(goalOrdering);
+		}
+		key.add(inputPropMap.size()).add(terminalIndex).add(OperatorFactory.getMaxMethodBytes());
+		String operatorKey = key.toString();
+
+		if (useIncrementalOperator) {
+			javassistOperator = new IncrementalOperator(flatPropNet, terminalIndex);
+			javassistOperator.initMonteCarlo(legalPropMap, legalInputMap, null, null);
+			setOperator(true);
+			Log.println('y', "Incremental operator built");
+		}
+		else if (useParallelOperator && interpretedOperator instanceof ParallelOperator) {
+			// Compiled code is single threaded; a net this wide is faster
+			// evaluated a level at a time on every core
+			javassistOperator = interpretedOperator;
+			setOperator(true);
+			Log.println('y', "Parallel operator kept in place of Javassist");
+		}
+		else {
+			Log.println('y', "Javassist started!");
+			javassistOperator = OperatorFactory.buildOperator(operatorKey, propMap, transitionOrdering, defaultOrdering, terminalOrdering, legalOrderings, allLegalOrdering,
+					goalOrderings, legalPropMap, legalInputMap, inputPropStart, inputPropMap.size(), terminalIndex);
+			setOperator(true);
+			Log.println('y', "Javassist done!");
+		}
 		
 		if (!isFactor) {
-			StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_JAVASSIST, this);
-			if (javassistEnd - javassistStart < 1000 * 10 && this.pnet.getComponents().size() < 5000) { 
-				Log.println('y', "Native started!");
-				nativeOperator = NativeOperatorFactory.buildOperator(propMap, transitionOrdering, defaultOrdering, terminalOrdering, legalOrderings,
-						goalOrderings, legalPropMap, legalInputMap, inputPropStart, inputPropMap.size(), terminalIndex, goalPropMap[roleMap.get(mainRole)]);
-				if (nativeOperator != null) {
-					setOperator(false);
-					Log.println('y', "Native done!");
-					StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_NATIVE, this);
-				}
-			}
+			int[][] mainGoals = goalPropMap[roleMap.get(mainRole)];
+			List<Proposition> decisionOrdering = getOrdering(getDecisionProps(mainGoals));
+			String bitOperatorKey = new OperatorCache.Key(flatPropNet, propMap).add(transitionOrdering).add(defaultOrdering).add(decisionOrdering)
+					.add(OperatorFactory.getMaxMethodBytes()).toString();
+			bitPlayout = new BitPlayout(legalPropMap, legalInputMap, mainGoals, inputPropStart, internalPropStart, terminalIndex);
+			javassistBitOperator = OperatorFactory.buildBitOperator(bitOperatorKey, propMap, transitionOrdering, defaultOrdering, decisionOrdering);
+			setOperator(true);
+			Log.println('y', "Javassist bit operator done!");
 
-			if (rolesList.size() == 1) { // Try to factor only on single-player games 
+			StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_JAVASSIST, this);
+			// The Javassist machine is already in use, so the native operator is
+			// built whatever the size of the game
+			Log.println('y', "Native started!");
+			nativeOperator = NativeOperatorFactory.buildOperator(operatorKey, propMap, transitionOrdering, defaultOrdering, terminalOrdering, legalOrderings,
+					allLegalOrdering, goalOrderings, legalPropMap, legalInputMap, inputPropStart, inputPropMap.size(), terminalIndex, mainGoals);
+			nativeBitOperator = NativeOperatorFactory.buildBitOperator(bitOperatorKey, propMap, transitionOrdering, defaultOrdering, decisionOrdering);
+			if (nativeOperator != null) {
+				clearProps = new byte[numProps];
+				directProps = newDirectProps(numProps);
+				setOperator(false);
+				Log.println('y', "Native done!");
+				StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_NATIVE, this);
+			}
+
+			// Only single-player games are factored: the subgames of a game
+			// with opponents race each other, which searching them one at a
+			// time does not see
+			if (rolesList.size() == 1) {
 				Log.println('y', "Factoring started!");
-				factor();
+				BooleanPropNetStateMachine[] minions = factor();
+				if (minions != null) {
+					synchronized (factorLock) {
+						factorBaseProps = mapFactorBaseProps(minions);
+						factors = minions;
+					}
+					StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_FACTOR, this);
+				}
 				Log.println('y', "Factoring done!");
 			}
 			
 		}
 	}
 	
+	private static ThreadLocal<ByteBuffer> newDirectProps(final int bufferSize) {
+		return new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocateDirect(bufferSize);
+			}
+		};
+	}
+
+	/**
+	 * The table-driven operator every machine starts on. Nets with a
+	 * dependency level wide enough to split get the level-parallel one.
+	 */
+	private Operator buildInterpretedOperator() {
+		Operator interpreted;
+		if (ParallelOperator.isWorthwhile(flatPropNet)) {
+			interpreted = new ParallelOperator(flatPropNet, terminalIndex, legalPropMap, goalPropMap);
+		} else {
+			interpreted = new InterpretedOperator(flatPropNet, terminalIndex, legalPropMap, goalPropMap);
+		}
+		interpreted.initMonteCarlo(legalPropMap, legalInputMap, null, null);
+		return interpreted;
+	}
+	
+	/**
+	 * Selects the incremental operator in place of the Javassist one for
+	 * machines initialized from now on.
+	 */
+	public static void setUseIncrementalOperator(boolean useIncremental) {
+		useIncrementalOperator = useIncremental;
+	}
+
+	/**
+	 * Keeps the level-parallel operator in place of the Javassist one for
+	 * machines initialized from now on whose nets are wide enough for it.
+	 */
+	public static void setUseParallelOperator(boolean useParallel) {
+		useParallelOperator = useParallel;
+	}
+
+	public static void setLatchAnalysisTime(long timeLimit) {
+		latchAnalysisTime = timeLimit;
+	}
+
+	/**
+	 * Sets the number of native threads multiMonte uses when the native
+	 * operator is available. With a single thread the bit operator is
+	 * preferred.
+	 */
+	public static void setMonteCarloThreads(int threads) {
+		monteCarloThreads = Math.max(1, threads);
+	}
+
+	public static int getMonteCarloThreads() {
+		return monteCarloThreads;
+	}
+
 	public void setOperator(boolean toJavassist) {
 		synchronized(operatorLock) {
 			if (toJavassist) {
 				if (javassistOperator != null)
 					operator = javassistOperator;
+				if (javassistBitOperator != null)
+					bitOperator = javassistBitOperator;
 			}
 			else {
 				if (nativeOperator != null)
 					operator = nativeOperator;
+				if (nativeBitOperator != null)
+					bitOperator = nativeBitOperator;
+			}
+		}
+	}
+
+	/**
+	 * Stops using the native operator and releases its native state. Called
+	 * when the native operator has failed, and once the machine is no longer
+	 * used, as between games.
+	 */
+	public void disposeNativeOperator() {
+		synchronized(operatorLock) {
+			if (nativeOperator == null)
+				return;
+			if (operator == nativeOperator)
+				operator = (javassistOperator != null) ? javassistOperator : interpretedOperator;
+			((NativeOperator) nativeOperator).dispose();
+			nativeOperator = null;
+		}
+	}
+
+	/**
+	 * Falls back to the interpreted operator, for when the generated ones
+	 * have failed.
+	 */
+	public void setInterpretedOperator() {
+		synchronized(operatorLock) {
+			operator = interpretedOperator;
+			bitOperator = null;
+		}
+	}
+
+	/**
+	 * The propositions a playout needs before choosing moves: terminal, every
+	 * legal and the goals of the role being played out for.
+	 */
+	private int[] getDecisionProps(int[][] goals) {
+		List<Integer> props = new ArrayList<Integer>();
+		props.add(terminalIndex);
+		for (int role = 0; role < legalPropMap.length; role++) {
+			for (int legal : legalPropMap[role]) {
+				props.add(legal);
 			}
 		}
+		for (int[] goal : goals) {
+			props.add(goal[0]);
+		}
+		int[] result = new int[props.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = props.get(i);
+		}
+		return result;
 	}
 	
 	// The heuristic does not have access to most of the prop net info, so we pass in
@@ -664,9 +1288,16 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		int numGoals = goalPropMap[role].length;
 		goalValuesRef[0] = new int[numGoals];
 		significanceRef[0] = new float[numGoals][][];
+		boolean[] relevant = new boolean[numProps];
+		for (int propNum = 0; propNum < numProps; propNum++) {
+			// A machine loaded from a snapshot has no latches to rule any out
+			relevant[propNum] = relevantPropositions == null || relevantPropositions.contains(propIndex[propNum]);
+		}
+		float[][] significance = new float[2][numProps];
+		boolean[] pending = new boolean[numProps];
 		for (int goal = 0; goal < numGoals; goal++) {
 			// Log.println('x', "Sigs for role " + role + " and goal " + propIndex[goalPropMap[role][goal][0]]);
-			significanceRef[0][goal] = calculateGoalHeuristic(goalPropMap[role][goal][0]);
+			significanceRef[0][goal] = calculateGoalHeuristic(goalPropMap[role][goal][0], relevant, significance, pending);
 			goalValuesRef[0][goal] = goalPropMap[role][goal][1];
 			/*
 				for (int i = basePropStart; i < inputPropStart; i++) {
@@ -676,367 +1307,88 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		}
 	}
 	
-	private float[][] calculateGoalHeuristic(int goalNum) {
-		float[][] significance = new float[numProps][2];
-		significance[goalNum][0] = 1;
-		PriorityQueue<Integer> queue = new PriorityQueue<Integer>();
-		queue.add(-goalNum); // reverse of natural ordering desired
+	/**
+	 * Spreads the significance of goalNum back through the flattened gates
+	 * feeding it.
+	 * Gate inputs always have lower indices than their outputs, so a single
+	 * downward sweep visits every proposition after all of its contributions
+	 * have arrived. significance and pending are scratch arrays of numProps
+	 * entries, left cleared on return.
+	 *
+	 * @return {true significance, false significance} of every base proposition
+	 */
+	private float[][] calculateGoalHeuristic(int goalNum, boolean[] relevant, float[][] significance, boolean[] pending) {
+		float[] trueSignificances = significance[0];
+		float[] falseSignificances = significance[1];
+		trueSignificances[goalNum] = 1;
+		pending[goalNum] = true;
 		float trueSignificance, falseSignificance;
-		int maxPropNum = numProps;
-		while (!queue.isEmpty()) {
-			int propNum = -queue.poll();
-			if (propNum == maxPropNum) {
+		for (int propNum = goalNum; propNum >= internalPropStart; propNum--) {
+			if (!pending[propNum]) {
 				continue;
 			}
-			
-			maxPropNum = propNum;
-			Proposition prop = propIndex[propNum];
-			if (prop.getInputs().size() != 1) {
-				continue;
+			int start = flatPropNet.inputOffset[propNum];
+			int end = flatPropNet.inputOffset[propNum + 1];
+			int numInputs = 0;
+			for (int i = start; i < end; i++) {
+				if (relevant[flatPropNet.inputs[i]]) {
+					numInputs++;
+				}
 			}
-			Component connector = prop.getSingleInput();
-			//int initialInputSize = connector.getInputs().size();
-			Set<Component> inputs = new HashSet<Component>(connector.getInputs());
-			inputs.retainAll(relevantPropositions);
-			//inputs.removeAll(satisfiedLatches);
-			//Log.println('x', "Processing " + prop + " " + significance[propNum][0] + "," + significance[propNum][1] + " with connector " + connector + " to " + inputs);
-			if (connector instanceof And) {
-				trueSignificance = significance[propNum][0] / inputs.size();
-				falseSignificance = significance[propNum][1]; // * initialInputSize / inputs.size();
+			byte gate = flatPropNet.type[propNum];
+			if (gate == FlatPropNet.AND) {
+				trueSignificance = trueSignificances[propNum] / numInputs;
+				falseSignificance = falseSignificances[propNum];
 			}
-			else if (connector instanceof Or) {
-				trueSignificance = significance[propNum][0]; // * initialInputSize / inputs.size();
-				falseSignificance = significance[propNum][1] / inputs.size();
+			else if (gate == FlatPropNet.OR) {
+				trueSignificance = trueSignificances[propNum];
+				falseSignificance = falseSignificances[propNum] / numInputs;
 			}
-			else if (connector instanceof Not) {
-				trueSignificance = significance[propNum][1];
-				falseSignificance = significance[propNum][0];
+			else if (gate == FlatPropNet.NOT) {
+				trueSignificance = falseSignificances[propNum];
+				falseSignificance = trueSignificances[propNum];
 			}
 			else {
 				continue;
 			}
-			for(Component input : inputs) {
-				Integer prevPropNum = propMap.get(input);
-				if (prevPropNum != null) {
-					significance[prevPropNum][0] += trueSignificance;
-					significance[prevPropNum][1] += falseSignificance;
-					queue.add(-prevPropNum);
+			for (int i = start; i < end; i++) {
+				int prevPropNum = flatPropNet.inputs[i];
+				if (relevant[prevPropNum]) {
+					trueSignificances[prevPropNum] += trueSignificance;
+					falseSignificances[prevPropNum] += falseSignificance;
+					pending[prevPropNum] = true;
 				}
 			}
 		}
-		return Arrays.copyOfRange(significance, basePropStart, inputPropStart);
+		float[][] result = new float[inputPropStart - basePropStart][2];
+		for (int propNum = basePropStart; propNum < inputPropStart; propNum++) {
+			result[propNum - basePropStart][0] = trueSignificances[propNum];
+			result[propNum - basePropStart][1] = falseSignificances[propNum];
+		}
+		Arrays.fill(trueSignificances, 0, goalNum + 1, 0);
+		Arrays.fill(falseSignificances, 0, goalNum + 1, 0);
+		Arrays.fill(pending, 0, goalNum + 1, false);
+		return result;
 	}
 	
 	private void calculatePropEffects() {
 		long start = System.currentTimeMillis();
 		Log.println('l', "Begin latch calculations");
-		//sameTurnEffects = new int[numProps][numProps][2];
-		//nextTurnEffects = new int[numProps][numProps][2];
-		sameTurnEffects = new ArrayList<HashMap<Integer, int[]>>();
-		nextTurnEffects = new ArrayList<HashMap<Integer, int[]>>();
-		for (int propNum = 0; propNum < numProps; propNum++) {
-			sameTurnEffects.add(new HashMap<Integer, int[]>());
-			nextTurnEffects.add(new HashMap<Integer, int[]>());
+		propEffects = PropEffects.analyze(propIndex, propMap, goalPropMap, basePropStart, inputPropStart, internalPropStart, latchAnalysisTime);
+		if (propEffects.getRowsComplete() < numProps) {
+			Log.println('l', "Latch calculations stopped at the time limit after " + propEffects.getRowsComplete() + " of " + numProps + " propositions");
 		}
-		
-		Set<Integer> goalNums = new HashSet<Integer>();
-		for (int role = 0; role < goalPropMap.length; role++) {
-			for (int goal = 0; goal < goalPropMap[role].length; goal++) {
-				goalNums.add(goalPropMap[role][goal][0]);
-			}
-		}
-		
-		int[] sameTurnAr, sameTurnAr2, nextTurnAr;
-		for (int propNum = numProps - 1; propNum >= 0; propNum--) {
-			if (propNum >= inputPropStart && propNum < internalPropStart) {
-				for (int nextPropNum = inputPropStart; nextPropNum < internalPropStart; nextPropNum++) {
-					//sameTurnEffects[propNum][nextPropNum][1] = -1;
-					sameTurnAr = sameTurnEffects.get(propNum).get(nextPropNum);
-					if (sameTurnAr == null) {
-						sameTurnAr = new int[2];
-						sameTurnEffects.get(propNum).put(nextPropNum, sameTurnAr);
-					}
-					sameTurnAr[1] = -1;
-				}
-			}
-			if (goalNums.contains(propNum)) {
-	loop:		for (int role = 0; role < goalPropMap.length; role++) {
-					for (int goal = 0; goal < goalPropMap[role].length; goal++) {
-						if (propNum == goalPropMap[role][goal][0]) {
-							for (int otherGoal = 0; otherGoal < goalPropMap[role].length; otherGoal++) {
-								if (otherGoal == goal) {
-									continue;
-								}
-								sameTurnAr = sameTurnEffects.get(propNum).get(goalPropMap[role][otherGoal][0]);
-								if (sameTurnAr == null) {
-									sameTurnAr = new int[2];
-									sameTurnEffects.get(propNum).put(goalPropMap[role][otherGoal][0], sameTurnAr);
-								}
-								sameTurnAr[1] = -1;
-							}
-							break loop;
-						}
-					}
-				}
-			}
-			//sameTurnEffects[propNum][propNum][0] = -1;
-			//sameTurnEffects[propNum][propNum][1] = 1;
-			sameTurnAr = sameTurnEffects.get(propNum).get(propNum);
-			if (sameTurnAr == null) {
-				sameTurnAr = new int[2];
-				sameTurnEffects.get(propNum).put(propNum, sameTurnAr);
-			}
-			sameTurnAr[0] = -1;
-			sameTurnAr[1] = 1;
-			Proposition prop = propIndex[propNum];
-			for (Component output : prop.getOutputs()) {
-				{
-					Proposition nextProp = (Proposition) output.getSingleOutput();
-					if (!propMap.containsKey(nextProp))
-						continue;
-					//int nextPropNum = propMap.get(nextProp);	
-					//DEBUG  Log.println('b', "Reached " + output + " " + nextProp + " " + nextPropNum);
-				}
-				if ((output instanceof And || output instanceof Or) && output.getInputs().size() == 1) {
-					Proposition nextProp = (Proposition) output.getSingleOutput();
-					int nextPropNum = propMap.get(nextProp);
-					//sameTurnEffects[propNum][nextPropNum][0] = -1;
-					//sameTurnEffects[propNum][nextPropNum][1] = 1;
-					
-					
-					sameTurnAr = sameTurnEffects.get(propNum).get(nextPropNum);
-					if (sameTurnAr == null) {
-						sameTurnAr = new int[2];
-						sameTurnEffects.get(propNum).put(nextPropNum, sameTurnAr);
-					}
-					sameTurnAr[0] = -1;
-					sameTurnAr[1] = 1;
-					HashMap<Integer, int[]> map = sameTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						sameTurnAr2 = map.get(i);
-						for (int tf = 0; tf < 2; tf++) {
-							if (sameTurnAr2[tf] != 0) {
-								//sameTurnEffects[propNum][i][tf] = sameTurnAr2[tf];
-								sameTurnAr = sameTurnEffects.get(propNum).get(i);
-								if (sameTurnAr == null) {
-									sameTurnAr = new int[2];
-									sameTurnEffects.get(propNum).put(i, sameTurnAr);
-								}
-								sameTurnAr[tf] = sameTurnAr2[tf];
-							}
-						}
-					}
-					map = nextTurnEffects.get(nextPropNum);
-					for (Integer i : map.keySet()) {
-						nextTurnAr = map.get(i);
-						for (int tf = 0; tf < 2; tf++) {
-							if (nextTurnAr[tf] != 0) {
-								//nextTurnEffects[propNum][i][tf] = nextTurnAr[tf];
-								sameTurnAr = nextTurnEffects.get(propNum).get(i);
-								if (sameTurnAr == null) {
-									sameTurnAr = new int[2];
-									nextTurnEffects.get(propNum).put(i, sameTurnAr);
-								}
-								sameTurnAr[tf] = nextTurnAr[tf];
-							}
-						}
-					} 
-				}
-				else if (output instanceof And) {
-					Proposition nextProp = (Proposition) output.getSingleOutput();
-					int nextPropNum = propMap.get(nextProp);
-					//sameTurnEffects[propNum][nextPropNum][0] = -1;
-					
-					sameTurnAr = sameTurnEffects.get(propNum).get(nextPropNum);
-					if (sameTurnAr == null) {
-						sameTurnAr = new int[2];
-						sameTurnEffects.get(propNum).put(nextPropNum, sameTurnAr);
-					}
-					sameTurnAr[0] = -1;
-					HashMap<Integer, int[]> map = sameTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						sameTurnAr2 = map.get(i);
-						if (sameTurnAr2[0] != 0) {
-							//sameTurnEffects[propNum][i][0] = sameTurnAr2[0];
-							sameTurnAr = sameTurnEffects.get(propNum).get(i);
-							if (sameTurnAr == null) {
-								sameTurnAr = new int[2];
-								sameTurnEffects.get(propNum).put(i, sameTurnAr);
-							}
-							sameTurnAr[0] = sameTurnAr2[0];
-						}
-					}
-					map = nextTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						nextTurnAr = map.get(i);
-						if (nextTurnAr[0] != 0) {
-							//nextTurnEffects[propNum][i][0] = nextTurnAr[0];
-							sameTurnAr = nextTurnEffects.get(propNum).get(i);
-							if (sameTurnAr == null) {
-								sameTurnAr = new int[2];
-								nextTurnEffects.get(propNum).put(i, sameTurnAr);
-							}
-							sameTurnAr[0] = nextTurnAr[0];
-						}
-					}
-				}
-				else if (output instanceof Or) {
-					Proposition nextProp = (Proposition) output.getSingleOutput();
-					int nextPropNum = propMap.get(nextProp);
-					//sameTurnEffects[propNum][nextPropNum][1] = 1;
-					
-					
-					sameTurnAr = sameTurnEffects.get(propNum).get(nextPropNum);
-					if (sameTurnAr == null) {
-						sameTurnAr = new int[2];
-						sameTurnEffects.get(propNum).put(nextPropNum, sameTurnAr);
-					}
-					sameTurnAr[1] = 1;
-					HashMap<Integer, int[]> map = sameTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						sameTurnAr2 = map.get(i);
-						if (sameTurnAr2[1] != 0) {
-							//sameTurnEffects[propNum][i][1] = sameTurnAr2[1];
-							sameTurnAr = sameTurnEffects.get(propNum).get(i);
-							if (sameTurnAr == null) {
-								sameTurnAr = new int[2];
-								sameTurnEffects.get(propNum).put(i, sameTurnAr);
-							}
-							sameTurnAr[1] = sameTurnAr2[1];
-						}
-					}
 
-					map = nextTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						nextTurnAr = map.get(i);
-						if (nextTurnAr[1] != 0) {
-							//nextTurnEffects[propNum][i][1] = nextTurnAr[1];
-							sameTurnAr = nextTurnEffects.get(propNum).get(i);
-							if (sameTurnAr == null) {
-								sameTurnAr = new int[2];
-								nextTurnEffects.get(propNum).put(i, sameTurnAr);
-							}
-							sameTurnAr[1] = nextTurnAr[1];
-						}
-					}
-				}
-				else if (output instanceof Not) {
-					Proposition nextProp = (Proposition) output.getSingleOutput();
-					int nextPropNum = propMap.get(nextProp);
-					//sameTurnEffects[propNum][nextPropNum][0] = 1;
-					//sameTurnEffects[propNum][nextPropNum][1] = -1;
-					
-					sameTurnAr = sameTurnEffects.get(propNum).get(nextPropNum);
-					if (sameTurnAr == null) {
-						sameTurnAr = new int[2];
-						sameTurnEffects.get(propNum).put(nextPropNum, sameTurnAr);
-					}
-					sameTurnAr[0] = 1;
-					sameTurnAr[1] = -1;
-					HashMap<Integer, int[]> map = sameTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						sameTurnAr2 = map.get(i);
-						for (int tf = 0; tf < 2; tf++) {
-							if (sameTurnAr2[tf] != 0) {
-								//sameTurnEffects[propNum][i][1-tf] = sameTurnAr2[tf];
-								sameTurnAr = sameTurnEffects.get(propNum).get(i);
-								if (sameTurnAr == null) {
-									sameTurnAr = new int[2];
-									sameTurnEffects.get(propNum).put(i, sameTurnAr);
-								}
-								sameTurnAr[1-tf] = sameTurnAr2[tf];
-							}
-						}
-					}
-
-					map = nextTurnEffects.get(nextPropNum); 
-					for (Integer i : map.keySet()) {
-						nextTurnAr = map.get(i);
-						for (int tf = 0; tf < 2; tf++) {
-							if (nextTurnAr[tf] != 0) {
-								//nextTurnEffects[propNum][i][1-tf] = nextTurnAr[tf];
-								sameTurnAr = nextTurnEffects.get(propNum).get(i);
-								if (sameTurnAr == null) {
-									sameTurnAr = new int[2];
-									nextTurnEffects.get(propNum).put(i, sameTurnAr);
-								}
-								sameTurnAr[1-tf] = nextTurnAr[tf];
-							}
-						}
-					}
-				}
-				else if (output instanceof Transition) {
-					Proposition nextProp = (Proposition) output.getSingleOutput();
-					int nextPropNum = propMap.get(nextProp);
-					//nextTurnEffects[propNum][nextPropNum][0] = -1;
-					//nextTurnEffects[propNum][nextPropNum][1] = 1;
-					
-					nextTurnAr = nextTurnEffects.get(propNum).get(nextPropNum);
-					if (nextTurnAr == null) {
-						nextTurnAr = new int[2];
-						nextTurnEffects.get(propNum).put(nextPropNum, nextTurnAr);
-					}
-					nextTurnAr[0] = -1;
-					nextTurnAr[1] = 1;
-					//DEBUG  Log.println('v', "From " + propNum + " to " + nextPropNum);
-				}
-			}			
-		}
-		
-		// Compute nextTurnEffects
-		for (int index = 0; index < numProps; index++) {
-			List<Integer> queue = new LinkedList<Integer>();
-			boolean[] visited = new boolean[numProps];
-			queue.addAll(nextTurnEffects.get(index).keySet());
-			
-			while (!queue.isEmpty()) {
-				
-				int propNum = queue.remove(0);
-				visited[propNum] = true;
-				//DEBUG  Log.println('v', "At index " + index + " " + queue + " " + propIndex[index] + " " + propIndex[index].getOutputs() + " processing " + propIndex[propNum]);
-			
-				for (int tf = 0; tf < 2; tf++) {
-					if (nextTurnEffects.get(index).get(propNum)[tf] != 0) {
-						int effectOnPropNum = (nextTurnEffects.get(index).get(propNum)[tf] == 1) ? 1 : 0;
-						HashMap<Integer, int[]> map = sameTurnEffects.get(propNum);
-						for (Integer nextPropNum : map.keySet()) {
-							int value = map.get(nextPropNum)[effectOnPropNum];
-							if (value != 0) {
-								//nextTurnEffects[index][nextPropNum][tf] = value;
-								nextTurnAr = nextTurnEffects.get(index).get(nextPropNum);
-								if (nextTurnAr == null) {
-									nextTurnAr = new int[2];
-									nextTurnEffects.get(index).put(nextPropNum, nextTurnAr);
-								}
-								nextTurnAr[tf] = value;
-
-								if (!visited[nextPropNum]) {
-									queue.add(nextPropNum);
-									visited[nextPropNum] = true;
-								}
-								
-							}
-						}
-					}
-				}
-			}
-		}
-		
-		
 		trueLatches = new ArrayList<Integer>();
 		falseLatches = new ArrayList<Integer>();
 		satisfiedLatches = new HashSet<Proposition>();
 		relevantPropositions = new HashSet<Proposition>(this.propMap.keySet());
 		for (int index = 0; index < numProps; index++) {
-			HashMap<Integer, int[]> nextMap = nextTurnEffects.get(index);
-			if (nextMap.containsKey(index)) {
-				int[] ar = nextMap.get(index);
-				if (ar[0] == -1) {
-					falseLatches.add(index);
-				}
-				if (ar[1] == 1) {
-					trueLatches.add(index);
-				}
+			if (propEffects.isFalseLatch(index)) {
+				falseLatches.add(index);
+			}
+			if (propEffects.isTrueLatch(index)) {
+				trueLatches.add(index);
 			}
 		}
 		long end = System.currentTimeMillis();
@@ -1451,16 +1803,50 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	*/
 	
 	public long multiMonte(MachineState state, int probes){
+		return multiMonte(state, probes, null);
+	}
+
+	/**
+	 * Runs probes random playouts from state and returns the sum of the goal
+	 * values of the main role. Playouts run on native threads when the native
+	 * operator is available and more than one thread is allowed, and 64 at a
+	 * time on the bit operator otherwise.
+	 *
+	 * @param goalCounts if not null, receives the number of playouts that
+	 *        ended in each goal of the main role, in the order of its goal
+	 *        propositions
+	 */
+	public long multiMonte(MachineState state, int probes, int[] goalCounts){
 //		long start = System.currentTimeMillis();
 		long sum = 0;
-		if (operator instanceof NativeOperator) {
-			sum = ((NativeOperator)operator).multiMonte(initBasePropositionsFromState(state), probes);
+		BitOperator bits = bitOperator;
+		NativeOperator direct = getDirectOperator();
+		int threads = monteCarloThreads;
+		if (goalCounts != null) {
+			Arrays.fill(goalCounts, 0);
+		}
+		if (bits != null && !isParallelMonteCarlo()) {
+			for (int i = 0; i < probes; i += BitPlayout.LANES) {
+				sum += bitPlayout.playout(bits, initBitPropositionsFromState(state), BitPlayout.lanes(probes - i), null, goalCounts);
+			}
+		} else if (direct != null) {
+			sum = direct.multiMonte(initDirectPropositionsFromState(state), probes, threads, goalCounts);
+		} else if (operator instanceof NativeOperator) {
+			sum = ((NativeOperator)operator).multiMonte(initBasePropositionsFromState(state), probes, threads, goalCounts);
 		} else {
+			int[][] mainGoals = goalPropMap[roleMap.get(mainRole)];
 			for (int i = 0; i < probes; i++) {
 				MachineState newState = monteCarlo(state, null);
 				if (newState != null) {
 					try {
-						sum += getGoal(newState, mainRole);
+						int goal = getGoal(newState, mainRole);
+						sum += goal;
+						for (int g = 0; goalCounts != null && g < mainGoals.length; g++) {
+							if (mainGoals[g][1] == goal) {
+								goalCounts[g]++;
+								break;
+							}
+						}
 					} catch (GoalDefinitionException e) {
 						i--;
 					}
@@ -1476,12 +1862,96 @@ public class BooleanPropNetStateMachine extends StateMachine {
 	}
 
 	
+	/**
+	 * A layout for playoutStatistics over the roles, legal moves and goals of
+	 * this machine, with depths counted up to depthBuckets - 1.
+	 */
+	public PlayoutStatistics newPlayoutStatistics(int depthBuckets) {
+		return new PlayoutStatistics(legalPropMap, goalPropMap, inputPropStart, internalPropStart, terminalIndex, depthBuckets);
+	}
+
+	/**
+	 * Runs probes random playouts from state and writes their goal counts,
+	 * depth histogram and first move results for every role into stats,
+	 * which must hold at least statistics.size() entries. The native operator
+	 * gathers everything in one call, spread over the Monte Carlo threads.
+	 */
+	public void playoutStatistics(MachineState state, int probes, PlayoutStatistics statistics, int[] stats) {
+		NativeOperator direct = getDirectOperator();
+		Operator current = operator;
+		if (direct != null) {
+			direct.playoutStatistics(initDirectPropositionsFromState(state), probes, monteCarloThreads, statistics, stats);
+		} else if (current instanceof NativeOperator) {
+			((NativeOperator) current).playoutStatistics(initBasePropositionsFromState(state), probes, monteCarloThreads, statistics, stats);
+		} else {
+			current.playoutStatistics(initBasePropositionsFromState(state), probes, statistics, stats);
+		}
+	}
+
+	/**
+	 * Whether multiMonte spreads its playouts over several native threads.
+	 */
+	public boolean isParallelMonteCarlo() {
+		return monteCarloThreads > 1 && operator instanceof NativeOperator;
+	}
+
+	/**
+	 * Number of playouts monteCarloBatch can run for the cost of about one.
+	 */
+	public int getMonteCarloBatchSize() {
+		return bitOperator != null ? BitPlayout.LANES : 1;
+	}
+
+	/**
+	 * Runs probes random playouts, at most getMonteCarloBatchSize() of them at
+	 * once, and returns the sum of the goal values of the main role. depth[0]
+	 * is set to the total depth over all playouts if depth is not null.
+	 */
+	public long monteCarloBatch(MachineState state, int probes, int[] depth) {
+		BitOperator bits = bitOperator;
+		if (bits != null && probes <= BitPlayout.LANES) {
+			return bitPlayout.playout(bits, initBitPropositionsFromState(state), BitPlayout.lanes(probes), depth);
+		}
+		long sum = 0;
+		int totalDepth = 0;
+		int[] probeDepth = new int[1];
+		for (int i = 0; i < probes; i++) {
+			try {
+				sum += getGoal(monteCarlo(state, probeDepth), mainRole);
+				totalDepth += probeDepth[0];
+			} catch (GoalDefinitionException e) {
+				e.printStackTrace();
+			}
+		}
+		if (depth != null)
+			depth[0] = totalDepth;
+		return sum;
+	}
+
+	private long[] initBitPropositionsFromState(MachineState state) {
+		boolean[] baseProps = initBasePropositionsFromState(state);
+		long[] props = new long[numProps];
+		for (int i = basePropStart; i < inputPropStart; i++) {
+			if (baseProps[i])
+				props[i] = -1L;
+		}
+		return props;
+	}
+
 	public BooleanMachineState monteCarlo(MachineState state, int[] depth) {
+		NativeOperator direct = getDirectOperator();
+		if (direct != null) {
+			ByteBuffer props = initDirectPropositionsFromState(state);
+			int d = direct.monteCarlo(props);
+			if (depth != null)
+				depth[0] = d;
+			return new BooleanMachineState(props, basePropStart, inputPropStart, propIndex);
+		}
 		boolean[] props = initBasePropositionsFromState(state);
 		int d = operator.monteCarlo(props);
 		if (depth != null)
 			depth[0] = d;
-		return new BooleanMachineState(Arrays.copyOfRange(props, basePropStart, inputPropStart), propIndex);
+		return new BooleanMachineState(props, basePropStart, inputPropStart, propIndex);
 	}
 	
 		
@@ -1491,9 +1961,61 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		for (int[][] roleGoals : goalPropMap) {
 			numGoals += roleGoals.length;
 		}
-		return "BPNSM with " + (basePropStart - initIndex) + " init, " + (inputPropStart - basePropStart) + " base, " + (internalPropStart - inputPropStart) + " input, " + (numProps - internalPropStart) + " internal, " + numGoals + " goals, terminal = " + terminalIndex + " using " + (operator == nativeOperator ? "native" : "javassist"); 
+		return "BPNSM with " + (basePropStart - initIndex) + " init, " + (inputPropStart - basePropStart) + " base, " + (internalPropStart - inputPropStart) + " input, " + (numProps - internalPropStart) + " internal, " + numGoals + " goals, terminal = " + terminalIndex + " using " + (operator == null ? "no operator" : operator == nativeOperator ? "native" : (operator instanceof ParallelOperator ? "parallel" : (operator == interpretedOperator ? "interpreted" : (operator instanceof IncrementalOperator ? "incremental" : "javassist")))); 
 	}
 	
+	/**
+	 * The machines of the independent subgames of this game, or null if it
+	 * was not factored, as games with more than one role never are. Their
+	 * goals are disjunctive: the game ends as soon as any of them does.
+	 */
+	public BooleanPropNetStateMachine[] getFactors() {
+		return factors;
+	}
+
+	/**
+	 * Builds the operators of the factors, which factor() leaves unbuilt
+	 * until they are about to be searched.
+	 */
+	public void initFactorOperators() {
+		synchronized (factorLock) {
+			if (factors == null)
+				return;
+			for (BooleanPropNetStateMachine minion : factors) {
+				if (minion.interpretedOperator == null) {
+					minion.initOperator(true);
+					Log.println('f', "Factor operators built for " + minion.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Projects state onto the base propositions of the factor'th factor.
+	 */
+	public MachineState getFactorState(MachineState state, int factor) {
+		BooleanPropNetStateMachine minion = factors[factor];
+		int[] baseProps = factorBaseProps[factor];
+		boolean[] props = initBasePropositionsFromState(state);
+		boolean[] factorProps = new boolean[baseProps.length];
+		for (int i = 0; i < baseProps.length; i++) {
+			factorProps[i] = props[baseProps[i]];
+		}
+		return new BooleanMachineState(factorProps, minion.propIndex);
+	}
+
+	private int[][] mapFactorBaseProps(BooleanPropNetStateMachine[] minions) {
+		int[][] map = new int[minions.length][];
+		for (int i = 0; i < minions.length; i++) {
+			BooleanPropNetStateMachine minion = minions[i];
+			map[i] = new int[minion.inputPropStart - minion.basePropStart];
+			for (int prop = minion.basePropStart; prop < minion.inputPropStart; prop++) {
+				map[i][prop - minion.basePropStart] = basePropMap.get(minion.propIndex[prop].getName());
+			}
+		}
+		return map;
+	}
+
 	/** Factoring logic */
 	
 	public BooleanPropNetStateMachine[] factor() {
@@ -1588,6 +2110,14 @@ public class BooleanPropNetStateMachine extends StateMachine {
 					addGoals(referenceMachine.propIndex[goalProp[0]], referenceMachine.propIndex[goalProp[0]], factors, referenceMachine.roleIndex[role], new LinkedList<Component>(), numFactorsFound);
 				}
 			}
+			for (Factor factor : factors) {
+				for (Component c : factor.goalTrails) {
+					if (c instanceof Proposition) {
+						factor.internalProps.add((Proposition) c);
+					}
+					factor.components.add(c);
+				}
+			}
 /*
 			// Ensure all inputs are present first
 			for (Factor factor : factors) {
@@ -1626,18 +2156,33 @@ public class BooleanPropNetStateMachine extends StateMachine {
 			Log.println('g', "Input lists " + temp);
 			*/
 
+			int[] inputRole = new int[referenceMachine.numProps];
+			for (int role = 0; role < referenceMachine.legalPropMap.length; role++) {
+				for (int legal : referenceMachine.legalPropMap[role]) {
+					inputRole[referenceMachine.legalInputMap[legal]] = role;
+				}
+			}
 			for (Proposition reachableProp : highestLevel.keySet()) {
 				if (highestLevel.get(reachableProp).size() > 1) {
 					for (Factor factor : factors) {
 						if (factor.internalProps.contains(reachableProp)) {
-							// Keep only one path
+							// Keep only one path per role: moves of one role into the same
+							// disjunction are interchangeable, moves of different roles are not
 							Component connector = reachableProp.getSingleInput();
-							Component randomInputPath = connector.getInputs().iterator().next();
+							Set<Integer> rolesKept = new HashSet<Integer>();
 							for (Component input : connector.getInputs()) {
-								//Log.println('g', "Removing " + input + " " + randomInputPath + " " + input.hashCode() + " in factor " + k);
-								if (input == randomInputPath) {
+								Component top = input;
+								while (top.getInputs().size() == 1) {
+									top = top.getSingleInput();
+								}
+								Integer topIndex = referenceMachine.propMap.get(top);
+								if (topIndex == null || topIndex < inputPropStart || topIndex >= internalPropStart) {
+									continue; // Not a move
+								}
+								if (rolesKept.add(inputRole[topIndex])) {
 									continue;
 								}
+								//Log.println('g', "Removing " + input + " " + input.hashCode() + " in factor " + k);
 								Component currentToHide = input;
 								while (true) {
 									factor.components.remove(currentToHide);
@@ -1772,11 +2317,15 @@ public class BooleanPropNetStateMachine extends StateMachine {
 				minions[i] = new CachedBooleanPropNetStateMachine(mainRole);
 				minions[i].initializeFactor(factors.get(i).components, rolesList);
 				minions[i].pnet.renderToFile(PNET_FOLDER + File.separator + "factor" + i + ".dot");
-				if (i == 0) {
-					minions[i].calculatePropEffects();
-					minions[i].initOperator(true);
-					StateMachineFactory.pushMachine(StateMachineFactory.CACHED_BPNSM_FACTOR, minions[i]);
+				for (int role = 0; role < minions[i].legalPropMap.length; role++) {
+					if (minions[i].legalPropMap[role] == null || minions[i].legalPropMap[role].length == 0) {
+						// A role that cannot move in a subgame can't play it on its own
+						Log.println('h', "Factor " + i + " has no moves for " + minions[i].roleIndex[role]);
+						return null;
+					}
 				}
+				// Operators are built by initFactorOperators, if the factors are searched
+				minions[i].calculatePropEffects();
 				Log.println('f', "Factor " + i + " : " + minions[i].toString());
 				for (int role = 0; role < minions[i].legalPropMap.length; role++) {
 					for (int legal = 0; legal < minions[i].legalPropMap[role].length; legal++) {
@@ -1806,12 +2355,9 @@ public class BooleanPropNetStateMachine extends StateMachine {
 					factor.goalProps.put(role, new HashSet<Proposition>());
 				}
 				factor.goalProps.get(role).add(goalProp);
-				for (Component c : trail) {
-					if (c instanceof Proposition) {
-						factor.internalProps.add((Proposition) c);
-					}
-					factor.components.add(c);
-				}
+				// Added once every goal is placed, so that a trail shared by the goals
+				// of several roles doesn't tie them all to the first factor it reached
+				factor.goalTrails.addAll(trail);
 				numFactorsFound[0]++;
 				return; // Only one factor will contain prop
 			}
@@ -1954,6 +2500,7 @@ public class BooleanPropNetStateMachine extends StateMachine {
 		public Set<Component> components;
 		//assert(everything will be OK) /*of course, the assert fails*/
 		public Set<Proposition> internalProps;
+		public Set<Component> goalTrails;
 		public Factor(Proposition terminalProp) {
 			this.terminalProp = terminalProp;
 			this.components = new HashSet<Component>();
@@ -1962,6 +2509,7 @@ public class BooleanPropNetStateMachine extends StateMachine {
 			this.baseProps = new HashSet<Proposition>();
 			this.inputProps = new HashSet<Proposition>();
 			this.legalInputMap = new HashMap<Proposition, Proposition>();
+			this.goalTrails = new HashSet<Component>();
 		}
 		
 		@Override
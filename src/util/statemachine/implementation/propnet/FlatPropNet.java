@@ -0,0 +1,315 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.Map;
+
+import util.propnet.architecture.Component;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+
+/**
+ * Array form of a BooleanPropNet, indexed the same way as propMap. Every base
+ * and internal proposition is described by a gate type and a slice of the
+ * inputs array; inputs that are not in propMap never change and are folded
+ * into the gate. The fanout arrays list, for every proposition, the internal
+ * propositions that read it.
+ *
+ * Instances are immutable once built and may be shared between operators and
+ * threads.
+ */
+public class FlatPropNet {
+	public static final byte FALSE = 0;
+	public static final byte TRUE = 1;
+	public static final byte AND = 2;
+	public static final byte OR = 3;
+	public static final byte NOT = 4;
+	public static final byte COPY = 5;
+
+	final int numProps;
+	final int basePropStart;
+	final int inputPropStart;
+	final int internalPropStart;
+
+	/** Gate type of every base (its transition) and internal proposition */
+	final byte[] type;
+	/** inputs[inputOffset[p], inputOffset[p+1]) are the inputs of p */
+	final int[] inputOffset;
+	final int[] inputs;
+	/** fanout[fanoutOffset[p], fanoutOffset[p+1]) are the internal props reading p */
+	final int[] fanoutOffset;
+	final int[] fanout;
+
+	public FlatPropNet(Proposition[] propIndex, Map<Proposition, Integer> propMap, int basePropStart, int inputPropStart, int internalPropStart) {
+		this.numProps = propIndex.length;
+		this.basePropStart = basePropStart;
+		this.inputPropStart = inputPropStart;
+		this.internalPropStart = internalPropStart;
+		this.type = new byte[numProps];
+		this.inputOffset = new int[numProps + 1];
+
+		int[][] propInputs = new int[numProps][];
+		int numInputs = 0;
+		for (int i = 0; i < numProps; i++) {
+			if (i >= basePropStart && i < inputPropStart) {
+				propInputs[i] = flattenTransition(i, propIndex[i], propMap);
+			} else if (i >= internalPropStart) {
+				propInputs[i] = flattenInternal(i, propIndex[i], propMap);
+			} else {
+				propInputs[i] = new int[0];
+			}
+			numInputs += propInputs[i].length;
+		}
+
+		this.inputs = new int[numInputs];
+		int offset = 0;
+		for (int i = 0; i < numProps; i++) {
+			inputOffset[i] = offset;
+			System.arraycopy(propInputs[i], 0, inputs, offset, propInputs[i].length);
+			offset += propInputs[i].length;
+		}
+		inputOffset[numProps] = offset;
+
+		this.fanoutOffset = new int[numProps + 1];
+		this.fanout = new int[countFanout()];
+		fillFanout();
+	}
+
+	/**
+	 * Wraps gate arrays that were flattened earlier, as stored by
+	 * PropNetSnapshot. The arrays are not copied.
+	 */
+	public FlatPropNet(int basePropStart, int inputPropStart, int internalPropStart, byte[] type, int[] inputOffset, int[] inputs) {
+		this.numProps = type.length;
+		this.basePropStart = basePropStart;
+		this.inputPropStart = inputPropStart;
+		this.internalPropStart = internalPropStart;
+		this.type = type;
+		this.inputOffset = inputOffset;
+		this.inputs = inputs;
+		this.fanoutOffset = new int[numProps + 1];
+		this.fanout = new int[countFanout()];
+		fillFanout();
+	}
+
+	/** Fills fanoutOffset from the inputs of the internal props and returns the total */
+	private int countFanout() {
+		for (int i = internalPropStart; i < numProps; i++) {
+			for (int j = inputOffset[i]; j < inputOffset[i + 1]; j++) {
+				fanoutOffset[inputs[j] + 1]++;
+			}
+		}
+		for (int i = 0; i < numProps; i++) {
+			fanoutOffset[i + 1] += fanoutOffset[i];
+		}
+		return fanoutOffset[numProps];
+	}
+
+	private void fillFanout() {
+		int[] fill = new int[numProps];
+		for (int i = internalPropStart; i < numProps; i++) {
+			for (int j = inputOffset[i]; j < inputOffset[i + 1]; j++) {
+				int input = inputs[j];
+				fanout[fanoutOffset[input] + fill[input]++] = i;
+			}
+		}
+	}
+
+	private int[] flattenTransition(int index, Proposition proposition, Map<Proposition, Integer> propMap) {
+		if (proposition.getInputs().size() < 1) {
+			type[index] = FALSE;
+			return new int[0];
+		}
+		Component comp = proposition.getSingleInput();
+		if (comp instanceof Constant) {
+			type[index] = comp.getValue() ? TRUE : FALSE;
+		} else if (comp instanceof Transition) {
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				type[index] = comp.getSingleInput().getValue() ? TRUE : FALSE;
+			} else {
+				type[index] = COPY;
+				return new int[] { propMap.get(comp.getSingleInput()) };
+			}
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		return new int[0];
+	}
+
+	private int[] flattenInternal(int index, Proposition proposition, Map<Proposition, Integer> propMap) {
+		Component comp = proposition.getSingleInput();
+		if (comp instanceof Constant) {
+			type[index] = comp.getValue() ? TRUE : FALSE;
+		} else if (comp instanceof Not) {
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				type[index] = comp.getSingleInput().getValue() ? FALSE : TRUE;
+			} else {
+				type[index] = NOT;
+				return new int[] { propMap.get(comp.getSingleInput()) };
+			}
+		} else if (comp instanceof And || comp instanceof Or) {
+			// A constant input either decides the gate or can be dropped
+			boolean isAnd = comp instanceof And;
+			int[] connected = new int[comp.getInputs().size()];
+			int count = 0;
+			for (Component prop : comp.getInputs()) {
+				if (!propMap.containsKey(prop)) {
+					if (prop.getValue() != isAnd) {
+						type[index] = isAnd ? FALSE : TRUE;
+						return new int[0];
+					}
+				} else {
+					connected[count++] = propMap.get(prop);
+				}
+			}
+			if (count == 0) {
+				type[index] = isAnd ? TRUE : FALSE;
+				return new int[0];
+			}
+			type[index] = isAnd ? AND : OR;
+			int[] result = new int[count];
+			System.arraycopy(connected, 0, result, 0, count);
+			return result;
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		return new int[0];
+	}
+
+	/**
+	 * Computes the value of an internal proposition from the current values of
+	 * its inputs.
+	 */
+	public final boolean evaluate(int prop, boolean[] values) {
+		int start = inputOffset[prop];
+		int end = inputOffset[prop + 1];
+		switch (type[prop]) {
+		case AND:
+			for (int i = start; i < end; i++) {
+				if (!values[inputs[i]])
+					return false;
+			}
+			return true;
+		case OR:
+			for (int i = start; i < end; i++) {
+				if (values[inputs[i]])
+					return true;
+			}
+			return false;
+		case NOT:
+			return !values[inputs[start]];
+		case COPY:
+			return values[inputs[start]];
+		case TRUE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** Evaluates props[from, to) in index order */
+	public final void evaluateRange(boolean[] props, int from, int to) {
+		for (int i = from; i < to; i++) {
+			props[i] = evaluate(i, props);
+		}
+	}
+
+	/** Evaluates the given internal propositions, which must be in index order */
+	public final void evaluateAll(boolean[] props, int[] ordering) {
+		for (int i = 0; i < ordering.length; i++) {
+			props[ordering[i]] = evaluate(ordering[i], props);
+		}
+	}
+
+	/**
+	 * The internal propositions that the targets depend on, the targets
+	 * included, in index order. Evaluating them in that order computes the
+	 * targets from the base and input propositions.
+	 */
+	public int[] getCone(int[] targets) {
+		boolean[] inCone = new boolean[numProps];
+		int[] stack = new int[numProps];
+		int size = 0;
+		for (int target : targets) {
+			if (target >= internalPropStart && !inCone[target]) {
+				inCone[target] = true;
+				stack[size++] = target;
+			}
+		}
+		int count = size;
+		while (size > 0) {
+			int prop = stack[--size];
+			for (int i = inputOffset[prop]; i < inputOffset[prop + 1]; i++) {
+				int input = inputs[i];
+				if (input >= internalPropStart && !inCone[input]) {
+					inCone[input] = true;
+					stack[size++] = input;
+					count++;
+				}
+			}
+		}
+		int[] cone = new int[count];
+		int index = 0;
+		for (int i = internalPropStart; i < numProps; i++) {
+			if (inCone[i])
+				cone[index++] = i;
+		}
+		return cone;
+	}
+
+	/**
+	 * Splits ordering, which must list internal propositions in index order,
+	 * into runs in which no proposition reads another, so the propositions
+	 * of a run can be evaluated in any order once the runs before it are
+	 * done. Run l is ordering[offsets[l], offsets[l + 1]). BooleanPropNet
+	 * indexes internal propositions by dependency level, so the runs are the
+	 * levels.
+	 *
+	 * @return offsets
+	 */
+	public int[] getLevelOffsets(int[] ordering) {
+		int[] runOf = new int[numProps];
+		int[] offsets = new int[ordering.length + 1];
+		int numRuns = 0;
+		for (int k = 0; k < ordering.length; k++) {
+			int prop = ordering[k];
+			boolean dependent = numRuns == 0;
+			for (int i = inputOffset[prop]; i < inputOffset[prop + 1] && !dependent; i++) {
+				dependent = runOf[inputs[i]] == numRuns;
+			}
+			if (dependent) {
+				offsets[numRuns++] = k;
+			}
+			runOf[prop] = numRuns;
+		}
+		offsets[numRuns] = ordering.length;
+		int[] result = new int[numRuns + 1];
+		System.arraycopy(offsets, 0, result, 0, numRuns + 1);
+		return result;
+	}
+
+	/** Copies the value feeding every base proposition into it */
+	public final void transition(boolean[] props) {
+		for (int i = basePropStart; i < inputPropStart; i++) {
+			props[i] = evaluate(i, props);
+		}
+	}
+
+	public int getNumProps() {
+		return numProps;
+	}
+
+	public int getBasePropStart() {
+		return basePropStart;
+	}
+
+	public int getInputPropStart() {
+		return inputPropStart;
+	}
+
+	public int getInternalPropStart() {
+		return internalPropStart;
+	}
+}
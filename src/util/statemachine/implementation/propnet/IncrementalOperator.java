@@ -0,0 +1,176 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Operator that remembers the values of the last propagation and only
+ * re-evaluates the fan-out cone of the base and input propositions that
+ * changed since then. Internal propositions are indexed in topological order,
+ * so pending propositions are processed lowest index first and each one is
+ * evaluated at most once per call.
+ *
+ * The cached values are shared by all callers, so propagation is synchronized.
+ */
+public class IncrementalOperator extends Operator {
+	private final FlatPropNet net;
+	private final int terminalIndex;
+
+	private final boolean[] values;
+	private final boolean[] queued;
+	private final int[] heap;
+	private int heapSize;
+	private boolean primed;
+
+	private int[][] legals;
+	private int[] counts;
+
+	public IncrementalOperator(FlatPropNet net, int terminalIndex) {
+		this.net = net;
+		this.terminalIndex = terminalIndex;
+		this.values = new boolean[net.numProps];
+		this.queued = new boolean[net.numProps];
+		this.heap = new int[net.numProps];
+		this.heapSize = 0;
+		this.primed = false;
+	}
+
+	@Override
+	public void transition(boolean[] props) {
+		net.transition(props);
+	}
+
+	@Override
+	public synchronized void propagateInternal(boolean[] props) {
+		int internalStart = net.internalPropStart;
+		if (!primed) {
+			System.arraycopy(props, 0, values, 0, internalStart);
+			net.evaluateRange(values, internalStart, net.numProps);
+			primed = true;
+		} else {
+			for (int i = 0; i < internalStart; i++) {
+				if (props[i] != values[i]) {
+					values[i] = props[i];
+					enqueueFanout(i);
+				}
+			}
+			while (heapSize > 0) {
+				int prop = poll();
+				queued[prop] = false;
+				boolean value = net.evaluate(prop, values);
+				if (value != values[prop]) {
+					values[prop] = value;
+					enqueueFanout(prop);
+				}
+			}
+		}
+		System.arraycopy(values, internalStart, props, internalStart, net.numProps - internalStart);
+	}
+
+	// Every internal proposition is kept up to date, so the restricted
+	// propagations cost no more than the general one
+
+	@Override
+	public void propagateTerminalOnly(boolean[] props) {
+		propagateInternal(props);
+	}
+
+	@Override
+	public void propagateLegalOnly(boolean[] props, int role, int legalIndex) {
+		propagateInternal(props);
+	}
+
+	@Override
+	public void propagateAllLegals(boolean[] props) {
+		propagateInternal(props);
+	}
+
+	@Override
+	public void propagateGoalOnly(boolean[] props, int role) {
+		propagateInternal(props);
+	}
+
+	@Override
+	public synchronized int monteCarlo(boolean[] props) {
+		int depth = 0;
+		while (true) {
+			Arrays.fill(props, net.inputPropStart, net.internalPropStart, false);
+			getAllLegals(props, legals, counts);
+			for (int role = 0; role < legalPropMap.length; role++) {
+				if (counts[role] > 0) {
+					int legal = legalPropMap[role][legals[role][rand.nextInt(counts[role])]];
+					props[legalInputMap[legal]] = true;
+				}
+			}
+			propagateInternal(props);
+			if (props[terminalIndex])
+				return depth;
+			transition(props);
+			depth++;
+		}
+	}
+
+	@Override
+	public void initMonteCarlo(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues) {
+		this.legalPropMap = legalPropMap;
+		this.legalInputMap = legalInputMap;
+		this.rand = new Random();
+		this.legals = new int[legalPropMap.length][];
+		for (int role = 0; role < legalPropMap.length; role++) {
+			legals[role] = new int[legalPropMap[role].length];
+		}
+		this.counts = new int[legalPropMap.length];
+	}
+
+	/**
+	 * A new operator on the same net with its own cached values.
+	 */
+	@Override
+	public Operator fork() {
+		IncrementalOperator copy = new IncrementalOperator(net, terminalIndex);
+		copy.initMonteCarlo(legalPropMap, legalInputMap, null, null);
+		return copy;
+	}
+
+	private void enqueueFanout(int prop) {
+		for (int i = net.fanoutOffset[prop]; i < net.fanoutOffset[prop + 1]; i++) {
+			int out = net.fanout[i];
+			if (!queued[out]) {
+				queued[out] = true;
+				offer(out);
+			}
+		}
+	}
+
+	// Binary min-heap of pending proposition indices
+
+	private void offer(int prop) {
+		int pos = heapSize++;
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (heap[parent] <= prop)
+				break;
+			heap[pos] = heap[parent];
+			pos = parent;
+		}
+		heap[pos] = prop;
+	}
+
+	private int poll() {
+		int result = heap[0];
+		int last = heap[--heapSize];
+		int pos = 0;
+		int half = heapSize >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			if (child + 1 < heapSize && heap[child + 1] < heap[child])
+				child++;
+			if (last <= heap[child])
+				break;
+			heap[pos] = heap[child];
+			pos = child;
+		}
+		heap[pos] = last;
+		return result;
+	}
+}
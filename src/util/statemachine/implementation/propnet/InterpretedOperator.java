@@ -0,0 +1,135 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Operator that interprets a FlatPropNet directly. It is much slower than a
+ * generated operator but needs nothing beyond the flat arrays, so a machine
+ * can run on it while its generated operators are still being compiled.
+ *
+ * The restricted propagations evaluate only the cone of the propositions they
+ * are asked for. No state is kept between calls, so any number of threads may
+ * use the same instance.
+ */
+public class InterpretedOperator extends Operator {
+	protected final FlatPropNet net;
+	protected final int terminalIndex;
+
+	protected final int[] terminalCone;
+	protected final int[] allLegalsCone;
+	protected final int[][] goalCones;
+
+	/**
+	 * @param goalPropMap the {goal prop, goal value} pairs of every role
+	 */
+	public InterpretedOperator(FlatPropNet net, int terminalIndex, int[][] legalPropMap, int[][][] goalPropMap) {
+		this.net = net;
+		this.terminalIndex = terminalIndex;
+		this.terminalCone = net.getCone(new int[] { terminalIndex });
+
+		int numLegals = 0;
+		for (int role = 0; role < legalPropMap.length; role++) {
+			numLegals += legalPropMap[role].length;
+		}
+		int[] allLegals = new int[numLegals];
+		numLegals = 0;
+		for (int role = 0; role < legalPropMap.length; role++) {
+			System.arraycopy(legalPropMap[role], 0, allLegals, numLegals, legalPropMap[role].length);
+			numLegals += legalPropMap[role].length;
+		}
+		this.allLegalsCone = net.getCone(allLegals);
+
+		this.goalCones = new int[goalPropMap.length][];
+		for (int role = 0; role < goalPropMap.length; role++) {
+			int[] goalProps = new int[goalPropMap[role].length];
+			for (int i = 0; i < goalProps.length; i++) {
+				goalProps[i] = goalPropMap[role][i][0];
+			}
+			goalCones[role] = net.getCone(goalProps);
+		}
+	}
+
+	/**
+	 * An operator sharing the net and cones of copy.
+	 */
+	protected InterpretedOperator(InterpretedOperator copy) {
+		this.net = copy.net;
+		this.terminalIndex = copy.terminalIndex;
+		this.terminalCone = copy.terminalCone;
+		this.allLegalsCone = copy.allLegalsCone;
+		this.goalCones = copy.goalCones;
+	}
+
+	@Override
+	public void transition(boolean[] props) {
+		net.transition(props);
+	}
+
+	@Override
+	public void propagateInternal(boolean[] props) {
+		net.evaluateRange(props, net.internalPropStart, net.numProps);
+	}
+
+	@Override
+	public void propagateTerminalOnly(boolean[] props) {
+		net.evaluateAll(props, terminalCone);
+	}
+
+	@Override
+	public void propagateLegalOnly(boolean[] props, int role, int legalIndex) {
+		net.evaluateAll(props, allLegalsCone);
+	}
+
+	@Override
+	public void propagateAllLegals(boolean[] props) {
+		net.evaluateAll(props, allLegalsCone);
+	}
+
+	@Override
+	public void propagateGoalOnly(boolean[] props, int role) {
+		net.evaluateAll(props, goalCones[role]);
+	}
+
+	@Override
+	public int monteCarlo(boolean[] props) {
+		int[][] legals = new int[legalPropMap.length][];
+		for (int role = 0; role < legalPropMap.length; role++) {
+			legals[role] = new int[legalPropMap[role].length];
+		}
+		int[] counts = new int[legalPropMap.length];
+		int depth = 0;
+		while (true) {
+			Arrays.fill(props, net.inputPropStart, net.internalPropStart, false);
+			getAllLegals(props, legals, counts);
+			for (int role = 0; role < legalPropMap.length; role++) {
+				if (counts[role] > 0) {
+					int legal = legalPropMap[role][legals[role][rand.nextInt(counts[role])]];
+					props[legalInputMap[legal]] = true;
+				}
+			}
+			propagateInternal(props);
+			if (props[terminalIndex])
+				return depth;
+			transition(props);
+			depth++;
+		}
+	}
+
+	@Override
+	public void initMonteCarlo(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues) {
+		this.legalPropMap = legalPropMap;
+		this.legalInputMap = legalInputMap;
+		this.rand = new Random();
+	}
+
+	/**
+	 * An operator sharing the cones of this one, with its own generator.
+	 */
+	@Override
+	public Operator fork() {
+		Operator copy = new InterpretedOperator(this);
+		copy.initMonteCarlo(legalPropMap, legalInputMap, null, null);
+		return copy;
+	}
+}
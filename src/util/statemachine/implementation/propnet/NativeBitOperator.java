@@ -0,0 +1,9 @@
+package util.statemachine.implementation.propnet;
+
+/**
+ * Base class of the bit operators generated by NativeOperatorFactory. Each
+ * build defines its own subclass whose native methods are bound to its own
+ * library.
+ */
+public abstract class NativeBitOperator extends BitOperator {
+}
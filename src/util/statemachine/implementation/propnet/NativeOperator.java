@@ -1,35 +1,161 @@
 package util.statemachine.implementation.propnet;
 
+import java.nio.ByteBuffer;
 
-public class NativeOperator extends Operator {
-	
-	public NativeOperator(String libPath) {
-		System.load(libPath);
-	}
+/**
+ * Base class of the operators generated by NativeOperatorFactory. Each build
+ * defines its own subclass, bound to its own library, whose native methods
+ * implement the propagation. Playout state lives in a native struct owned by
+ * this instance and passed to every call that needs it, so instances are
+ * independent and may be used from several threads at once.
+ *
+ * Besides the boolean[] methods of Operator, every propagation is available
+ * on a direct ByteBuffer holding one byte per proposition. The native code
+ * works on such buffers in place, so no proposition array is copied on the way
+ * in or out of a call.
+ */
+public abstract class NativeOperator extends Operator implements Cloneable {
+	/** Address of the native state created by createHandle */
+	private volatile long handle;
+	private int[] goalProps;
+	private int[] goalValues;
 
 	@Override
-	public native void transition(boolean[] props);
-	
-	@Override
-	public native void propagateInternal(boolean[] props);
+	public int monteCarlo(boolean[] props) {
+		return playout(getHandle(), props);
+	}
+
+	public long multiMonte(boolean[] props, int probes) {
+		return multiPlayout(getHandle(), props, probes);
+	}
+
+	public int monteCarlo(ByteBuffer props) {
+		return playoutDirect(getHandle(), props);
+	}
+
+	public long multiMonte(ByteBuffer props, int probes) {
+		return multiPlayoutDirect(getHandle(), props, probes);
+	}
+
+	/**
+	 * Runs probes playouts spread over native threads, each with its own
+	 * generator and scratch buffer.
+	 *
+	 * @param goalCounts if not null, receives the number of playouts that
+	 *        ended in each of the goals given to initMonteCarlo
+	 * @return the sum of the goal values reached
+	 */
+	public long multiMonte(boolean[] props, int probes, int threads, int[] goalCounts) {
+		return parallelPlayout(getHandle(), props, probes, threads, goalCounts);
+	}
+
+	public long multiMonte(ByteBuffer props, int probes, int threads, int[] goalCounts) {
+		return parallelPlayoutDirect(getHandle(), props, probes, threads, goalCounts);
+	}
 
 	@Override
-	public native void propagate(boolean[] props);
-	
-	@Override
-	public native void propagateTerminalOnly(boolean[] props);
-	
-	@Override
-	public native void propagateLegalOnly(boolean[] props, int role, int legalIndex);
-	
-	@Override
-	public native void propagateGoalOnly(boolean[] props, int role);
-	
+	public void playoutStatistics(boolean[] props, int probes, PlayoutStatistics statistics, int[] stats) {
+		playoutStatistics(props, probes, 1, statistics, stats);
+	}
+
+	/**
+	 * Gathers the statistics of probes playouts, spread over native threads,
+	 * with a single call into the library.
+	 */
+	public void playoutStatistics(boolean[] props, int probes, int threads, PlayoutStatistics statistics, int[] stats) {
+		checkSize(statistics, stats);
+		playoutStatistics(getHandle(), props, probes, threads, statistics.getLayout(), stats);
+	}
+
+	public void playoutStatistics(ByteBuffer props, int probes, int threads, PlayoutStatistics statistics, int[] stats) {
+		checkSize(statistics, stats);
+		playoutStatisticsDirect(getHandle(), props, probes, threads, statistics.getLayout(), stats);
+	}
+
+	private static void checkSize(PlayoutStatistics statistics, int[] stats) {
+		if (stats.length < statistics.size())
+			throw new IllegalArgumentException("Statistics need " + statistics.size() + " entries, got " + stats.length);
+	}
+
 	@Override
-	public native int monteCarlo(boolean[] props);
-	
+	public synchronized void initMonteCarlo(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues) {
+		dispose();
+		this.legalPropMap = legalPropMap;
+		this.legalInputMap = legalInputMap;
+		this.goalProps = goalProps;
+		this.goalValues = goalValues;
+		this.handle = createHandle(legalPropMap, legalInputMap, goalProps, goalValues);
+	}
+
+	/**
+	 * A new operator bound to the same library, with native state of its
+	 * own. The instance is cloned rather than constructed, since the library
+	 * is already loaded.
+	 */
 	@Override
-	public native void initMonteCarlo(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues);
-	
-	public native long multiMonte(boolean[] props, int probes);
+	public synchronized Operator fork() {
+		NativeOperator copy;
+		try {
+			copy = (NativeOperator) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		copy.handle = 0;
+		copy.initMonteCarlo(legalPropMap, legalInputMap, goalProps, goalValues);
+		return copy;
+	}
+
+	/** The native state, which must not have been released */
+	private long getHandle() {
+		long current = handle;
+		if (current == 0)
+			throw new IllegalStateException("Native operator used after dispose");
+		return current;
+	}
+
+	/**
+	 * Releases the native state. The operator cannot run playouts afterwards.
+	 * The state is not freed by the garbage collector, so the owner of the
+	 * operator, and of every fork of it, must call this once it is done.
+	 */
+	public synchronized void dispose() {
+		if (handle != 0) {
+			freeHandle(handle);
+			handle = 0;
+		}
+	}
+
+	public abstract void transitionDirect(ByteBuffer props);
+
+	public abstract void propagateInternalDirect(ByteBuffer props);
+
+	public abstract void propagateDirect(ByteBuffer props);
+
+	public abstract void propagateTerminalOnlyDirect(ByteBuffer props);
+
+	public abstract void propagateLegalOnlyDirect(ByteBuffer props, int role, int legalIndex);
+
+	public abstract void propagateAllLegalsDirect(ByteBuffer props);
+
+	public abstract void propagateGoalOnlyDirect(ByteBuffer props, int role);
+
+	protected abstract int playout(long handle, boolean[] props);
+
+	protected abstract int playoutDirect(long handle, ByteBuffer props);
+
+	protected abstract long multiPlayoutDirect(long handle, ByteBuffer props, int probes);
+
+	protected abstract long multiPlayout(long handle, boolean[] props, int probes);
+
+	protected abstract long parallelPlayout(long handle, boolean[] props, int probes, int threads, int[] goalCounts);
+
+	protected abstract long parallelPlayoutDirect(long handle, ByteBuffer props, int probes, int threads, int[] goalCounts);
+
+	protected abstract void playoutStatistics(long handle, boolean[] props, int probes, int threads, int[] layout, int[] stats);
+
+	protected abstract void playoutStatisticsDirect(long handle, ByteBuffer props, int probes, int threads, int[] layout, int[] stats);
+
+	protected abstract long createHandle(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues);
+
+	protected abstract void freeHandle(long handle);
 }
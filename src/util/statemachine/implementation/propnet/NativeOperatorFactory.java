@@ -9,7 +9,17 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.Modifier;
 import player.gamer.statemachine.eggplant.misc.Log;
 import util.propnet.architecture.Component;
 import util.propnet.architecture.components.And;
@@ -20,67 +30,112 @@ import util.propnet.architecture.components.Proposition;
 import util.propnet.architecture.components.Transition;
 
 public class NativeOperatorFactory {
-	private static final String GEN_DIR = "gen";
-	private static String fileName = "NativeOperator";
-	private static final String libPath = GEN_DIR + File.separator + "lib" + fileName + ".so";
-	private static final String path = GEN_DIR + File.separator + fileName + ".c";
-	private static final String HEADER_NAME = "util_statemachine_implementation_propnet_NativeOperator.h";
+	private static final String PACKAGE = "util.statemachine.implementation.propnet.";
+	private static final String OPERATOR_NAME = "NativeOperator";
+	private static final String BIT_OPERATOR_NAME = "NativeBitOperator";
 
-	private static final String PREFIX = "Java_util_statemachine_implementation_propnet_NativeOperator_";
+	private static final String JNI_PREFIX = "Java_util_statemachine_implementation_propnet_";
 	private static final String PROPAGATE = "propagate";
 	private static final String TRANSITION = "transition";
 	private static final String INTERNAL = "propagateInternal";
 	private static final String TERMINAL = "propagateTerminalOnly";
 	private static final String LEGAL = "propagateLegalOnly";
+	private static final String ALL_LEGALS = "propagateAllLegals";
 	private static final String GOAL = "propagateGoalOnly";
 	private static final String MONTE_CARLO = "monteCarlo";
 	private static final String MULTI_MONTE = "multiMonte";
+	private static final String PARALLEL_MONTE = "parallelMonte";
+	private static final String STATS_PLAYOUT = "statsPlayout";
+	private static final String DECISION = "propagateDecision";
+	private static final String DIRECT = "Direct";
+	private static final String BUFFER = "java.nio.ByteBuffer";
+	private static final String DEFAULT_JNI_INCLUDE = "/usr/lib/jvm/java-6-sun/include";
+	/** Characters of gate code per C function */
+	private static final int PIECE_LENGTH = 50000;
 
+	/** Return type, name and parameter types of the methods each generated library implements */
+	private static final String[][] OPERATOR_NATIVES = {
+		{ "void", TRANSITION, "boolean[]" },
+		{ "void", INTERNAL, "boolean[]" },
+		{ "void", PROPAGATE, "boolean[]" },
+		{ "void", TERMINAL, "boolean[]" },
+		{ "void", LEGAL, "boolean[]", "int", "int" },
+		{ "void", ALL_LEGALS, "boolean[]" },
+		{ "void", GOAL, "boolean[]", "int" },
+		{ "int", "playout", "long", "boolean[]" },
+		{ "long", "multiPlayout", "long", "boolean[]", "int" },
+		{ "long", "parallelPlayout", "long", "boolean[]", "int", "int", "int[]" },
+		{ "void", "playoutStatistics", "long", "boolean[]", "int", "int", "int[]", "int[]" },
+		{ "void", TRANSITION + DIRECT, BUFFER },
+		{ "void", INTERNAL + DIRECT, BUFFER },
+		{ "void", PROPAGATE + DIRECT, BUFFER },
+		{ "void", TERMINAL + DIRECT, BUFFER },
+		{ "void", LEGAL + DIRECT, BUFFER, "int", "int" },
+		{ "void", ALL_LEGALS + DIRECT, BUFFER },
+		{ "void", GOAL + DIRECT, BUFFER, "int" },
+		{ "int", "playout" + DIRECT, "long", BUFFER },
+		{ "long", "multiPlayout" + DIRECT, "long", BUFFER, "int" },
+		{ "long", "parallelPlayout" + DIRECT, "long", BUFFER, "int", "int", "int[]" },
+		{ "void", "playoutStatistics" + DIRECT, "long", BUFFER, "int", "int", "int[]", "int[]" },
+		{ "long", "createHandle", "int[][]", "int[]", "int[]", "int[]" },
+		{ "void", "freeHandle", "long" }
+	};
+	private static final String[][] BIT_OPERATOR_NATIVES = {
+		{ "void", TRANSITION, "long[]" },
+		{ "void", INTERNAL, "long[]" },
+		{ "void", PROPAGATE, "long[]" },
+		{ "void", DECISION, "long[]" }
+	};
+
+	private static String compilerFlags = "-O2";
+	private static String jniIncludes = null;
 	private static int constantProps = 0;
 	private static int internalProps = 0;
 
-	public static Operator buildOperator(Map<Proposition, Integer> propMap, List<Proposition> transitionOrdering, List<Proposition> internalOrdering,
-			List<Proposition> terminalOrdering, List<List<List<Proposition>>> legalOrderings, List<List<Proposition>> goalOrderings,
-			int[][] legalPropMap, int[] legalInputMap, int inputPropStart, int inputPropLength, int terminalIndex, int[][] goals) {
-		StringBuilder source = new StringBuilder();
-		
-		addPrefix(source);
-
-		addTransition(source, transitionOrdering, propMap);
-		addInternalPropagate(source, internalOrdering, propMap);
-		addPropagate(source);
-		addTerminalPropagate(source, terminalOrdering, propMap);
-		addLegalPropagate(source, legalOrderings, propMap);
-		addGoalPropagate(source, goalOrderings, propMap);
-		
-		addMonteCarlo(source, legalPropMap.length, legalPropMap[0].length, inputPropStart, inputPropLength, terminalIndex);
-		addMultiMonte(source, propMap.size(), goals.length);
-
+	/**
+	 * Builds the native operator for a circuit, or loads its class and library
+	 * from the operator cache if they were built for the same key before.
+	 *
+	 * @param key digest of the circuit and of every argument the generated
+	 *        code depends on, see OperatorCache.Key
+	 */
+	public static Operator buildOperator(String key, Map<Proposition, Integer> propMap, List<Proposition> transitionOrdering, List<Proposition> internalOrdering,
+			List<Proposition> terminalOrdering, List<List<List<Proposition>>> legalOrderings, List<Proposition> allLegalOrdering,
+			List<List<Proposition>> goalOrderings, int[][] legalPropMap, int[] legalInputMap, int inputPropStart, int inputPropLength,
+			int terminalIndex, int[][] goals) {
 		try {
-			FileWriter writer = new FileWriter(path);
-			writer.write(source.toString());
-			writer.close();
-			
-			Log.println('y', "Beginining Compilation");
-			
-			Runtime rt = Runtime.getRuntime();
-			Process p = rt.exec("gcc -shared -O2 -fPIC -std=c99 -I/usr/lib/jvm/java-6-sun/include -I/usr/lib/jvm/java-6-sun/include/linux " +
-					fileName + ".c -o lib" + fileName + ".so", null, new File(GEN_DIR));
-			if (p.waitFor() == 0) {
-				Log.println('m', "Compilation successful!");
-			} else {
-				BufferedReader stderr = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-				Log.println('m', "Compilation error!");
-				String line;
-				while ((line = stderr.readLine()) != null) {
-					Log.println('m', line);
+			// The class name is part of every JNI symbol, so it is derived from
+			// the key: circuits that differ never share a class or a library
+			String name = getName(OPERATOR_NAME, key);
+			Class<?> loaded = findCached(name);
+			if (loaded == null) {
+				String prefix = JNI_PREFIX + name + "_";
+				CSource source = new CSource();
+
+				addPrefix(source);
+
+				addTransition(source, transitionOrdering, propMap, prefix);
+				addInternalPropagate(source, internalOrdering, propMap, prefix);
+				addPropagate(source, prefix);
+				addTerminalPropagate(source, terminalOrdering, propMap, prefix);
+				addLegalPropagate(source, legalOrderings, propMap, prefix);
+				addMethod(source, generateInternalMethodBody(allLegalOrdering, propMap), ALL_LEGALS);
+				addWrapper(source, prefix, ALL_LEGALS, false, false);
+				addGoalPropagate(source, goalOrderings, propMap, prefix);
+
+				addMonteCarlo(source, prefix, inputPropStart, inputPropLength, terminalIndex);
+				addMultiMonte(source, prefix, propMap.size());
+				addStatsPlayout(source, inputPropStart, inputPropLength, terminalIndex);
+				addParallelMonte(source, prefix, propMap.size());
+
+				if (!compile(name, source)) {
+					return null;
 				}
-				return null;
+				loaded = defineNativeClass(name, OPERATOR_NAME, OPERATOR_NATIVES);
 			}
-			
-			NativeOperator no = new NativeOperator(System.getProperty("user.dir") + File.separator + libPath);
-			
-			
+
+			NativeOperator no = (NativeOperator) newInstance(loaded, name);
+
 			int[] goalProps = new int[goals.length];
 			int[] goalValues = new int[goals.length];
 			for (int i = 0; i < goals.length; i++) {
@@ -104,48 +159,381 @@ public class NativeOperatorFactory {
 		return null;
 	}
 	
-	private static void addPrefix(StringBuilder source) {
+	/**
+	 * Builds the native variant of the 64-lane bit operator.
+	 */
+	public static BitOperator buildBitOperator(String key, Map<Proposition, Integer> propMap, List<Proposition> transitionOrdering,
+			List<Proposition> internalOrdering, List<Proposition> decisionOrdering) {
+		try {
+			String name = getName(BIT_OPERATOR_NAME, key);
+			Class<?> loaded = findCached(name);
+			if (loaded == null) {
+				String prefix = JNI_PREFIX + name + "_";
+				CSource source = new CSource();
+				source.append("#include <jni.h>\n");
+
+				addBitMethod(source, transitionOrdering, propMap, TRANSITION, prefix);
+				addBitMethod(source, internalOrdering, propMap, INTERNAL, prefix);
+				addBitMethod(source, decisionOrdering, propMap, DECISION, prefix);
+				StringBuilder body = new StringBuilder();
+				body.append(INTERNAL + "(props);\n");
+				body.append(TRANSITION + "(props);\n");
+				addBitMethod(source, body, PROPAGATE, prefix);
+
+				if (!compile(name, source)) {
+					return null;
+				}
+				loaded = defineNativeClass(name, BIT_OPERATOR_NAME, BIT_OPERATOR_NATIVES);
+			}
+			return (BitOperator) newInstance(loaded, name);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (Exception e) {
+			Log.println('m', "Native bit operator not loaded: " + e);
+		} catch (UnsatisfiedLinkError e) {
+			Log.println('m', "Native bit operator not loaded: " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * The class and library name for key. The compiler flags are part of it,
+	 * since they change the library but not the generated source.
+	 */
+	private static String getName(String base, String key) {
+		return base + key + Integer.toHexString(compilerFlags.hashCode());
+	}
+
+	private static File getLibrary(String name) {
+		return OperatorCache.getFile("lib" + name + ".so");
+	}
+
+	private static Class<?> findCached(String name) {
+		if (!getLibrary(name).exists()) {
+			return null;
+		}
+		return OperatorCache.findClass(PACKAGE + name);
+	}
+
+	/**
+	 * Instantiates a class made by defineNativeClass, which loads its library.
+	 */
+	private static Object newInstance(Class<?> loaded, String name) throws Exception {
+		return loaded.getConstructor(String.class).newInstance(getLibrary(name).getAbsolutePath());
+	}
+
+	/**
+	 * Defines the subclass of superclassName whose native methods are bound to
+	 * the library built for name, and stores it in the operator cache. The
+	 * subclass loads the library itself so that it is registered with the
+	 * subclass's loader.
+	 */
+	private static Class<?> defineNativeClass(String name, String superclassName, String[][] natives) throws Exception {
+		ClassPool pool = ClassPool.getDefault();
+		CtClass nativeClass = pool.makeClass(PACKAGE + name);
+		nativeClass.setSuperclass(pool.get(PACKAGE + superclassName));
+		for (String[] signature : natives) {
+			CtClass[] parameters = new CtClass[signature.length - 2];
+			for (int i = 0; i < parameters.length; i++) {
+				parameters[i] = pool.get(signature[i + 2]);
+			}
+			// The Javassist compiler does not accept native declarations, so the method is assembled directly
+			CtMethod method = new CtMethod(pool.get(signature[0]), signature[1], parameters, nativeClass);
+			method.setModifiers(Modifier.PUBLIC | Modifier.NATIVE);
+			nativeClass.addMethod(method);
+		}
+		nativeClass.addConstructor(CtNewConstructor.make("public " + name + "(String libPath) { System.load(libPath); }", nativeClass));
+		return OperatorCache.defineClass(PACKAGE + name, nativeClass.toBytecode());
+	}
+
+	/**
+	 * Sets the optimisation flags passed to gcc for operators built from
+	 * then on. Position independent code and the JNI headers are always
+	 * added.
+	 */
+	public static void setCompilerFlags(String flags) {
+		compilerFlags = flags;
+	}
+
+	public static String getCompilerFlags() {
+		return compilerFlags;
+	}
+
+	/**
+	 * Compiles source into the cached library for name. Every translation
+	 * unit is compiled by its own gcc process, as many at once as there are
+	 * cores, and the objects are then linked. Sources and library are written
+	 * under temporary names and moved into place when complete, so players
+	 * sharing the cache never load a partial library.
+	 */
+	private static boolean compile(String name, CSource source) throws IOException, InterruptedException {
+		Log.println('y', "Beginining Compilation");
+		long start = System.currentTimeMillis();
+
+		List<String> units = source.getUnits(Runtime.getRuntime().availableProcessors());
+		File[] sourceFiles = new File[units.size()];
+		File[] tempSources = new File[units.size()];
+		File[] objects = new File[units.size()];
+		List<Callable<String>> compilations = new ArrayList<Callable<String>>();
+		for (int i = 0; i < units.size(); i++) {
+			sourceFiles[i] = OperatorCache.getFile(name + (i == 0 ? "" : "_" + i) + ".c");
+			tempSources[i] = OperatorCache.getTempFile(sourceFiles[i]);
+			objects[i] = OperatorCache.getTempFile(OperatorCache.getFile(name + "_" + i + ".o"));
+			FileWriter writer = new FileWriter(tempSources[i]);
+			writer.write(units.get(i));
+			writer.close();
+			compilations.add(gcc(compilerFlags + " -fPIC -pthread -std=c99 " + getJniIncludes() + " -c -x c " + tempSources[i].getName() +
+					" -o " + objects[i].getName()));
+		}
+
+		File library = getLibrary(name);
+		File tempLibrary = OperatorCache.getTempFile(library);
+		try {
+			String errors = null;
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(units.size(), Runtime.getRuntime().availableProcessors()));
+			try {
+				for (Future<String> result : pool.invokeAll(compilations)) {
+					if (errors == null) {
+						errors = result.get();
+					}
+				}
+			} catch (ExecutionException e) {
+				errors = e.getCause().toString();
+			} finally {
+				pool.shutdown();
+			}
+			if (errors == null) {
+				StringBuilder link = new StringBuilder("-shared -pthread");
+				for (File object : objects) {
+					link.append(" " + object.getName());
+				}
+				errors = gcc(link + " -o " + tempLibrary.getName()).call();
+			}
+			if (errors != null) {
+				Log.println('m', "Compilation error!");
+				Log.println('m', errors);
+				return false;
+			}
+			for (int i = 0; i < units.size(); i++) {
+				OperatorCache.commit(tempSources[i], sourceFiles[i]);
+			}
+			OperatorCache.commit(tempLibrary, library);
+			Log.println('m', "Compilation successful! " + units.size() + " units in " + (System.currentTimeMillis() - start) + " ms");
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			for (int i = 0; i < units.size(); i++) {
+				tempSources[i].delete();
+				objects[i].delete();
+			}
+			tempLibrary.delete();
+		}
+	}
+
+	/**
+	 * A gcc run in the cache directory, returning its output if it failed
+	 * and null if it succeeded.
+	 */
+	private static Callable<String> gcc(final String arguments) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				List<String> command = new ArrayList<String>();
+				command.add("gcc");
+				for (String argument : arguments.trim().split("\\s+")) {
+					command.add(argument);
+				}
+				ProcessBuilder builder = new ProcessBuilder(command);
+				builder.directory(OperatorCache.CACHE_DIR);
+				builder.redirectErrorStream(true);
+				Process p = builder.start();
+				// Read the output before waiting, so a chatty compiler never blocks
+				BufferedReader output = new BufferedReader(new InputStreamReader(p.getInputStream()));
+				StringBuilder lines = new StringBuilder();
+				String line;
+				while ((line = output.readLine()) != null) {
+					lines.append(line).append('\n');
+				}
+				return (p.waitFor() == 0) ? null : lines.toString();
+			}
+		};
+	}
+
+	/**
+	 * The include flags for the JNI headers of the running JVM. java.home is
+	 * the jre directory of a JDK up to Java 8 and the JDK itself afterwards,
+	 * so both places are tried before falling back to the old default.
+	 */
+	private static synchronized String getJniIncludes() {
+		if (jniIncludes == null) {
+			File home = new File(System.getProperty("java.home"));
+			File include = new File(home, "include");
+			if (!new File(include, "jni.h").exists()) {
+				include = new File(home.getParentFile(), "include");
+			}
+			if (!new File(include, "jni.h").exists()) {
+				include = new File(DEFAULT_JNI_INCLUDE);
+			}
+			StringBuilder flags = new StringBuilder("-I" + include.getAbsolutePath());
+			File[] platforms = include.listFiles();
+			if (platforms != null) {
+				for (File platform : platforms) {
+					if (new File(platform, "jni_md.h").exists()) {
+						flags.append(" -I" + platform.getAbsolutePath());
+					}
+				}
+			}
+			jniIncludes = flags.toString();
+			Log.println('y', "JNI includes: " + jniIncludes);
+		}
+		return jniIncludes;
+	}
+
+	/**
+	 * The C source of one operator. Gate code, which is nearly all of it, is
+	 * cut into functions of at most PIECE_LENGTH characters that are spread
+	 * over several translation units; everything else stays in the main unit.
+	 * Gate functions are hidden, so the same names in different libraries
+	 * never clash.
+	 */
+	private static class CSource {
+		private final StringBuilder declarations = new StringBuilder();
+		private final StringBuilder main = new StringBuilder();
+		private final List<String> pieces = new ArrayList<String>();
+
+		public CSource() {
+			declarations.append("#include <jni.h>\n");
+			declarations.append("#include <stdbool.h>\n");
+			declarations.append("#define HIDDEN __attribute__((visibility(\"hidden\")))\n");
+		}
+
+		public CSource append(CharSequence text) {
+			main.append(text);
+			return this;
+		}
+
+		/**
+		 * Adds a static function name(propsType *props) to the main unit
+		 * that runs body, which must consist of gate statements only, one
+		 * per line.
+		 */
+		public void addGateFunction(String name, String propsType, StringBuilder body) {
+			main.append("static void " + name + "(" + propsType + " *props) {\n");
+			int start = 0;
+			while (start < body.length()) {
+				int end = Math.min(start + PIECE_LENGTH, body.length());
+				if (end < body.length()) {
+					end = body.lastIndexOf("\n", end - 1) + 1;
+					if (end <= start) {
+						end = body.indexOf("\n", start) + 1;
+					}
+				}
+				String piece = name + "_" + pieces.size();
+				String signature = "void " + piece + "(" + propsType + " *props)";
+				declarations.append("HIDDEN " + signature + ";\n");
+				pieces.add(signature + " {\n" + body.substring(start, end) + "}\n");
+				main.append(piece + "(props);\n");
+				start = end;
+			}
+			main.append("}\n");
+		}
+
+		/**
+		 * The main unit followed by at most maxUnits - 1 units holding the
+		 * gate functions, balanced by length.
+		 */
+		public List<String> getUnits(int maxUnits) {
+			int numChunks = Math.max(1, Math.min(maxUnits - 1, pieces.size()));
+			StringBuilder[] chunks = new StringBuilder[numChunks];
+			for (int i = 0; i < numChunks; i++) {
+				chunks[i] = new StringBuilder(declarations);
+			}
+			for (String piece : pieces) {
+				StringBuilder shortest = chunks[0];
+				for (StringBuilder chunk : chunks) {
+					if (chunk.length() < shortest.length()) {
+						shortest = chunk;
+					}
+				}
+				shortest.append(piece);
+			}
+			List<String> units = new ArrayList<String>();
+			units.add(declarations.toString() + main);
+			for (StringBuilder chunk : chunks) {
+				units.add(chunk.toString());
+			}
+			return units;
+		}
+	}
+
+	private static void addPrefix(CSource source) {
 		//add includes
+		source.append("#include <jni.h>\n");
+		source.append("#include <pthread.h>\n");
 		source.append("#include <stdbool.h>\n");
+		source.append("#include <stdint.h>\n");
 		source.append("#include <stdlib.h>\n");
 		source.append("#include <string.h>\n");
-		source.append("#include \"" + HEADER_NAME + "\"\n");
-		
-		//add globals
+		source.append("#include <time.h>\n");
+
+		//add the per-instance state, reached through the handle held by the NativeOperator
+		source.append("typedef struct {\n");
+		source.append("jint numRoles;\n");
 		source.append("jint **legalPropMap;\n");
+		source.append("jint *numLegals;\n");
 		source.append("jint *legalInputMap;\n");
-		source.append("jint *numInputs;\n");
+		source.append("jint numGoals;\n");
 		source.append("jint *goalProps;\n");
 		source.append("jint *goalValues;\n");
+		source.append("} OperatorState;\n");
+
+		//add a per-thread xorshift generator, seeded on first use
+		source.append("static __thread uint64_t randomState = 0;\n");
+		source.append("static uint64_t nextRandom(void) {\n");
+		source.append("if (randomState == 0) randomState = ((uint64_t) time(NULL) << 32) ^ (uint64_t) (uintptr_t) &randomState ^ 0x9E3779B97F4A7C15ULL;\n");
+		source.append("randomState ^= randomState >> 12;\n");
+		source.append("randomState ^= randomState << 25;\n");
+		source.append("randomState ^= randomState >> 27;\n");
+		source.append("return randomState * 2685821657736338717ULL;\n");
+		source.append("}\n");
+		source.append("static int randomBelow(int bound) {\n");
+		source.append("return (int) ((nextRandom() >> 32) * (uint64_t) bound >> 32);\n");
+		source.append("}\n");
 	}
 
-	private static void addTransition(StringBuilder source, List<Proposition> transitionOrdering, Map<Proposition, Integer> propMap) {
+	private static void addTransition(CSource source, List<Proposition> transitionOrdering, Map<Proposition, Integer> propMap, String prefix) {
 		StringBuilder body = generateTransitionMethodBody(transitionOrdering, propMap);
 		addMethod(source, body, TRANSITION);
-		addWrapper(source, TRANSITION, false, false);
+		addWrapper(source, prefix, TRANSITION, false, false);
 	}
 
-	private static void addInternalPropagate(StringBuilder source, List<Proposition> internalOrdering, Map<Proposition, Integer> propMap) {
+	private static void addInternalPropagate(CSource source, List<Proposition> internalOrdering, Map<Proposition, Integer> propMap, String prefix) {
 		StringBuilder body = generateInternalMethodBody(internalOrdering, propMap);
 		addMethod(source, body, INTERNAL);
-		addWrapper(source, INTERNAL, false, false);
+		addWrapper(source, prefix, INTERNAL, false, false);
 	}
 
-	private static void addPropagate(StringBuilder source) {
+	private static void addPropagate(CSource source, String prefix) {
 		StringBuilder body = new StringBuilder();
 		body.append(INTERNAL + "(props);\n");
 		body.append(TRANSITION + "(props);\n");
-		addMethod(source, body, PROPAGATE);
-		addWrapper(source, PROPAGATE, false, false);
+		source.append("static void " + PROPAGATE + "(jboolean *props) {\n");
+		source.append(body);
+		source.append("}\n");
+		addWrapper(source, prefix, PROPAGATE, false, false);
 	}
 
-	private static void addTerminalPropagate(StringBuilder source, List<Proposition> terminalOrdering, Map<Proposition, Integer> propMap) {
+	private static void addTerminalPropagate(CSource source, List<Proposition> terminalOrdering, Map<Proposition, Integer> propMap, String prefix) {
 		StringBuilder body = generateInternalMethodBody(terminalOrdering, propMap);
 		addMethod(source, body, TERMINAL);
-		addWrapper(source, TERMINAL, false, false);
+		addWrapper(source, prefix, TERMINAL, false, false);
 	}
 
-	private static void addLegalPropagate(StringBuilder source, List<List<List<Proposition>>> legalOrderings, Map<Proposition, Integer> propMap) {
+	private static void addLegalPropagate(CSource source, List<List<List<Proposition>>> legalOrderings, Map<Proposition, Integer> propMap, String prefix) {
 		addRoleAuxDependentHelpers(legalOrderings, propMap, source, LEGAL);
 		
 		List<Integer> auxSizes = new ArrayList<Integer>();
@@ -155,19 +543,19 @@ public class NativeOperatorFactory {
 		StringBuilder body = generateRoleAuxDependentBody(LEGAL, auxSizes);
 		addRoleAuxDependentMethod(source, body, LEGAL);
 		
-		addWrapper(source, LEGAL, true, true);
+		addWrapper(source, prefix, LEGAL, true, true);
 	}
 
-	private static void addGoalPropagate(StringBuilder source, List<List<Proposition>> goalOrderings, Map<Proposition, Integer> propMap) {
+	private static void addGoalPropagate(CSource source, List<List<Proposition>> goalOrderings, Map<Proposition, Integer> propMap, String prefix) {
 		addRoleDependentHelpers(goalOrderings, propMap, source, GOAL);
 		StringBuilder body = generateRoleDependentBody(GOAL, goalOrderings.size());
 		addRoleDependentMethod(source, body, GOAL);
-		addWrapper(source, GOAL, true, false);
+		addWrapper(source, prefix, GOAL, true, false);
 	}
 	
-	private static void addWrapper(StringBuilder source, String methodName, boolean indexNeeded, boolean auxNeeded) {
+	private static void addWrapper(CSource source, String prefix, String methodName, boolean indexNeeded, boolean auxNeeded) {
 		StringBuilder method = new StringBuilder();
-		method.append("JNIEXPORT void JNICALL " + PREFIX + methodName + "(JNIEnv *env, jobject obj, jbooleanArray javaArray" +
+		method.append("JNIEXPORT void JNICALL " + prefix + methodName + "(JNIEnv *env, jobject obj, jbooleanArray javaArray" +
 				(indexNeeded ? ", jint roleIndex" : "") + (auxNeeded ? ", jint auxIndex" : "") +
 				") {\n");
 //		method.append("jboolean copy = 0;\n");
@@ -179,30 +567,33 @@ public class NativeOperatorFactory {
 //		method.append("(*env)->ReleasePrimitiveArrayCritical(env, javaArray, props, 0);\n");
 		method.append("}\n");
 
-		source.append(method);
-	}
-
-	private static void addMethod(StringBuilder source, StringBuilder body, String methodName) {
-		StringBuilder method = new StringBuilder();
-		method.append("void " + methodName + "(jboolean *props) {\n");
-		method.append(body);
+		// The direct variant works in place on the memory of a direct buffer
+		method.append("JNIEXPORT void JNICALL " + prefix + methodName + DIRECT + "(JNIEnv *env, jobject obj, jobject buffer" +
+				(indexNeeded ? ", jint roleIndex" : "") + (auxNeeded ? ", jint auxIndex" : "") +
+				") {\n");
+		method.append(methodName + "((jboolean *) (*env)->GetDirectBufferAddress(env, buffer)" + (indexNeeded ? ", roleIndex" : "") +
+				(auxNeeded ? ", auxIndex" : "") + ");\n");
 		method.append("}\n");
 
 		source.append(method);
 	}
 
-	private static void addRoleDependentMethod(StringBuilder source, StringBuilder body, String methodName) {
+	private static void addMethod(CSource source, StringBuilder body, String methodName) {
+		source.addGateFunction(methodName, "jboolean", body);
+	}
+
+	private static void addRoleDependentMethod(CSource source, StringBuilder body, String methodName) {
 		StringBuilder method = new StringBuilder();
-		method.append("void " + methodName + "(jboolean *props, jint roleIndex) {\n");
+		method.append("static void " + methodName + "(jboolean *props, jint roleIndex) {\n");
 		method.append(body);
 		method.append("}\n");
 		// System.out.println(method);
 		source.append(method);
 	}
 	
-	private static void addRoleAuxDependentMethod(StringBuilder source, StringBuilder body, String methodName) {
+	private static void addRoleAuxDependentMethod(CSource source, StringBuilder body, String methodName) {
 		StringBuilder method = new StringBuilder();
-		method.append("void " + methodName + "(jboolean *props, jint roleIndex, jint auxIndex) {\n");
+		method.append("static void " + methodName + "(jboolean *props, jint roleIndex, jint auxIndex) {\n");
 		method.append(body);
 		method.append("}\n");
 		// System.out.println(method);
@@ -255,7 +646,7 @@ public class NativeOperatorFactory {
 		return body;
 	}
 
-	private static void addRoleDependentHelpers(List<List<Proposition>> orderings, Map<Proposition, Integer> propMap, StringBuilder source,
+	private static void addRoleDependentHelpers(List<List<Proposition>> orderings, Map<Proposition, Integer> propMap, CSource source,
 			String name) {
 		for (int roleIndex = 0; roleIndex < orderings.size(); roleIndex++) {
 			StringBuilder body = generateInternalMethodBody(orderings.get(roleIndex), propMap);
@@ -264,7 +655,7 @@ public class NativeOperatorFactory {
 	}
 	
 	private static void addRoleAuxDependentHelpers(List<List<List<Proposition>>> orderings, Map<Proposition, Integer> propMap, 
-			StringBuilder source, String name) {
+			CSource source, String name) {
 		for (int roleIndex = 0; roleIndex < orderings.size(); roleIndex++) {
 			for (int auxData = 0; auxData < orderings.get(roleIndex).size(); auxData++) {
 				StringBuilder body = generateInternalMethodBody(orderings.get(roleIndex).get(auxData), propMap);
@@ -355,24 +746,90 @@ public class NativeOperatorFactory {
 		}
 	}
 	
-	private static void addMultiMonte(StringBuilder source, int numProps, int numGoals) {
+	private static void addBitMethod(CSource source, List<Proposition> ordering, Map<Proposition, Integer> propMap, String methodName,
+			String prefix) {
+		StringBuilder body = new StringBuilder();
+		for (Proposition p : ordering) {
+			addBitComponent(p, body, propMap);
+		}
+		source.addGateFunction(methodName, "jlong", body);
+		addBitWrapper(source, methodName, prefix);
+	}
+
+	private static void addBitMethod(CSource source, StringBuilder body, String methodName, String prefix) {
+		source.append("static void " + methodName + "(jlong *props) {\n");
+		source.append(body);
+		source.append("}\n");
+		addBitWrapper(source, methodName, prefix);
+	}
+
+	private static void addBitWrapper(CSource source, String methodName, String prefix) {
+		source.append("JNIEXPORT void JNICALL " + prefix + methodName + "(JNIEnv *env, jobject obj, jlongArray javaArray) {\n");
+		source.append("jlong *props = (*env)->GetLongArrayElements(env, javaArray, NULL);\n");
+		source.append(methodName + "(props);\n");
+		source.append("(*env)->ReleaseLongArrayElements(env, javaArray, props, 0);\n");
+		source.append("}\n");
+	}
+
+	/**
+	 * Emits one base or internal proposition of a bit operator. Every lane of
+	 * a constant is the same, so constants become 0 or ~0.
+	 */
+	private static void addBitComponent(Proposition proposition, StringBuilder body, Map<Proposition, Integer> propMap) {
+		int propositionIndex = propMap.get(proposition);
+		Component comp = proposition.getSingleInput();
+		body.append("props[" + propositionIndex + "] = ");
+		if (comp instanceof Constant) {
+			body.append(bitConstant(comp.getValue()));
+		} else if (comp instanceof Transition || comp instanceof Not) {
+			String prefix = (comp instanceof Not) ? "~" : "";
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				body.append(bitConstant((comp instanceof Not) != comp.getSingleInput().getValue()));
+			} else {
+				body.append(prefix + "props[" + propMap.get(comp.getSingleInput()) + "]");
+			}
+		} else if (comp instanceof And || comp instanceof Or) {
+			boolean isAnd = comp instanceof And;
+			StringBuilder gate = new StringBuilder();
+			for (Component prop : comp.getInputs()) {
+				if (!propMap.containsKey(prop)) {
+					// constant inputs either decide the gate or drop out
+					if (prop.getValue() != isAnd) {
+						gate = new StringBuilder(bitConstant(!isAnd));
+						break;
+					}
+				} else {
+					if (gate.length() > 0) {
+						gate.append(isAnd ? " & " : " | ");
+					}
+					gate.append("props[" + propMap.get(prop) + "]");
+				}
+			}
+			body.append(gate.length() > 0 ? gate.toString() : bitConstant(isAnd));
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		body.append(";\n");
+	}
+
+	private static String bitConstant(boolean value) {
+		return value ? "~(jlong)0" : "(jlong)0";
+	}
+
+	private static void addMultiMonte(CSource source, String prefix, int numProps) {
 		StringBuilder method = new StringBuilder();
-		method.append("jlong multiMonte(jboolean *props, jint probes) {\n");
+		method.append("static jlong " + MULTI_MONTE + "(OperatorState *state, jboolean *props, jint probes) {\n");
 		method.append("jlong sum = 0;\n");
-		method.append("for (int i = 0; i < probes; i++) {\n");
 		method.append("jboolean tempProps[" + numProps + "];\n");
+		method.append("for (int i = 0; i < probes; i++) {\n");
 		method.append("memcpy(tempProps, props, sizeof(jboolean) * " + numProps + ");\n");
-		method.append(""+ MONTE_CARLO + "(tempProps);\n");
-		method.append("for (int g = 0; g < " + numGoals + "; g++) {\n");
-		
-//		method.append("printf(\"%d\\n\", tempProps[goalProps[g]]);\n");
-		
-		method.append("if (tempProps[goalProps[g]]) {\n");
-		method.append("sum+=goalValues[g];\n");
+		method.append(MONTE_CARLO + "(state, tempProps);\n");
+		method.append("for (int g = 0; g < state->numGoals; g++) {\n");
+		method.append("if (tempProps[state->goalProps[g]]) {\n");
+		method.append("sum += state->goalValues[g];\n");
 		method.append("break;\n");
 		method.append("}\n");
 		method.append("}\n");
-//		method.append("printf(\"-------------------------%ld\\n\", sum);\n");
 		method.append("}\n");
 		method.append("return sum;\n");
 		method.append("}\n");
@@ -380,42 +837,243 @@ public class NativeOperatorFactory {
 		source.append(method);
 		
 		StringBuilder wrapperMethod = new StringBuilder();
-		wrapperMethod.append("JNIEXPORT jlong JNICALL " + PREFIX + MULTI_MONTE + "(JNIEnv *env, jobject obj, jbooleanArray javaArray, jint probes) {\n");
+		wrapperMethod.append("JNIEXPORT jlong JNICALL " + prefix + "multiPlayout(JNIEnv *env, jobject obj, jlong handle, jbooleanArray javaArray, jint probes) {\n");
 		wrapperMethod.append("jboolean *props = (*env)->GetBooleanArrayElements(env, javaArray, NULL);\n");
-		wrapperMethod.append("jlong result = " + MULTI_MONTE + "(props, probes);\n");
+		wrapperMethod.append("jlong result = " + MULTI_MONTE + "((OperatorState *) (intptr_t) handle, props, probes);\n");
 		wrapperMethod.append("(*env)->ReleaseBooleanArrayElements(env, javaArray, props, JNI_ABORT);\n");
 		wrapperMethod.append("return result;\n");
 		wrapperMethod.append("}\n");
 
+		wrapperMethod.append("JNIEXPORT jlong JNICALL " + prefix + "multiPlayout" + DIRECT + "(JNIEnv *env, jobject obj, jlong handle, jobject buffer, jint probes) {\n");
+		wrapperMethod.append("return " + MULTI_MONTE + "((OperatorState *) (intptr_t) handle, (jboolean *) (*env)->GetDirectBufferAddress(env, buffer), probes);\n");
+		wrapperMethod.append("}\n");
+
 		source.append(wrapperMethod);
 	}
 	
-	private static void addMonteCarlo(StringBuilder source, int numRoles, int numLegals, int inputStart, int numInputs, int terminalIndex) {
+	/**
+	 * Adds statsPlayout, a playout that records its depth, the goals every
+	 * role reached and the first move of every role into a statistics array
+	 * laid out as described by PlayoutStatistics.getLayout().
+	 */
+	private static void addStatsPlayout(CSource source, int inputStart, int numInputs, int terminalIndex) {
+		StringBuilder method = new StringBuilder();
+		// Adds to a 64-bit goal sum held in two jints, low half first
+		method.append("static void addToSum(jint *sum, int64_t value) {\n");
+		method.append("uint64_t total = ((uint64_t) (uint32_t) sum[1] << 32 | (uint32_t) sum[0]) + (uint64_t) value;\n");
+		method.append("sum[0] = (jint) (uint32_t) total;\n");
+		method.append("sum[1] = (jint) (uint32_t) (total >> 32);\n");
+		method.append("}\n");
+		method.append("static void " + STATS_PLAYOUT + "(OperatorState *state, jboolean *props, jint *layout, jint *stats) {\n");
+		method.append("jint firstMoves[state->numRoles];\n");
+		method.append("for (int role = 0; role < state->numRoles; role++) firstMoves[role] = -1;\n");
+		method.append("jint depth = 0;\n");
+		method.append("while (true) {\n");
+		method.append("memset(props+" + inputStart + ", false, sizeof(jboolean)*" + numInputs + ");\n");
+		method.append(ALL_LEGALS + "(props);\n");
+		method.append("for (int role = 0; role < state->numRoles; role++) {\n");
+		method.append("jint *legals = state->legalPropMap[role];\n");
+		method.append("int numLegals = state->numLegals[role];\n");
+		method.append("int count = 0;\n");
+		method.append("for (int i = 0; i < numLegals; i++) {\n");
+		method.append("if (props[legals[i]]) count++;\n");
+		method.append("}\n");
+		method.append("if (count == 0) continue;\n");
+		method.append("int choice = randomBelow(count);\n");
+		method.append("for (int i = 0; i < numLegals; i++) {\n");
+		method.append("if (props[legals[i]] && choice-- == 0) {\n");
+		method.append("props[ state->legalInputMap[legals[i]] ] = true;\n");
+		method.append("if (depth == 0) firstMoves[role] = i;\n");
+		method.append("break;\n");
+		method.append("}\n");
+		method.append("}\n");
+		method.append("}\n");
+		method.append("propagateInternal(props);\n");
+		method.append("if (props[" + terminalIndex + "]) break;\n");
+		method.append("transition(props);\n");
+		method.append("depth++;\n");
+		method.append("}\n");
+
+		method.append("stats[0]++;\n");
+		method.append("stats[1] += depth;\n");
+		method.append("stats[layout[1] + (depth < layout[2] ? depth : layout[2] - 1)]++;\n");
+		method.append("jint *roleLayout = layout + 4;\n");
+		method.append("for (int role = 0; role < layout[0]; role++) {\n");
+		method.append("jint numGoals = roleLayout[4];\n");
+		method.append("jint value = 0;\n");
+		method.append("for (int g = 0; g < numGoals; g++) {\n");
+		method.append("if (props[roleLayout[5 + 2 * g]]) {\n");
+		method.append("stats[roleLayout[0] + g]++;\n");
+		method.append("value = roleLayout[6 + 2 * g];\n");
+		method.append("break;\n");
+		method.append("}\n");
+		method.append("}\n");
+		method.append("if (firstMoves[role] >= 0) {\n");
+		method.append("stats[roleLayout[1] + firstMoves[role]]++;\n");
+		method.append("addToSum(stats + roleLayout[2] + 2 * firstMoves[role], value);\n");
+		method.append("}\n");
+		method.append("roleLayout += 5 + 2 * numGoals;\n");
+		method.append("}\n");
+		method.append("}\n");
+
+		source.append(method);
+	}
+
+	/**
+	 * Adds parallelMonte, which splits the probes of a multiMonte over
+	 * threads. Every thread plays out into its own scratch buffer with its own
+	 * generator, seeded from the caller's, and counts the goals it reaches,
+	 * or gathers full statistics if given a layout; the counts are added up
+	 * once all threads have joined. The calling thread runs the first share
+	 * itself.
+	 */
+	private static void addParallelMonte(CSource source, String prefix, int numProps) {
+		StringBuilder method = new StringBuilder();
+		method.append("typedef struct {\n");
+		method.append("OperatorState *state;\n");
+		method.append("jboolean *props;\n");
+		method.append("jint probes;\n");
+		method.append("uint64_t seed;\n");
+		method.append("jlong sum;\n");
+		// Goal counts, or the statistics if layout is set
+		method.append("jint *counts;\n");
+		method.append("jint *layout;\n");
+		method.append("} MonteTask;\n");
+
+		method.append("static void *monteTask(void *arg) {\n");
+		method.append("MonteTask *task = (MonteTask *) arg;\n");
+		method.append("OperatorState *state = task->state;\n");
+		method.append("if (task->seed != 0) randomState = task->seed;\n");
+		method.append("jboolean *tempProps = malloc(sizeof(jboolean) * " + numProps + ");\n");
+		method.append("for (int i = 0; i < task->probes; i++) {\n");
+		method.append("memcpy(tempProps, task->props, sizeof(jboolean) * " + numProps + ");\n");
+		method.append("if (task->layout != NULL) {\n");
+		method.append(STATS_PLAYOUT + "(state, tempProps, task->layout, task->counts);\n");
+		method.append("continue;\n");
+		method.append("}\n");
+		method.append(MONTE_CARLO + "(state, tempProps);\n");
+		method.append("for (int g = 0; g < state->numGoals; g++) {\n");
+		method.append("if (tempProps[state->goalProps[g]]) {\n");
+		method.append("task->sum += state->goalValues[g];\n");
+		method.append("task->counts[g]++;\n");
+		method.append("break;\n");
+		method.append("}\n");
+		method.append("}\n");
+		method.append("}\n");
+		method.append("free(tempProps);\n");
+		method.append("return NULL;\n");
+		method.append("}\n");
+
+		method.append("static jlong " + PARALLEL_MONTE + "(OperatorState *state, jboolean *props, jint probes, jint threads, jint *goalCounts, jint *layout, jint *stats, jint numStats) {\n");
+		method.append("if (threads > probes) threads = probes;\n");
+		method.append("if (threads < 1) threads = 1;\n");
+		method.append("jint numCounts = (layout != NULL) ? numStats : state->numGoals;\n");
+		method.append("jint *counts = (layout != NULL) ? stats : goalCounts;\n");
+		// The goal sums past layout[3] are 64 bits wide and merge with carries
+		method.append("jint numInts = (layout != NULL) ? layout[3] : numCounts;\n");
+		method.append("MonteTask *tasks = calloc(threads, sizeof(MonteTask));\n");
+		method.append("pthread_t *ids = malloc(sizeof(pthread_t) * threads);\n");
+		method.append("bool *started = calloc(threads, sizeof(bool));\n");
+		method.append("for (int t = 0; t < threads; t++) {\n");
+		method.append("tasks[t].state = state;\n");
+		method.append("tasks[t].props = props;\n");
+		method.append("tasks[t].probes = probes / threads + (t < probes % threads ? 1 : 0);\n");
+		method.append("tasks[t].seed = (t == 0) ? 0 : (nextRandom() | 1);\n");
+		method.append("tasks[t].counts = calloc(numCounts > 0 ? numCounts : 1, sizeof(jint));\n");
+		method.append("tasks[t].layout = layout;\n");
+		method.append("}\n");
+		method.append("for (int t = 1; t < threads; t++) {\n");
+		method.append("started[t] = (pthread_create(&ids[t], NULL, monteTask, &tasks[t]) == 0);\n");
+		method.append("}\n");
+		// A share whose thread could not be started runs here, with the first
+		method.append("for (int t = 0; t < threads; t++) {\n");
+		method.append("if (!started[t]) monteTask(&tasks[t]);\n");
+		method.append("}\n");
+		method.append("jlong sum = 0;\n");
+		method.append("memset(counts, 0, sizeof(jint) * numCounts);\n");
+		method.append("for (int t = 0; t < threads; t++) {\n");
+		method.append("if (started[t]) pthread_join(ids[t], NULL);\n");
+		method.append("sum += tasks[t].sum;\n");
+		method.append("for (int i = 0; i < numInts; i++) counts[i] += tasks[t].counts[i];\n");
+		method.append("for (int i = numInts; i + 1 < numCounts; i += 2) {\n");
+		method.append("addToSum(counts + i, (int64_t) ((uint64_t) (uint32_t) tasks[t].counts[i + 1] << 32 | (uint32_t) tasks[t].counts[i]));\n");
+		method.append("}\n");
+		method.append("free(tasks[t].counts);\n");
+		method.append("}\n");
+		method.append("free(started);\n");
+		method.append("free(ids);\n");
+		method.append("free(tasks);\n");
+		method.append("return sum;\n");
+		method.append("}\n");
+
+		source.append(method);
+
+		StringBuilder wrapperMethod = new StringBuilder();
+		wrapperMethod.append("static jlong " + PARALLEL_MONTE + "Java(JNIEnv *env, jlong handle, jboolean *props, jint probes, jint threads, jintArray javaGoalCounts) {\n");
+		wrapperMethod.append("OperatorState *state = (OperatorState *) (intptr_t) handle;\n");
+		wrapperMethod.append("jint *goalCounts = malloc(sizeof(jint) * (state->numGoals > 0 ? state->numGoals : 1));\n");
+		wrapperMethod.append("jlong result = " + PARALLEL_MONTE + "(state, props, probes, threads, goalCounts, NULL, NULL, 0);\n");
+		wrapperMethod.append("if (javaGoalCounts != NULL) (*env)->SetIntArrayRegion(env, javaGoalCounts, 0, state->numGoals, goalCounts);\n");
+		wrapperMethod.append("free(goalCounts);\n");
+		wrapperMethod.append("return result;\n");
+		wrapperMethod.append("}\n");
+
+		wrapperMethod.append("JNIEXPORT jlong JNICALL " + prefix + "parallelPlayout(JNIEnv *env, jobject obj, jlong handle, jbooleanArray javaArray, jint probes, jint threads, jintArray javaGoalCounts) {\n");
+		wrapperMethod.append("jboolean *props = (*env)->GetBooleanArrayElements(env, javaArray, NULL);\n");
+		wrapperMethod.append("jlong result = " + PARALLEL_MONTE + "Java(env, handle, props, probes, threads, javaGoalCounts);\n");
+		wrapperMethod.append("(*env)->ReleaseBooleanArrayElements(env, javaArray, props, JNI_ABORT);\n");
+		wrapperMethod.append("return result;\n");
+		wrapperMethod.append("}\n");
+
+		wrapperMethod.append("JNIEXPORT jlong JNICALL " + prefix + "parallelPlayout" + DIRECT + "(JNIEnv *env, jobject obj, jlong handle, jobject buffer, jint probes, jint threads, jintArray javaGoalCounts) {\n");
+		wrapperMethod.append("return " + PARALLEL_MONTE + "Java(env, handle, (jboolean *) (*env)->GetDirectBufferAddress(env, buffer), probes, threads, javaGoalCounts);\n");
+		wrapperMethod.append("}\n");
+
+		// Statistics are gathered in native memory and copied out in one go
+		wrapperMethod.append("static void " + STATS_PLAYOUT + "Java(JNIEnv *env, jlong handle, jboolean *props, jint probes, jint threads, jintArray javaLayout, jintArray javaStats) {\n");
+		wrapperMethod.append("jint numStats = (*env)->GetArrayLength(env, javaStats);\n");
+		wrapperMethod.append("jint *layout = (*env)->GetIntArrayElements(env, javaLayout, NULL);\n");
+		wrapperMethod.append("jint *stats = malloc(sizeof(jint) * (numStats > 0 ? numStats : 1));\n");
+		wrapperMethod.append(PARALLEL_MONTE + "((OperatorState *) (intptr_t) handle, props, probes, threads, NULL, layout, stats, numStats);\n");
+		wrapperMethod.append("(*env)->ReleaseIntArrayElements(env, javaLayout, layout, JNI_ABORT);\n");
+		wrapperMethod.append("(*env)->SetIntArrayRegion(env, javaStats, 0, numStats, stats);\n");
+		wrapperMethod.append("free(stats);\n");
+		wrapperMethod.append("}\n");
+
+		wrapperMethod.append("JNIEXPORT void JNICALL " + prefix + "playoutStatistics(JNIEnv *env, jobject obj, jlong handle, jbooleanArray javaArray, jint probes, jint threads, jintArray javaLayout, jintArray javaStats) {\n");
+		wrapperMethod.append("jboolean *props = (*env)->GetBooleanArrayElements(env, javaArray, NULL);\n");
+		wrapperMethod.append(STATS_PLAYOUT + "Java(env, handle, props, probes, threads, javaLayout, javaStats);\n");
+		wrapperMethod.append("(*env)->ReleaseBooleanArrayElements(env, javaArray, props, JNI_ABORT);\n");
+		wrapperMethod.append("}\n");
+
+		wrapperMethod.append("JNIEXPORT void JNICALL " + prefix + "playoutStatistics" + DIRECT + "(JNIEnv *env, jobject obj, jlong handle, jobject buffer, jint probes, jint threads, jintArray javaLayout, jintArray javaStats) {\n");
+		wrapperMethod.append(STATS_PLAYOUT + "Java(env, handle, (jboolean *) (*env)->GetDirectBufferAddress(env, buffer), probes, threads, javaLayout, javaStats);\n");
+		wrapperMethod.append("}\n");
+
+		source.append(wrapperMethod);
+	}
+
+	private static void addMonteCarlo(CSource source, String prefix, int inputStart, int numInputs, int terminalIndex) {
 		StringBuilder body = new StringBuilder();
-		body.append("int input[" + numRoles + "];\n");
 		body.append("jint depth = 0;\n");
 		body.append("while (true) {\n");
 
 		body.append("memset(props+" + inputStart + ", false, sizeof(jboolean)*" + numInputs + ");\n");
-		body.append("for (int role = 0; role < " + numRoles + "; role++) {\n");
-		body.append("int order[" + numLegals + "];\n");
-		body.append("for (int index = 0; index < " + numLegals + "; index++) {\n");
-		body.append("order[index] = index;\n");
+		body.append(ALL_LEGALS + "(props);\n");
+		body.append("for (int role = 0; role < state->numRoles; role++) {\n");
+		body.append("jint *legals = state->legalPropMap[role];\n");
+		body.append("int numLegals = state->numLegals[role];\n");
+		body.append("int count = 0;\n");
+		body.append("for (int i = 0; i < numLegals; i++) {\n");
+		body.append("if (props[legals[i]]) count++;\n");
 		body.append("}\n");
-		body.append("for (int index = " + numLegals + "; index > 0; index--) {\n");
-		body.append("int swapIndex = rand() % index;\n");
-		body.append("int temp = order[swapIndex];\n");
-		body.append("order[swapIndex] = order[index-1];\n");
-		body.append("order[index-1] = temp;\n");
-		body.append("}\n");
-		body.append("for (int i = 0; i < " + numLegals + "; i++) {\n");
-		body.append("int index = order[i];\n");
-		body.append("int inputIndex = legalInputMap[ legalPropMap[role][index] ];\n");
-		body.append("props[inputIndex] = true;\n");
-		body.append("propagateLegalOnly(props, role, index);\n");
-		body.append("if (props[ legalInputMap[ inputIndex ] ])\n");
+		body.append("if (count == 0) continue;\n");
+		body.append("int choice = randomBelow(count);\n");
+		body.append("for (int i = 0; i < numLegals; i++) {\n");
+		body.append("if (props[legals[i]] && choice-- == 0) {\n");
+		body.append("props[ state->legalInputMap[legals[i]] ] = true;\n");
 		body.append("break;\n");
-		body.append("props[inputIndex] = false;\n");
+		body.append("}\n");
 		body.append("}\n");
 		body.append("}\n");
 		body.append("propagateInternal(props);\n");
@@ -427,67 +1085,64 @@ public class NativeOperatorFactory {
 		body.append("}\n");
 
 		StringBuilder method = new StringBuilder();
-		method.append("jint " + MONTE_CARLO + "(jboolean *props) {\n");
+		method.append("static jint " + MONTE_CARLO + "(OperatorState *state, jboolean *props) {\n");
 		method.append(body);
 		method.append("}\n");
 		source.append(method);
 		
 		StringBuilder wrapperMethod = new StringBuilder();
-		wrapperMethod.append("JNIEXPORT jint JNICALL " + PREFIX + MONTE_CARLO + "(JNIEnv *env, jobject obj, jbooleanArray javaArray) {\n");
+		wrapperMethod.append("JNIEXPORT jint JNICALL " + prefix + "playout(JNIEnv *env, jobject obj, jlong handle, jbooleanArray javaArray) {\n");
 		wrapperMethod.append("jboolean *props = (*env)->GetBooleanArrayElements(env, javaArray, NULL);\n");
-		wrapperMethod.append("jint result = " + MONTE_CARLO + "(props);\n");
+		wrapperMethod.append("jint result = " + MONTE_CARLO + "((OperatorState *) (intptr_t) handle, props);\n");
 		wrapperMethod.append("(*env)->ReleaseBooleanArrayElements(env, javaArray, props, 0);\n");
 		wrapperMethod.append("return result;\n");
 		wrapperMethod.append("}\n");
 
+		wrapperMethod.append("JNIEXPORT jint JNICALL " + prefix + "playout" + DIRECT + "(JNIEnv *env, jobject obj, jlong handle, jobject buffer) {\n");
+		wrapperMethod.append("return " + MONTE_CARLO + "((OperatorState *) (intptr_t) handle, (jboolean *) (*env)->GetDirectBufferAddress(env, buffer));\n");
+		wrapperMethod.append("}\n");
+
 		source.append(wrapperMethod);
 		
-		addMonteCarloInit(source);
+		addHandle(source, prefix);
 	}
 	
-	private static void addMonteCarloInit(StringBuilder source) {
+	private static void addHandle(CSource source, String prefix) {
 		StringBuilder body = new StringBuilder();
-		body.append("JNIEXPORT void JNICALL " + PREFIX + "initMonteCarlo(JNIEnv *env, jobject obj, jobjectArray javaLegalPropMap," +
-				"jbooleanArray javaLegalInputMap, jintArray javaGoalProps, jintArray javaGoalValues) {\n");
-//		body.append("printf(\"Monte Carlo Init!\\n\");\n");
-		body.append("jint *tempLegalInputMap = (*env)->GetIntArrayElements(env, javaLegalInputMap, NULL);\n");
-		body.append("int inputLen = (*env)->GetArrayLength(env, javaLegalInputMap);\n");
-		body.append("legalInputMap = malloc(sizeof(jint) * inputLen);\n");
-		body.append("for(int i = 0; i < inputLen; i++) legalInputMap[i] = tempLegalInputMap[i];\n");
-		body.append("(*env)->ReleaseIntArrayElements(env, javaLegalInputMap, tempLegalInputMap, JNI_ABORT);\n");
-		body.append("int rowLen = (*env)->GetArrayLength(env, javaLegalPropMap);\n");
-		body.append("legalPropMap = malloc(sizeof(jint *) * rowLen);\n");
-		body.append("numInputs = malloc(sizeof(jint) * rowLen);\n");
-		body.append("for(int i=0; i<rowLen; i++) {\n");
-			body.append("jintArray oneDim = (jintArray)(*env)->GetObjectArrayElement(env, javaLegalPropMap, i);\n");
-			body.append("int colLen = (*env)->GetArrayLength(env, oneDim);\n");
-			body.append("numInputs[i] = colLen;\n");
-			body.append("legalPropMap[i] = malloc(sizeof(jint) * colLen);\n");
-			body.append("jint *element=(*env)->GetIntArrayElements(env, oneDim, NULL);\n");
-			body.append("for(int j=0; j<colLen; j++) {\n");
-				body.append("legalPropMap[i][j]= element[j];\n");
-//				body.append("printf(\"Role: %d\\tProp: %d\\tValue: %d\\n\", i, j, legalPropMap[i][j]);\n");
-			body.append("}\n");
-			body.append("(*env)->ReleaseIntArrayElements(env, oneDim, element, JNI_ABORT);\n");
-//			body.append("(*env)->DeleteLocalRef(env, oneDim);\n");
+		body.append("static jint *copyIntArray(JNIEnv *env, jintArray javaArray, jint *length) {\n");
+		body.append("jint len = (*env)->GetArrayLength(env, javaArray);\n");
+		body.append("jint *result = malloc(sizeof(jint) * (len > 0 ? len : 1));\n");
+		body.append("(*env)->GetIntArrayRegion(env, javaArray, 0, len, result);\n");
+		body.append("if (length != NULL) *length = len;\n");
+		body.append("return result;\n");
 		body.append("}\n");
-		
-		body.append("int numGoals = (*env)->GetArrayLength(env, javaGoalProps);\n");
-		
-		body.append("jint *tempGoalProps = (*env)->GetIntArrayElements(env, javaGoalProps, NULL);\n");
-		body.append("goalProps = malloc(sizeof(jint) * numGoals);\n");
-		body.append("memcpy(goalProps, tempGoalProps, numGoals * sizeof(jint));\n");
-		body.append("(*env)->ReleaseIntArrayElements(env, javaGoalProps, tempGoalProps, JNI_ABORT);\n");
-		
-//		body.append("for (int i = 0; i < numGoals; i++) printf(\"Goal Prop: %d\\n\", goalProps[i]);\n"); //TODO: remove
-		
-		body.append("jint *tempGoalValues = (*env)->GetIntArrayElements(env, javaGoalValues, NULL);\n");
-		body.append("goalValues = malloc(sizeof(jint) * numGoals);\n");
-		body.append("memcpy(goalValues, tempGoalValues, numGoals * sizeof(jint));\n");
-		body.append("(*env)->ReleaseIntArrayElements(env, javaGoalValues, tempGoalValues, JNI_ABORT);\n");
-		
-//		body.append("for (int i = 0; i < numGoals; i++) printf(\"Goal Value: %d\\n\", goalValues[i]);\n"); //TODO: remove
-		
+
+		body.append("JNIEXPORT jlong JNICALL " + prefix + "createHandle(JNIEnv *env, jobject obj, jobjectArray javaLegalPropMap," +
+				"jintArray javaLegalInputMap, jintArray javaGoalProps, jintArray javaGoalValues) {\n");
+		body.append("OperatorState *state = malloc(sizeof(OperatorState));\n");
+		body.append("state->legalInputMap = copyIntArray(env, javaLegalInputMap, NULL);\n");
+		body.append("state->numRoles = (*env)->GetArrayLength(env, javaLegalPropMap);\n");
+		body.append("state->legalPropMap = malloc(sizeof(jint *) * state->numRoles);\n");
+		body.append("state->numLegals = malloc(sizeof(jint) * state->numRoles);\n");
+		body.append("for (int i = 0; i < state->numRoles; i++) {\n");
+			body.append("jintArray oneDim = (jintArray) (*env)->GetObjectArrayElement(env, javaLegalPropMap, i);\n");
+			body.append("state->legalPropMap[i] = copyIntArray(env, oneDim, &state->numLegals[i]);\n");
+			body.append("(*env)->DeleteLocalRef(env, oneDim);\n");
+		body.append("}\n");
+		body.append("state->goalProps = copyIntArray(env, javaGoalProps, &state->numGoals);\n");
+		body.append("state->goalValues = copyIntArray(env, javaGoalValues, NULL);\n");
+		body.append("return (jlong) (intptr_t) state;\n");
+		body.append("}\n");
+
+		body.append("JNIEXPORT void JNICALL " + prefix + "freeHandle(JNIEnv *env, jobject obj, jlong handle) {\n");
+		body.append("OperatorState *state = (OperatorState *) (intptr_t) handle;\n");
+		body.append("for (int i = 0; i < state->numRoles; i++) free(state->legalPropMap[i]);\n");
+		body.append("free(state->legalPropMap);\n");
+		body.append("free(state->numLegals);\n");
+		body.append("free(state->legalInputMap);\n");
+		body.append("free(state->goalProps);\n");
+		body.append("free(state->goalValues);\n");
+		body.append("free(state);\n");
 		body.append("}\n");
 		
 		source.append(body);
@@ -1,5 +1,6 @@
 package util.statemachine.implementation.propnet;
 
+import java.util.Arrays;
 import java.util.Random;
 
 
@@ -16,7 +17,86 @@ public abstract class Operator {
 	public abstract void propagateInternal(boolean[] props);
 	public abstract void propagateTerminalOnly(boolean[] props);
 	public abstract void propagateLegalOnly(boolean[] props, int role, int legalIndex);
+	/** Propagates the union of the legal cones of every role */
+	public abstract void propagateAllLegals(boolean[] props);
 	public abstract void propagateGoalOnly(boolean[] props, int role);
 	public abstract int monteCarlo(boolean[] props);
 	public abstract void initMonteCarlo(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues);
+
+	/**
+	 * A new operator on the same circuit with its own random generator and
+	 * playout state, for another thread to use. Generated operators keep no
+	 * other state, so a new instance of the same class will do and nothing is
+	 * compiled again.
+	 */
+	public Operator fork() {
+		Operator copy;
+		try {
+			copy = getClass().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot fork " + getClass().getName(), e);
+		}
+		copy.initMonteCarlo(legalPropMap, legalInputMap, null, null);
+		return copy;
+	}
+
+	/**
+	 * Computes the legal moves of every role with a single propagation. The
+	 * indices into legalPropMap[role] of the moves legal for role are written
+	 * to the front of legals[role] and their number to counts[role], so the
+	 * same buffers can be reused between calls.
+	 */
+	public void getAllLegals(boolean[] props, int[][] legals, int[] counts) {
+		propagateAllLegals(props);
+		for (int role = 0; role < legalPropMap.length; role++) {
+			int[] roleLegals = legalPropMap[role];
+			int count = 0;
+			for (int i = 0; i < roleLegals.length; i++) {
+				if (props[roleLegals[i]]) {
+					legals[role][count++] = i;
+				}
+			}
+			counts[role] = count;
+		}
+	}
+
+	/**
+	 * Runs probes random playouts from the base propositions in props and
+	 * writes their statistics into stats, laid out as described by
+	 * statistics. props is left unchanged.
+	 */
+	public void playoutStatistics(boolean[] props, int probes, PlayoutStatistics statistics, int[] stats) {
+		Arrays.fill(stats, 0, statistics.size(), 0);
+		int numRoles = legalPropMap.length;
+		int[][] legals = new int[numRoles][];
+		for (int role = 0; role < numRoles; role++) {
+			legals[role] = new int[legalPropMap[role].length];
+		}
+		int[] counts = new int[numRoles];
+		int[] firstMoves = new int[numRoles];
+		boolean[] tempProps = new boolean[props.length];
+		for (int probe = 0; probe < probes; probe++) {
+			System.arraycopy(props, 0, tempProps, 0, props.length);
+			Arrays.fill(firstMoves, -1);
+			int depth = 0;
+			while (true) {
+				Arrays.fill(tempProps, statistics.inputPropStart, statistics.internalPropStart, false);
+				getAllLegals(tempProps, legals, counts);
+				for (int role = 0; role < numRoles; role++) {
+					if (counts[role] > 0) {
+						int choice = legals[role][rand.nextInt(counts[role])];
+						if (depth == 0)
+							firstMoves[role] = choice;
+						tempProps[legalInputMap[legalPropMap[role][choice]]] = true;
+					}
+				}
+				propagateInternal(tempProps);
+				if (tempProps[statistics.terminalIndex])
+					break;
+				transition(tempProps);
+				depth++;
+			}
+			statistics.record(stats, tempProps, depth, firstMoves);
+		}
+	}
 }
@@ -0,0 +1,210 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import util.propnet.architecture.Component;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+
+/**
+ * Emits the propagation methods of generated operators straight to bytecode,
+ * without going through the Javassist source compiler. Gates are computed
+ * with bitwise operations on the loaded values, so the code has no branches:
+ * an And of props[a] and props[b] becomes props[a] & props[b] whether the
+ * props are booleans or 64-lane longs.
+ */
+final class OperatorBytecode {
+	public static final int TRANSITION = 0;
+	public static final int INTERNAL = 1;
+	public static final int BIT = 2;
+
+	/** Deepest stack of any component: array, index, accumulator and the next input's array and index */
+	private static final int MAX_STACK = 6;
+	/** this and props */
+	private static final int MAX_LOCALS = 2;
+	private static final int PROPS = 1;
+
+	private OperatorBytecode() {
+	}
+
+	/**
+	 * Compiles the components of ordering into methods of operatorClass.
+	 * Each method is a contiguous run of the ordering no longer than
+	 * maxMethodBytes, or a single method if maxMethodBytes is not positive.
+	 *
+	 * @param kind TRANSITION, INTERNAL or BIT
+	 * @return the names of the methods added, in the order they must be called
+	 */
+	public static String[] addMethods(CtClass operatorClass, List<Proposition> ordering, Map<Proposition, Integer> propMap, String methodName,
+			int kind, int maxMethodBytes) throws CannotCompileException {
+		ConstPool constPool = operatorClass.getClassFile().getConstPool();
+		List<Bytecode> parts = new ArrayList<Bytecode>();
+		Bytecode part = new Bytecode(constPool, MAX_STACK, MAX_LOCALS);
+		for (Proposition p : ordering) {
+			Bytecode component = new Bytecode(constPool, MAX_STACK, MAX_LOCALS);
+			if (kind == TRANSITION) {
+				addTransitionComponent(p, component, propMap);
+			} else if (kind == INTERNAL) {
+				addInternalComponent(p, component, propMap);
+			} else {
+				addBitComponent(p, component, propMap);
+			}
+			if (maxMethodBytes > 0 && part.length() > 0 && part.length() + component.length() > maxMethodBytes) {
+				parts.add(part);
+				part = new Bytecode(constPool, MAX_STACK, MAX_LOCALS);
+			}
+			// Components have no branches, so their code can be moved as is
+			for (byte b : component.get()) {
+				part.add(b);
+			}
+		}
+		parts.add(part);
+
+		String descriptor = (kind == BIT) ? "([J)V" : "([Z)V";
+		String[] names = new String[parts.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = (names.length == 1) ? methodName : methodName + "_" + i;
+			Bytecode code = parts.get(i);
+			code.addOpcode(Opcode.RETURN);
+			MethodInfo info = new MethodInfo(constPool, names[i], descriptor);
+			info.setAccessFlags((names.length == 1) ? AccessFlag.PUBLIC : AccessFlag.PRIVATE);
+			info.setCodeAttribute(code.toCodeAttribute());
+			operatorClass.addMethod(CtMethod.make(info, operatorClass));
+		}
+		return names;
+	}
+
+	private static void addInternalComponent(Proposition proposition, Bytecode code, Map<Proposition, Integer> propMap) {
+		Component comp = proposition.getSingleInput();
+		beginStore(code, propMap.get(proposition));
+		if (comp instanceof Constant) {
+			code.addIconst(comp.getValue() ? 1 : 0);
+		} else if (comp instanceof Not) {
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				code.addIconst(comp.getSingleInput().getValue() ? 0 : 1);
+			} else {
+				addLoad(code, propMap.get(comp.getSingleInput()), false);
+				code.addIconst(1);
+				code.addOpcode(Opcode.IXOR);
+			}
+		} else if (comp instanceof And || comp instanceof Or) {
+			addGate(comp, code, propMap, false);
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		code.addOpcode(Opcode.BASTORE);
+	}
+
+	private static void addTransitionComponent(Proposition proposition, Bytecode code, Map<Proposition, Integer> propMap) {
+		Component comp = proposition.getSingleInput();
+		beginStore(code, propMap.get(proposition));
+		if (comp instanceof Constant) {
+			code.addIconst(comp.getValue() ? 1 : 0);
+		} else if (comp instanceof Transition) {
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				code.addIconst(comp.getSingleInput().getValue() ? 1 : 0);
+			} else {
+				addLoad(code, propMap.get(comp.getSingleInput()), false);
+			}
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		code.addOpcode(Opcode.BASTORE);
+	}
+
+	/**
+	 * Emits one base or internal proposition of a bit operator. Every lane of
+	 * a constant is the same, so constants become 0L or -1L.
+	 */
+	private static void addBitComponent(Proposition proposition, Bytecode code, Map<Proposition, Integer> propMap) {
+		Component comp = proposition.getSingleInput();
+		beginStore(code, propMap.get(proposition));
+		if (comp instanceof Constant) {
+			code.addLconst(comp.getValue() ? -1L : 0L);
+		} else if (comp instanceof Transition || comp instanceof Not) {
+			boolean negate = comp instanceof Not;
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				code.addLconst((negate != comp.getSingleInput().getValue()) ? -1L : 0L);
+			} else {
+				addLoad(code, propMap.get(comp.getSingleInput()), true);
+				if (negate) {
+					code.addLconst(-1L);
+					code.addOpcode(Opcode.LXOR);
+				}
+			}
+		} else if (comp instanceof And || comp instanceof Or) {
+			addGate(comp, code, propMap, true);
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		code.addOpcode(Opcode.LASTORE);
+	}
+
+	/**
+	 * Pushes the value of an And or Or gate. Inputs that are not in propMap
+	 * never change: they either decide the gate or drop out.
+	 */
+	private static void addGate(Component comp, Bytecode code, Map<Proposition, Integer> propMap, boolean bits) {
+		boolean isAnd = comp instanceof And;
+		int loaded = 0;
+		for (Component prop : comp.getInputs()) {
+			if (!propMap.containsKey(prop)) {
+				if (prop.getValue() != isAnd) {
+					// The gate is constant; drop what was loaded so far
+					for (int i = 0; i < loaded; i++) {
+						code.addOpcode(bits ? Opcode.POP2 : Opcode.POP);
+					}
+					addConstant(code, !isAnd, bits);
+					return;
+				}
+			} else {
+				addLoad(code, propMap.get(prop), bits);
+				if (loaded > 0) {
+					if (bits) {
+						code.addOpcode(isAnd ? Opcode.LAND : Opcode.LOR);
+					} else {
+						code.addOpcode(isAnd ? Opcode.IAND : Opcode.IOR);
+					}
+				} else {
+					loaded = 1;
+				}
+			}
+		}
+		if (loaded == 0) {
+			addConstant(code, isAnd, bits);
+		}
+	}
+
+	private static void beginStore(Bytecode code, int index) {
+		code.addAload(PROPS);
+		code.addIconst(index);
+	}
+
+	private static void addLoad(Bytecode code, int index, boolean bits) {
+		code.addAload(PROPS);
+		code.addIconst(index);
+		code.addOpcode(bits ? Opcode.LALOAD : Opcode.BALOAD);
+	}
+
+	private static void addConstant(Bytecode code, boolean value, boolean bits) {
+		if (bits) {
+			code.addLconst(value ? -1L : 0L);
+		} else {
+			code.addIconst(value ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package util.statemachine.implementation.propnet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import player.gamer.statemachine.eggplant.misc.Log;
+import util.propnet.architecture.components.Proposition;
+
+/**
+ * Compiled operators kept in gen/cache between runs. Generated classes and
+ * native libraries are named after a digest of the circuit and orderings they
+ * were generated from, so a game that has been played before finds them on
+ * disk instead of being compiled again.
+ *
+ * Loaded classes are also remembered for the life of the JVM: a native
+ * library can be bound to one class only, so every machine built from the
+ * same circuit shares the class and creates its own instance.
+ */
+public class OperatorCache {
+	public static final File CACHE_DIR = new File("gen", "cache");
+
+	/** Changes whenever the generated code does, so stale entries are never matched */
+	private static final int VERSION = 6;
+
+	private static final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+	private static int tempCount = 0;
+
+	/**
+	 * Digest of a circuit and everything the operator factories generate from
+	 * it. The gates are taken from the flattened net, so the inputs of every
+	 * gate can be hashed in a canonical order.
+	 */
+	public static class Key {
+		private final MessageDigest digest;
+		private final Map<Proposition, Integer> propMap;
+		private String hex;
+
+		public Key(FlatPropNet net, Map<Proposition, Integer> propMap) {
+			try {
+				this.digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			this.propMap = propMap;
+			add(VERSION);
+			add(net.numProps).add(net.basePropStart).add(net.inputPropStart).add(net.internalPropStart);
+			for (int i = 0; i < net.numProps; i++) {
+				int[] gateInputs = Arrays.copyOfRange(net.inputs, net.inputOffset[i], net.inputOffset[i + 1]);
+				Arrays.sort(gateInputs);
+				add(net.type[i]).add(gateInputs.length);
+				for (int input : gateInputs) {
+					add(input);
+				}
+			}
+		}
+
+		public Key add(int value) {
+			digest.update((byte) (value >>> 24));
+			digest.update((byte) (value >>> 16));
+			digest.update((byte) (value >>> 8));
+			digest.update((byte) value);
+			return this;
+		}
+
+		public Key add(List<Proposition> ordering) {
+			add(ordering.size());
+			for (Proposition p : ordering) {
+				add(propMap.get(p));
+			}
+			return this;
+		}
+
+		/**
+		 * The digest in hex. Nothing can be added once this has been called.
+		 */
+		@Override
+		public String toString() {
+			if (hex == null) {
+				StringBuilder builder = new StringBuilder();
+				for (byte b : digest.digest()) {
+					builder.append(Character.forDigit((b >>> 4) & 0xF, 16));
+					builder.append(Character.forDigit(b & 0xF, 16));
+				}
+				hex = builder.toString();
+			}
+			return hex;
+		}
+	}
+
+	/**
+	 * Loads a class stored by defineClass, from this JVM or from the disk.
+	 *
+	 * @return null if the class has never been stored
+	 */
+	public static synchronized Class<?> findClass(String name) {
+		Class<?> loaded = classes.get(name);
+		if (loaded == null) {
+			File file = getFile(name + ".class");
+			if (file.exists()) {
+				try {
+					loaded = define(name, readFile(file));
+					Log.println('y', "Loaded " + name + " from the operator cache");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Defines a generated class and stores its bytes for later runs.
+	 */
+	public static synchronized Class<?> defineClass(String name, byte[] bytes) throws IOException {
+		Class<?> loaded = define(name, bytes);
+		writeFile(getFile(name + ".class"), bytes);
+		return loaded;
+	}
+
+	public static File getFile(String fileName) {
+		CACHE_DIR.mkdirs();
+		return new File(CACHE_DIR, fileName);
+	}
+
+	/**
+	 * A fresh file next to target that can be moved over it once complete.
+	 * Players sharing the cache directory then never see a partial file.
+	 */
+	public static synchronized File getTempFile(File target) {
+		return new File(target.getParentFile(), target.getName() + ".tmp" + System.nanoTime() + "_" + (tempCount++));
+	}
+
+	/**
+	 * Moves a completed temporary file into place. Another player may have
+	 * stored the same entry meanwhile, in which case either copy will do.
+	 */
+	public static void commit(File temp, File target) throws IOException {
+		if (!temp.renameTo(target) && !target.exists()) {
+			temp.delete();
+			throw new IOException("Could not store " + target);
+		}
+		temp.delete();
+	}
+
+	private static Class<?> define(String name, byte[] bytes) {
+		// Each class gets its own loader so that it can own a native library
+		Class<?> loaded = new OperatorClassLoader().define(name, bytes);
+		classes.put(name, loaded);
+		return loaded;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < bytes.length) {
+				int read = in.read(bytes, offset, bytes.length - offset);
+				if (read < 0)
+					throw new IOException("Truncated " + file);
+				offset += read;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static void writeFile(File file, byte[] bytes) throws IOException {
+		File temp = getTempFile(file);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		commit(temp, file);
+	}
+
+	private static class OperatorClassLoader extends ClassLoader {
+		public OperatorClassLoader() {
+			super(OperatorCache.class.getClassLoader());
+		}
+
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package util.statemachine.implementation.propnet;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -21,40 +22,145 @@ import util.propnet.architecture.components.Proposition;
 import util.propnet.architecture.components.Transition;
 
 public class OperatorFactory {
+	/** Characters of source per method in the legacy layout */
 	private static final int MAX_LENGTH = 60000;
+	/** Splits methods at MAX_LENGTH characters instead of by bytecode size */
+	public static final int LEGACY_LAYOUT = 0;
+	/**
+	 * Default bytecode budget of a generated method. Well under HotSpot's 8000
+	 * byte huge method limit, so every part is compiled on stock flags, and
+	 * small enough that C2 compiles each part quickly.
+	 */
+	public static final int DEFAULT_METHOD_BYTES = 3000;
+	/** Estimated bytecode of a statement, plus ACCESS_BYTES per array access */
+	private static final int STATEMENT_BYTES = 6;
+	private static final int ACCESS_BYTES = 10;
+	/** Bytecode of one call from a dispatcher to a part */
+	private static final int CALL_BYTES = 5;
+	/** Bytecode of one case of a switch calling a part, with its jump */
+	private static final int CASE_BYTES = 12;
+	private static final String PACKAGE = "util.statemachine.implementation.propnet.";
 	private static final String TRANSITION = "transition";
 	private static final String INTERNAL = "propagateInternal";
 	private static final String TERMINAL = "propagateTerminalOnly";
 	private static final String LEGAL = "propagateLegalOnly";
+	private static final String ALL_LEGALS = "propagateAllLegals";
 	private static final String GOAL = "propagateGoalOnly";
 	private static final String MONTE_CARLO = "monteCarlo";
 	private static final String MONTE_CARLO_INIT = "initMonteCarlo";
+	private static final String DECISION = "propagateDecision";
+	private static final String BOOLEAN_PROPS = "boolean[]";
+	private static final String BIT_PROPS = "long[]";
 	
-	private static int classCount = 0;
+	private static int maxMethodBytes = DEFAULT_METHOD_BYTES;
+	private static boolean directBytecode = true;
 	private static int constantProps = 0;
 	private static int internalProps = 0;
 
-	public static Operator buildOperator(Map<Proposition, Integer> propMap, List<Proposition> transitionOrdering, List<Proposition> internalOrdering,
-			List<Proposition> terminalOrdering, List<List<List<Proposition>>> legalOrderings, List<List<Proposition>> goalOrderings,
-			int[][] legalPropMap, int[] legalInputMap, int inputPropStart, int inputPropLength, int terminalIndex) {
+	/**
+	 * Sets the estimated bytecode size generated methods are split at, or
+	 * LEGACY_LAYOUT to split at MAX_LENGTH characters of source as before.
+	 * Operators built from then on use the new layout.
+	 */
+	public static void setMaxMethodBytes(int bytes) {
+		maxMethodBytes = bytes;
+	}
+
+	public static int getMaxMethodBytes() {
+		return maxMethodBytes;
+	}
+
+	/**
+	 * Selects between emitting propagation code straight to bytecode and
+	 * compiling generated source with the Javassist compiler. Both produce
+	 * the same operator; direct emission is much faster to build.
+	 */
+	public static void setDirectBytecode(boolean direct) {
+		directBytecode = direct;
+	}
+
+	public static boolean isDirectBytecode() {
+		return directBytecode;
+	}
+
+	/**
+	 * Builds the operator class for a circuit, or loads it from the operator
+	 * cache if one was built for the same key before.
+	 *
+	 * @param key digest of the circuit and of every argument the generated
+	 *        code depends on, see OperatorCache.Key
+	 */
+	public static Operator buildOperator(String key, Map<Proposition, Integer> propMap, List<Proposition> transitionOrdering, List<Proposition> internalOrdering,
+			List<Proposition> terminalOrdering, List<List<List<Proposition>>> legalOrderings, List<Proposition> allLegalOrdering,
+			List<List<Proposition>> goalOrderings, int[][] legalPropMap, int[] legalInputMap, int inputPropStart, int inputPropLength, int terminalIndex) {
 		try {
-			CtClass operatorSuperclass = ClassPool.getDefault().get("util.statemachine.implementation.propnet.Operator");
-			CtClass operatorClass = ClassPool.getDefault().makeClass("util.statemachine.implementation.propnet.OperatorClass" + (classCount++));
-			operatorClass.setSuperclass(operatorSuperclass);
-
-			addTransition(operatorClass, transitionOrdering, propMap);
-			addInternalPropagate(operatorClass, internalOrdering, propMap);
-			Log.println('c', "Constant Propositions: " + constantProps + "\tInternal Propositions: " + internalProps);
-			addTerminalPropagate(operatorClass, terminalOrdering, propMap);
-			addLegalPropagate(operatorClass, legalOrderings, propMap);
-			addGoalPropagate(operatorClass, goalOrderings, propMap);
-
-			addMonteCarlo(operatorClass, legalPropMap.length, legalPropMap[0].length, inputPropStart, inputPropLength, terminalIndex);
-			addMonteCarloInit(operatorClass);
-			
-			Operator operator = (Operator) operatorClass.toClass().newInstance();
+			String name = PACKAGE + "OperatorClass" + key;
+			Class<?> loaded = OperatorCache.findClass(name);
+			if (loaded == null) {
+				long start = System.currentTimeMillis();
+				CtClass operatorSuperclass = ClassPool.getDefault().get(PACKAGE + "Operator");
+				CtClass operatorClass = ClassPool.getDefault().makeClass(name);
+				operatorClass.setSuperclass(operatorSuperclass);
+
+				addTransition(operatorClass, transitionOrdering, propMap);
+				addInternalPropagate(operatorClass, internalOrdering, propMap);
+				Log.println('c', "Constant Propositions: " + constantProps + "\tInternal Propositions: " + internalProps);
+				addTerminalPropagate(operatorClass, terminalOrdering, propMap);
+				addLegalPropagate(operatorClass, legalOrderings, propMap);
+				addComponents(operatorClass, allLegalOrdering, propMap, ALL_LEGALS, OperatorBytecode.INTERNAL);
+				addGoalPropagate(operatorClass, goalOrderings, propMap);
+
+				addMonteCarlo(operatorClass, inputPropStart, inputPropLength, terminalIndex);
+				addMonteCarloInit(operatorClass);
+
+				loaded = OperatorCache.defineClass(name, operatorClass.toBytecode());
+				Log.println('y', "Operator built from " + (directBytecode ? "bytecode" : "source") + " in " + (System.currentTimeMillis() - start) + " ms");
+			}
+
+			Operator operator = (Operator) loaded.newInstance();
 			operator.initMonteCarlo(legalPropMap, legalInputMap, null, null);
 			return operator;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		} catch (IllegalAccessException ex) {
+			ex.printStackTrace();
+		} catch (InstantiationException ex) {
+			ex.printStackTrace();
+		} catch (CannotCompileException ex) {
+			ex.printStackTrace();
+		} catch (NotFoundException ex) {
+			ex.printStackTrace();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Builds an operator whose propositions are longs, evaluating 64 states
+	 * with every gate.
+	 */
+	public static BitOperator buildBitOperator(String key, Map<Proposition, Integer> propMap, List<Proposition> transitionOrdering,
+			List<Proposition> internalOrdering, List<Proposition> decisionOrdering) {
+		try {
+			String name = PACKAGE + "BitOperatorClass" + key;
+			Class<?> loaded = OperatorCache.findClass(name);
+			if (loaded == null) {
+				long start = System.currentTimeMillis();
+				CtClass operatorSuperclass = ClassPool.getDefault().get(PACKAGE + "BitOperator");
+				CtClass operatorClass = ClassPool.getDefault().makeClass(name);
+				operatorClass.setSuperclass(operatorSuperclass);
+
+				addComponents(operatorClass, transitionOrdering, propMap, TRANSITION, OperatorBytecode.BIT);
+				addComponents(operatorClass, internalOrdering, propMap, INTERNAL, OperatorBytecode.BIT);
+				addComponents(operatorClass, decisionOrdering, propMap, DECISION, OperatorBytecode.BIT);
+
+				loaded = OperatorCache.defineClass(name, operatorClass.toBytecode());
+				Log.println('y', "Bit operator built from " + (directBytecode ? "bytecode" : "source") + " in " + (System.currentTimeMillis() - start) + " ms");
+			}
+
+			return (BitOperator) loaded.newInstance();
+		} catch (IOException ex) {
+			ex.printStackTrace();
 		} catch (IllegalAccessException ex) {
 			ex.printStackTrace();
 		} catch (InstantiationException ex) {
@@ -70,20 +176,17 @@ public class OperatorFactory {
 
 	private static void addTransition(CtClass operatorClass, List<Proposition> transitionOrdering, Map<Proposition, Integer> propMap)
 			throws CannotCompileException {
-		StringBuilder[] parts = generateTransitionMethodBody(transitionOrdering, propMap);
-		addMethod(operatorClass, parts, TRANSITION);
+		addComponents(operatorClass, transitionOrdering, propMap, TRANSITION, OperatorBytecode.TRANSITION);
 	}
 
 	private static void addInternalPropagate(CtClass operatorClass, List<Proposition> internalOrdering, Map<Proposition, Integer> propMap)
 			throws CannotCompileException {
-		StringBuilder[] parts = generateInternalMethodBody(internalOrdering, propMap);
-		addMethod(operatorClass, parts, INTERNAL);
+		addComponents(operatorClass, internalOrdering, propMap, INTERNAL, OperatorBytecode.INTERNAL);
 	}
 
 	private static void addTerminalPropagate(CtClass operatorClass, List<Proposition> terminalOrdering, Map<Proposition, Integer> propMap)
 			throws CannotCompileException {
-		StringBuilder[] parts = generateInternalMethodBody(terminalOrdering, propMap);
-		addMethod(operatorClass, parts, TERMINAL);
+		addComponents(operatorClass, terminalOrdering, propMap, TERMINAL, OperatorBytecode.INTERNAL);
 	}
 
 	private static void addLegalPropagate(CtClass operatorClass, List<List<List<Proposition>>> legalOrderings, Map<Proposition, Integer> propMap)
@@ -93,10 +196,63 @@ public class OperatorFactory {
 		for (int i = 0; i < legalOrderings.size(); i++) {
 			auxSizes.add(legalOrderings.get(i).size());
 		}
-		StringBuilder body = generateRoleAuxDependentBody(LEGAL, auxSizes);
+		if (maxMethodBytes == LEGACY_LAYOUT) {
+			StringBuilder body = generateRoleAuxDependentBody(LEGAL, auxSizes);
+			addRoleAuxDependentMethod(operatorClass, body, LEGAL);
+			return;
+		}
+		for (int roleIndex = 0; roleIndex < auxSizes.size(); roleIndex++) {
+			addAuxDispatcher(operatorClass, LEGAL + "Role" + roleIndex, LEGAL + "Role" + roleIndex, 0, auxSizes.get(roleIndex));
+		}
+		StringBuilder body = new StringBuilder();
+		body.append("switch (roleIndex) {\n");
+		for (int roleIndex = 0; roleIndex < auxSizes.size(); roleIndex++) {
+			body.append("case " + roleIndex + ":\n");
+			body.append(LEGAL + "Role" + roleIndex + "(props, auxData);\n");
+			body.append("break;\n");
+		}
+		body.append("}\n");
 		addRoleAuxDependentMethod(operatorClass, body, LEGAL);
 	}
 
+	/**
+	 * Adds a method calling the helper for auxData, one of [from, to). A
+	 * switch over more helpers than fit in one method is halved into two
+	 * dispatchers until each does.
+	 *
+	 * @param helperName the helpers are helperName + "Aux" + auxData
+	 */
+	private static void addAuxDispatcher(CtClass operatorClass, String methodName, String helperName, int from, int to)
+			throws CannotCompileException {
+		int maxCases = Math.max(2, maxMethodBytes / CASE_BYTES);
+		StringBuilder body = new StringBuilder();
+		if (to - from > maxCases) {
+			int middle = (from + to) >>> 1;
+			String lower = helperName + "_" + from + "_" + middle;
+			String upper = helperName + "_" + middle + "_" + to;
+			addAuxDispatcher(operatorClass, lower, helperName, from, middle);
+			addAuxDispatcher(operatorClass, upper, helperName, middle, to);
+			body.append("if (auxData < " + middle + ")\n");
+			body.append(lower + "(props, auxData);\n");
+			body.append("else\n");
+			body.append(upper + "(props, auxData);\n");
+		} else {
+			body.append("switch (auxData) {\n");
+			for (int auxData = from; auxData < to; auxData++) {
+				body.append("case " + auxData + ":\n");
+				body.append(helperName + "Aux" + auxData + "(props);\n");
+				body.append("break;\n");
+			}
+			body.append("}\n");
+		}
+		StringBuilder method = new StringBuilder();
+		method.append("private void " + methodName + "(boolean[] props, int auxData) {\n");
+		method.append(body);
+		method.append("}\n");
+		Log.println('c', method.toString());
+		operatorClass.addMethod(CtNewMethod.make(method.toString(), operatorClass));
+	}
+
 	private static void addGoalPropagate(CtClass operatorClass, List<List<Proposition>> goalOrderings, Map<Proposition, Integer> propMap)
 			throws CannotCompileException {
 		addRoleDependentHelpers(goalOrderings, propMap, operatorClass, GOAL);
@@ -104,33 +260,29 @@ public class OperatorFactory {
 		addRoleDependentMethod(operatorClass, body, GOAL);
 	}
 
-	private static void addMonteCarlo(CtClass operatorClass, int numRoles, int numLegals, int inputStart, int numInputs, int terminalIndex)
+	private static void addMonteCarlo(CtClass operatorClass, int inputStart, int numInputs, int terminalIndex)
 			throws CannotCompileException {
 		StringBuilder body = new StringBuilder();
 		body.append("public int " + MONTE_CARLO + "(boolean[] props) {\n");
 		body.append("int depth = 0;\n");
 		body.append("while(true) {\n");
 			body.append("java.util.Arrays.fill(props, " + inputStart + ", " + (inputStart + numInputs) + ", false);\n");
-			body.append("for (int role = 0; role < " + numRoles + "; role++) {\n");
-				body.append("int[] order = new int[" + numLegals + "];\n");
-				body.append("for (int index = 0; index < " + numLegals + "; index++) {\n");
-					body.append("order[index] = index;\n");
-				body.append("}\n");
-				body.append("for (int index = " + numLegals + "-1; index >= 0; index--) {\n");
-					body.append("int swapIndex = rand.nextInt(index+1);\n");
-					body.append("int temp = order[swapIndex];\n");
-					body.append("order[swapIndex] = order[index];\n");
-					body.append("order[index] = temp;\n");
+			body.append(ALL_LEGALS + "(props);\n");
+			body.append("for (int role = 0; role < legalPropMap.length; role++) {\n");
+				body.append("int[] legals = legalPropMap[role];\n");
+				body.append("int count = 0;\n");
+				body.append("for (int i = 0; i < legals.length; i++) {\n");
+					body.append("if (props[legals[i]])\n");
+						body.append("count++;\n");
 				body.append("}\n");
-				
-				body.append("for (int i = 0; i < " + numLegals + "; i++) {\n");
-					body.append("int index = order[i];\n");
-					body.append("int inputIndex = legalInputMap[ legalPropMap[role][index] ];\n");
-					body.append("props[inputIndex] = true;\n");
-					body.append("propagateLegalOnly(props, role, index);\n");
-					body.append("if (props[ legalInputMap[ inputIndex ] ])\n");
-						body.append("break;\n");
-					body.append("props[inputIndex] = false;\n");
+				body.append("if (count > 0) {\n");
+					body.append("int choice = rand.nextInt(count);\n");
+					body.append("for (int i = 0; i < legals.length; i++) {\n");
+						body.append("if (props[legals[i]] && choice-- == 0) {\n");
+							body.append("props[ legalInputMap[legals[i]] ] = true;\n");
+							body.append("break;\n");
+						body.append("}\n");
+					body.append("}\n");
 				body.append("}\n");
 			body.append("}\n");
 
@@ -145,27 +297,78 @@ public class OperatorFactory {
 		operatorClass.addMethod(CtNewMethod.make(body.toString(), operatorClass));
 	}
 
-	private static void addMethod(CtClass operatorClass, StringBuilder[] parts, String methodName) throws CannotCompileException {
-		StringBuilder method = new StringBuilder();
-		method.append("public void " + methodName + "(boolean[] props) {\n");
-		if (parts.length == 1) {
-			method.append(parts[0]);
+	/**
+	 * Adds the method computing the components of ordering, splitting it
+	 * into parts as the layout requires.
+	 *
+	 * @param kind OperatorBytecode.TRANSITION, INTERNAL or BIT
+	 */
+	private static void addComponents(CtClass operatorClass, List<Proposition> ordering, Map<Proposition, Integer> propMap, String methodName,
+			int kind) throws CannotCompileException {
+		String propsType = (kind == OperatorBytecode.BIT) ? BIT_PROPS : BOOLEAN_PROPS;
+		if (directBytecode) {
+			// The legacy size limit is taken as bytes, which keeps every part under the 64K method limit
+			int partBytes = (maxMethodBytes == LEGACY_LAYOUT) ? MAX_LENGTH : maxMethodBytes;
+			String[] parts = OperatorBytecode.addMethods(operatorClass, ordering, propMap, methodName, kind, partBytes);
+			if (parts.length > 1) {
+				addDispatcher(operatorClass, "public", methodName, parts, propsType);
+			}
+		} else if (kind == OperatorBytecode.TRANSITION) {
+			addMethod(operatorClass, generateTransitionMethodBody(ordering, propMap), methodName, propsType);
+		} else if (kind == OperatorBytecode.INTERNAL) {
+			addMethod(operatorClass, generateInternalMethodBody(ordering, propMap), methodName, propsType);
 		} else {
-			for (int i = 0; i < parts.length; i++) {
-				StringBuilder partMethod = new StringBuilder("private void " + methodName + "_" + i + "(boolean[] props) {\n");
-				partMethod.append(parts[i]);
-				partMethod.append("}\n");
+			addMethod(operatorClass, generateBitMethodBody(ordering, propMap), methodName, propsType);
+		}
+	}
+
+	private static void addMethod(CtClass operatorClass, StringBuilder[] parts, String methodName, String propsType) throws CannotCompileException {
+		if (parts.length == 1) {
+			addMethod(operatorClass, "public", methodName, parts[0], propsType);
+			return;
+		}
+		String[] calls = new String[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			calls[i] = methodName + "_" + i;
+			addMethod(operatorClass, "private", calls[i], parts[i], propsType);
+		}
+		addDispatcher(operatorClass, "public", methodName, calls, propsType);
+	}
 
-				operatorClass.addMethod(CtNewMethod.make(partMethod.toString(), operatorClass));
-				method.append(methodName + "_" + i + "(props);\n");
+	/**
+	 * Adds a method calling every method in calls in order. If the calls do
+	 * not fit in one method, they are spread over a tree of dispatchers.
+	 */
+	private static void addDispatcher(CtClass operatorClass, String access, String methodName, String[] calls, String propsType)
+			throws CannotCompileException {
+		int maxCalls = Math.max(2, maxMethodBytes / CALL_BYTES);
+		if (maxMethodBytes != LEGACY_LAYOUT && calls.length > maxCalls) {
+			String[] groups = new String[(calls.length + maxCalls - 1) / maxCalls];
+			for (int g = 0; g < groups.length; g++) {
+				String[] groupCalls = new String[Math.min(maxCalls, calls.length - g * maxCalls)];
+				System.arraycopy(calls, g * maxCalls, groupCalls, 0, groupCalls.length);
+				groups[g] = methodName + "_g" + g;
+				addDispatcher(operatorClass, "private", groups[g], groupCalls, propsType);
 			}
+			calls = groups;
+		}
+		StringBuilder body = new StringBuilder();
+		for (String call : calls) {
+			body.append(call + "(props);\n");
 		}
+		addMethod(operatorClass, access, methodName, body, propsType);
+	}
 
+	private static void addMethod(CtClass operatorClass, String access, String methodName, StringBuilder body, String propsType)
+			throws CannotCompileException {
+		StringBuilder method = new StringBuilder();
+		method.append(access + " void " + methodName + "(" + propsType + " props) {\n");
+		method.append(body);
 		method.append("}\n");
 		Log.println('c', method.toString());
 		operatorClass.addMethod(CtNewMethod.make(method.toString(), operatorClass));
 	}
-	
+
 	private static void addRoleDependentMethod(CtClass operatorClass, StringBuilder body, String methodName) throws CannotCompileException {
 		StringBuilder method = new StringBuilder();
 		method.append("public void " + methodName + "(boolean[] props, int roleIndex) {\n");
@@ -187,13 +390,18 @@ public class OperatorFactory {
 	private static StringBuilder[] generateInternalMethodBody(List<Proposition> ordering, Map<Proposition, Integer> propMap) {
 		List<StringBuilder> bodies = new LinkedList<StringBuilder>();
 		StringBuilder body = new StringBuilder();
+		int bytes = 0;
 		for (Proposition p : ordering) {
-			addInternalComponent(p, body, propMap);
-
-			if (body.length() > MAX_LENGTH) {
+			StringBuilder statement = new StringBuilder();
+			addInternalComponent(p, statement, propMap);
+			int statementBytes = estimateBytes(statement);
+			if (isFull(body, bytes + statementBytes)) {
 				bodies.add(body);
 				body = new StringBuilder();
+				bytes = 0;
 			}
+			body.append(statement);
+			bytes += statementBytes;
 		}
 		bodies.add(body);
 		return bodies.toArray(new StringBuilder[0]);
@@ -202,18 +410,67 @@ public class OperatorFactory {
 	private static StringBuilder[] generateTransitionMethodBody(List<Proposition> ordering, Map<Proposition, Integer> propMap) {
 		List<StringBuilder> bodies = new LinkedList<StringBuilder>();
 		StringBuilder body = new StringBuilder();
+		int bytes = 0;
 		for (Proposition p : ordering) {
-			addTransitionComponent(p, body, propMap);
+			StringBuilder statement = new StringBuilder();
+			addTransitionComponent(p, statement, propMap);
+			int statementBytes = estimateBytes(statement);
+			if (isFull(body, bytes + statementBytes)) {
+				bodies.add(body);
+				body = new StringBuilder();
+				bytes = 0;
+			}
+			body.append(statement);
+			bytes += statementBytes;
+		}
+		bodies.add(body);
+		return bodies.toArray(new StringBuilder[0]);
+	}
 
-			if (body.length() > MAX_LENGTH) {
+	private static StringBuilder[] generateBitMethodBody(List<Proposition> ordering, Map<Proposition, Integer> propMap) {
+		List<StringBuilder> bodies = new LinkedList<StringBuilder>();
+		StringBuilder body = new StringBuilder();
+		int bytes = 0;
+		for (Proposition p : ordering) {
+			StringBuilder statement = new StringBuilder();
+			addBitComponent(p, statement, propMap);
+			int statementBytes = estimateBytes(statement);
+			if (isFull(body, bytes + statementBytes)) {
 				bodies.add(body);
 				body = new StringBuilder();
+				bytes = 0;
 			}
+			body.append(statement);
+			bytes += statementBytes;
 		}
 		bodies.add(body);
 		return bodies.toArray(new StringBuilder[0]);
 	}
 
+	/**
+	 * Parts are contiguous runs of the ordering. The orderings are depth-first
+	 * topological (BooleanPropNet.depthFirstSort), so most gates end up in the
+	 * same part as their inputs.
+	 */
+	private static boolean isFull(StringBuilder body, int bytes) {
+		if (body.length() == 0) {
+			return false;
+		}
+		if (maxMethodBytes == LEGACY_LAYOUT) {
+			return body.length() > MAX_LENGTH;
+		}
+		return bytes > maxMethodBytes;
+	}
+
+	/** Rough bytecode size of a statement, from its number of array accesses */
+	private static int estimateBytes(StringBuilder statement) {
+		int accesses = 0;
+		for (int i = statement.indexOf("props["); i >= 0; i = statement.indexOf("props[", i + 1)) {
+			accesses++;
+		}
+		return STATEMENT_BYTES + ACCESS_BYTES * accesses;
+	}
+
 	private static StringBuilder generateRoleDependentBody(String name, int roles) {
 		StringBuilder body = new StringBuilder();
 		body.append("switch (roleIndex) {\n");
@@ -247,8 +504,7 @@ public class OperatorFactory {
 	private static void addRoleDependentHelpers(List<List<Proposition>> orderings, Map<Proposition, Integer> propMap, CtClass operatorClass,
 			String name) throws CannotCompileException {
 		for (int roleIndex = 0; roleIndex < orderings.size(); roleIndex++) {
-			StringBuilder[] parts = generateInternalMethodBody(orderings.get(roleIndex), propMap);
-			addMethod(operatorClass, parts, name + "Role" + roleIndex);
+			addComponents(operatorClass, orderings.get(roleIndex), propMap, name + "Role" + roleIndex, OperatorBytecode.INTERNAL);
 		}
 	}
 	
@@ -256,8 +512,8 @@ public class OperatorFactory {
 			String name) throws CannotCompileException {
 		for (int roleIndex = 0; roleIndex < orderings.size(); roleIndex++) {
 			for (int auxData = 0; auxData < orderings.get(roleIndex).size(); auxData++) {
-				StringBuilder[] parts = generateInternalMethodBody(orderings.get(roleIndex).get(auxData), propMap);
-				addMethod(operatorClass, parts, name + "Role" + roleIndex + "Aux" + auxData);
+				addComponents(operatorClass, orderings.get(roleIndex).get(auxData), propMap, name + "Role" + roleIndex + "Aux" + auxData,
+						OperatorBytecode.INTERNAL);
 			}
 		}
 	}
@@ -342,6 +598,51 @@ public class OperatorFactory {
 		}
 	}
 	
+	/**
+	 * Emits one base or internal proposition of a bit operator. Every lane of
+	 * a constant is the same, so constants become 0L or -1L.
+	 */
+	private static void addBitComponent(Proposition proposition, StringBuilder body, Map<Proposition, Integer> propMap) {
+		int propositionIndex = propMap.get(proposition);
+		Component comp = proposition.getSingleInput();
+		body.append("props[" + propositionIndex + "] = ");
+		if (comp instanceof Constant) {
+			body.append(bitConstant(comp.getValue()));
+		} else if (comp instanceof Transition || comp instanceof Not) {
+			String prefix = (comp instanceof Not) ? "~" : "";
+			if (!propMap.containsKey(comp.getSingleInput())) {
+				body.append(bitConstant((comp instanceof Not) != comp.getSingleInput().getValue()));
+			} else {
+				body.append(prefix + "props[" + propMap.get(comp.getSingleInput()) + "]");
+			}
+		} else if (comp instanceof And || comp instanceof Or) {
+			boolean isAnd = comp instanceof And;
+			StringBuilder gate = new StringBuilder();
+			for (Component prop : comp.getInputs()) {
+				if (!propMap.containsKey(prop)) {
+					// constant inputs either decide the gate or drop out
+					if (prop.getValue() != isAnd) {
+						gate = new StringBuilder(bitConstant(!isAnd));
+						break;
+					}
+				} else {
+					if (gate.length() > 0) {
+						gate.append(isAnd ? " & " : " | ");
+					}
+					gate.append("props[" + propMap.get(prop) + "]");
+				}
+			}
+			body.append(gate.length() > 0 ? gate.toString() : bitConstant(isAnd));
+		} else {
+			throw new RuntimeException("Unexpected Class");
+		}
+		body.append(";\n");
+	}
+
+	private static String bitConstant(boolean value) {
+		return value ? "-1L" : "0L";
+	}
+
 	private static void addMonteCarloInit(CtClass operatorClass) throws CannotCompileException{
 		StringBuilder body = new StringBuilder();
 		body.append("public void " + MONTE_CARLO_INIT + "(int[][] legalPropMap, int[] legalInputMap, int[] goalProps, int[] goalValues) {\n");
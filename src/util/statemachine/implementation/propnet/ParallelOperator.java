@@ -0,0 +1,203 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Interpreted operator for very large nets that spreads each propagation
+ * over several cores. The propositions to evaluate are split into their
+ * dependency levels; the levels are evaluated one after the other, and the
+ * gates of a level in chunks on a shared ForkJoinPool.
+ *
+ * Levels of fewer than the sequential cutoff propositions are evaluated on
+ * the calling thread, as are whole propagations with no level that large, so
+ * that small cones do not pay for the hand-off to the pool.
+ *
+ * Like its superclass it keeps no state between calls, so any number of
+ * threads may use the same instance.
+ */
+public class ParallelOperator extends InterpretedOperator {
+	/** Propositions evaluated by one task */
+	private static final int CHUNK = 1024;
+
+	/** Levels smaller than this are not worth handing to the pool */
+	private static int sequentialCutoff = 8 * CHUNK;
+
+	private static ForkJoinPool pool;
+
+	private final int cutoff;
+	private final int[] internalOrdering;
+	private final int[] internalLevels;
+	private final int[] terminalLevels;
+	private final int[] allLegalsLevels;
+	private final int[][] goalLevels;
+
+	/**
+	 * @param goalPropMap the {goal prop, goal value} pairs of every role
+	 */
+	public ParallelOperator(FlatPropNet net, int terminalIndex, int[][] legalPropMap, int[][][] goalPropMap) {
+		super(net, terminalIndex, legalPropMap, goalPropMap);
+		this.cutoff = sequentialCutoff;
+		this.internalOrdering = getInternalOrdering(net);
+		this.internalLevels = getParallelLevels(net, internalOrdering, cutoff);
+		this.terminalLevels = getParallelLevels(net, terminalCone, cutoff);
+		this.allLegalsLevels = getParallelLevels(net, allLegalsCone, cutoff);
+		this.goalLevels = new int[goalCones.length][];
+		for (int role = 0; role < goalCones.length; role++) {
+			goalLevels[role] = getParallelLevels(net, goalCones[role], cutoff);
+		}
+	}
+
+	/**
+	 * An operator sharing the cones and level schedules of copy.
+	 */
+	protected ParallelOperator(ParallelOperator copy) {
+		super(copy);
+		this.cutoff = copy.cutoff;
+		this.internalOrdering = copy.internalOrdering;
+		this.internalLevels = copy.internalLevels;
+		this.terminalLevels = copy.terminalLevels;
+		this.allLegalsLevels = copy.allLegalsLevels;
+		this.goalLevels = copy.goalLevels;
+	}
+
+	/**
+	 * Whether any level of net is large enough to be evaluated in parallel.
+	 */
+	public static boolean isWorthwhile(FlatPropNet net) {
+		return getParallelLevels(net, getInternalOrdering(net), sequentialCutoff) != null;
+	}
+
+	/**
+	 * Sets the size below which a level is evaluated on the calling thread,
+	 * for operators built from now on.
+	 */
+	public static void setSequentialCutoff(int cutoff) {
+		sequentialCutoff = Math.max(1, cutoff);
+	}
+
+	public static int getSequentialCutoff() {
+		return sequentialCutoff;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	private static int[] getInternalOrdering(FlatPropNet net) {
+		int[] ordering = new int[net.numProps - net.internalPropStart];
+		for (int i = 0; i < ordering.length; i++) {
+			ordering[i] = net.internalPropStart + i;
+		}
+		return ordering;
+	}
+
+	/**
+	 * The level offsets of ordering, or null if no level reaches the
+	 * sequential cutoff.
+	 */
+	private static int[] getParallelLevels(FlatPropNet net, int[] ordering, int cutoff) {
+		if (ordering.length < cutoff) {
+			return null;
+		}
+		int[] offsets = net.getLevelOffsets(ordering);
+		for (int l = 0; l + 1 < offsets.length; l++) {
+			if (offsets[l + 1] - offsets[l] >= cutoff) {
+				return offsets;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Operator fork() {
+		Operator copy = new ParallelOperator(this);
+		copy.initMonteCarlo(legalPropMap, legalInputMap, null, null);
+		return copy;
+	}
+
+	@Override
+	public void propagateInternal(boolean[] props) {
+		if (internalLevels == null) {
+			super.propagateInternal(props);
+		} else {
+			evaluateLevels(props, internalOrdering, internalLevels);
+		}
+	}
+
+	@Override
+	public void propagateTerminalOnly(boolean[] props) {
+		evaluateLevels(props, terminalCone, terminalLevels);
+	}
+
+	@Override
+	public void propagateLegalOnly(boolean[] props, int role, int legalIndex) {
+		evaluateLevels(props, allLegalsCone, allLegalsLevels);
+	}
+
+	@Override
+	public void propagateAllLegals(boolean[] props) {
+		evaluateLevels(props, allLegalsCone, allLegalsLevels);
+	}
+
+	@Override
+	public void propagateGoalOnly(boolean[] props, int role) {
+		evaluateLevels(props, goalCones[role], goalLevels[role]);
+	}
+
+	private void evaluateLevels(boolean[] props, int[] ordering, int[] offsets) {
+		if (offsets == null) {
+			net.evaluateAll(props, ordering);
+			return;
+		}
+		for (int l = 0; l + 1 < offsets.length; l++) {
+			int from = offsets[l];
+			int to = offsets[l + 1];
+			if (to - from < cutoff) {
+				for (int i = from; i < to; i++) {
+					props[ordering[i]] = net.evaluate(ordering[i], props);
+				}
+			} else {
+				// invoke returns once every chunk is done, so the next level
+				// sees all of this level's values
+				getPool().invoke(new LevelTask(net, props, ordering, from, to));
+			}
+		}
+	}
+
+	/**
+	 * Evaluates ordering[from, to), which must lie within one level, by
+	 * splitting it into chunks of CHUNK.
+	 */
+	private static class LevelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final FlatPropNet net;
+		private final boolean[] props;
+		private final int[] ordering;
+		private final int from;
+		private final int to;
+
+		public LevelTask(FlatPropNet net, boolean[] props, int[] ordering, int from, int to) {
+			this.net = net;
+			this.props = props;
+			this.ordering = ordering;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				for (int i = from; i < to; i++) {
+					props[ordering[i]] = net.evaluate(ordering[i], props);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new LevelTask(net, props, ordering, from, middle), new LevelTask(net, props, ordering, middle, to));
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package util.statemachine.implementation.propnet;
+
+/**
+ * Layout of the int[] filled by a batch of statistics playouts. A single
+ * call gathers, over all of its playouts:
+ *
+ * - the number of playouts and their total depth,
+ * - for every role, the number of playouts ending in each of its goals,
+ * - a histogram of playout depths, the last bucket holding every depth from
+ *   there on,
+ * - for every role and every legal move, the number of playouts that began
+ *   with that move and the sum of the role's goal values over them.
+ *
+ * Goal values are scaled, so a goal sum passes the range of an int after a
+ * few tens of thousands of wins; the sums therefore sit at the end of the
+ * array as 64-bit values, each in two ints, low half first. The counts and
+ * TOTAL_DEPTH are plain ints: TOTAL_DEPTH overflows once the depths of the
+ * playouts add up to 2^31, around 20 million playouts of 100 moves, so
+ * longer runs should be split over several arrays.
+ *
+ * Instances are immutable and hold the layout in the flat form read by the
+ * native operators, so the same instance can be passed to every call.
+ */
+public class PlayoutStatistics {
+	public static final int PROBES = 0;
+	public static final int TOTAL_DEPTH = 1;
+	private static final int HEADER = 2;
+
+	final int inputPropStart;
+	final int internalPropStart;
+	final int terminalIndex;
+
+	private final int numRoles;
+	private final int depthBuckets;
+	private final int depthOffset;
+	private final int[] goalOffset;
+	private final int[] firstMoveOffset;
+	private final int[] goalSumOffset;
+	private final int[] numLegals;
+	private final int[][][] goalPropMap;
+	private final int size;
+
+	/**
+	 * {numRoles, depthOffset, depthBuckets, sumStart} followed, for every
+	 * role, by {goalOffset, firstMoveOffset, goalSumOffset, numLegals,
+	 * numGoals} and its numGoals {goal prop, goal value} pairs. Every slot
+	 * from sumStart on belongs to a 64-bit goal sum.
+	 */
+	private final int[] layout;
+
+	/**
+	 * @param goalPropMap the {goal prop, goal value} pairs of every role
+	 */
+	public PlayoutStatistics(int[][] legalPropMap, int[][][] goalPropMap, int inputPropStart, int internalPropStart, int terminalIndex,
+			int depthBuckets) {
+		this.inputPropStart = inputPropStart;
+		this.internalPropStart = internalPropStart;
+		this.terminalIndex = terminalIndex;
+		this.numRoles = legalPropMap.length;
+		this.depthBuckets = Math.max(1, depthBuckets);
+		this.goalPropMap = goalPropMap;
+		this.goalOffset = new int[numRoles];
+		this.firstMoveOffset = new int[numRoles];
+		this.goalSumOffset = new int[numRoles];
+		this.numLegals = new int[numRoles];
+
+		int offset = HEADER;
+		int layoutSize = 4;
+		for (int role = 0; role < numRoles; role++) {
+			goalOffset[role] = offset;
+			offset += goalPropMap[role].length;
+			layoutSize += 5 + 2 * goalPropMap[role].length;
+		}
+		this.depthOffset = offset;
+		offset += this.depthBuckets;
+		for (int role = 0; role < numRoles; role++) {
+			numLegals[role] = legalPropMap[role].length;
+			firstMoveOffset[role] = offset;
+			offset += numLegals[role];
+		}
+		int sumStart = offset;
+		for (int role = 0; role < numRoles; role++) {
+			goalSumOffset[role] = offset;
+			offset += 2 * numLegals[role];
+		}
+		this.size = offset;
+
+		this.layout = new int[layoutSize];
+		int i = 0;
+		layout[i++] = numRoles;
+		layout[i++] = depthOffset;
+		layout[i++] = this.depthBuckets;
+		layout[i++] = sumStart;
+		for (int role = 0; role < numRoles; role++) {
+			layout[i++] = goalOffset[role];
+			layout[i++] = firstMoveOffset[role];
+			layout[i++] = goalSumOffset[role];
+			layout[i++] = numLegals[role];
+			layout[i++] = goalPropMap[role].length;
+			for (int[] goal : goalPropMap[role]) {
+				layout[i++] = goal[0];
+				layout[i++] = goal[1];
+			}
+		}
+	}
+
+	/**
+	 * Length of the int[] to pass to a statistics playout.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int[] getLayout() {
+		return layout;
+	}
+
+	public int getDepthBuckets() {
+		return depthBuckets;
+	}
+
+	public int getProbes(int[] stats) {
+		return stats[PROBES];
+	}
+
+	public float getAverageDepth(int[] stats) {
+		return stats[PROBES] == 0 ? 0 : stats[TOTAL_DEPTH] / (float) stats[PROBES];
+	}
+
+	/**
+	 * Number of playouts that ended in the goal'th goal of role, in the
+	 * order of its goal propositions.
+	 */
+	public int getGoalCount(int[] stats, int role, int goal) {
+		return stats[goalOffset[role] + goal];
+	}
+
+	public int getDepthCount(int[] stats, int depth) {
+		return stats[depthOffset + Math.min(depth, depthBuckets - 1)];
+	}
+
+	/**
+	 * Number of playouts in which role's first move was legalPropMap[role][legal].
+	 */
+	public int getFirstMoveCount(int[] stats, int role, int legal) {
+		return stats[firstMoveOffset[role] + legal];
+	}
+
+	/**
+	 * Sum of role's goal values over the playouts that began with
+	 * legalPropMap[role][legal].
+	 */
+	public long getFirstMoveGoalSum(int[] stats, int role, int legal) {
+		int i = goalSumOffset[role] + 2 * legal;
+		return (stats[i + 1] & 0xFFFFFFFFL) << 32 | (stats[i] & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Records one finished playout. props must hold the terminal state with
+	 * its internal propositions propagated; firstMoves[role] is the index of
+	 * role's first move, or -1 if role had no legal move in the first state.
+	 */
+	void record(int[] stats, boolean[] props, int depth, int[] firstMoves) {
+		stats[PROBES]++;
+		stats[TOTAL_DEPTH] += depth;
+		stats[depthOffset + Math.min(depth, depthBuckets - 1)]++;
+		for (int role = 0; role < numRoles; role++) {
+			int[][] goals = goalPropMap[role];
+			int value = 0;
+			for (int g = 0; g < goals.length; g++) {
+				if (props[goals[g][0]]) {
+					stats[goalOffset[role] + g]++;
+					value = goals[g][1];
+					break;
+				}
+			}
+			if (firstMoves[role] >= 0) {
+				stats[firstMoveOffset[role] + firstMoves[role]]++;
+				int i = goalSumOffset[role] + 2 * firstMoves[role];
+				long sum = ((stats[i + 1] & 0xFFFFFFFFL) << 32 | (stats[i] & 0xFFFFFFFFL)) + value;
+				stats[i] = (int) sum;
+				stats[i + 1] = (int) (sum >>> 32);
+			}
+		}
+	}
+}
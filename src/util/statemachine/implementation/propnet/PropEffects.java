@@ -0,0 +1,454 @@
+package util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import player.gamer.statemachine.eggplant.misc.Log;
+import util.propnet.architecture.Component;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+
+/**
+ * What the value of every proposition implies about the values of the others,
+ * in the same turn and in the next one. Each proposition has a sparse row of
+ * the propositions it affects, sorted by index, with one code per entry made
+ * of the IF_FALSE and IF_TRUE bits below.
+ *
+ * Same-turn rows are built from the outputs inwards, a level of the circuit at
+ * a time; the rows of a level only read the rows of the levels before it, so
+ * each level is split over a fork/join pool. Next-turn rows are the closure of
+ * the transitions over the same-turn rows and are independent of each other.
+ * Analysis stops at a deadline: rows not computed by then are left empty,
+ * which only hides effects and never reports a wrong one.
+ */
+public class PropEffects {
+	/** The affected proposition is false when the source is false */
+	public static final int FALSE_IF_FALSE = 1;
+	/** The affected proposition is true when the source is false */
+	public static final int TRUE_IF_FALSE = 2;
+	/** The affected proposition is false when the source is true */
+	public static final int FALSE_IF_TRUE = 4;
+	/** The affected proposition is true when the source is true */
+	public static final int TRUE_IF_TRUE = 8;
+
+	/** Rows computed by each leaf task */
+	private static final int CHUNK = 64;
+	private static final int[] EMPTY_PROPS = new int[0];
+	private static final byte[] EMPTY_CODES = new byte[0];
+
+	private final int numProps;
+	private final int[][] sameProps;
+	private final byte[][] sameCodes;
+	private final int[][] nextProps;
+	private final byte[][] nextCodes;
+	private int rowsComplete;
+	/** Scratch space of every thread computing rows, cleared after each row */
+	private final ThreadLocal<Scratch> scratch;
+
+	private PropEffects(int numProps) {
+		this.numProps = numProps;
+		this.sameProps = new int[numProps][];
+		this.sameCodes = new byte[numProps][];
+		this.nextProps = new int[numProps][];
+		this.nextCodes = new byte[numProps][];
+		Arrays.fill(sameProps, EMPTY_PROPS);
+		Arrays.fill(sameCodes, EMPTY_CODES);
+		Arrays.fill(nextProps, EMPTY_PROPS);
+		Arrays.fill(nextCodes, EMPTY_CODES);
+		this.scratch = new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch(PropEffects.this.numProps);
+			}
+		};
+	}
+
+	/**
+	 * Computes the effects of every proposition of a BooleanPropNet, giving up
+	 * on the rows not done after timeLimit ms.
+	 *
+	 * @param goalPropMap the {goal prop, goal value} pairs of every role
+	 */
+	public static PropEffects analyze(Proposition[] propIndex, Map<Proposition, Integer> propMap, int[][][] goalPropMap, int basePropStart,
+			int inputPropStart, int internalPropStart, long timeLimit) {
+		long deadline = System.currentTimeMillis() + timeLimit;
+		PropEffects effects = new PropEffects(propIndex.length);
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			effects.sameTurn(pool, propIndex, propMap, goalPropMap, inputPropStart, internalPropStart, deadline);
+			// Base propositions first, as they are the latches heuristics use
+			effects.nextTurn(pool, basePropStart, inputPropStart, deadline);
+			effects.nextTurn(pool, 0, basePropStart, deadline);
+			effects.nextTurn(pool, inputPropStart, propIndex.length, deadline);
+		} finally {
+			pool.shutdown();
+			// The calling thread may have run tasks too
+			effects.scratch.remove();
+		}
+		return effects;
+	}
+
+	public int[] getSameTurnProps(int prop) {
+		return sameProps[prop];
+	}
+
+	public int[] getNextTurnProps(int prop) {
+		return nextProps[prop];
+	}
+
+	/**
+	 * The effect of source on prop in the same turn, as {effect if source is
+	 * false, effect if source is true} with -1 for false, 1 for true and 0
+	 * for no effect, or null if source does not affect prop.
+	 */
+	public int[] getSameTurnEffect(int source, int prop) {
+		return decode(sameProps[source], sameCodes[source], prop);
+	}
+
+	public int[] getNextTurnEffect(int source, int prop) {
+		return decode(nextProps[source], nextCodes[source], prop);
+	}
+
+	/** Once true, prop stays true */
+	public boolean isTrueLatch(int prop) {
+		return (code(nextProps[prop], nextCodes[prop], prop) & TRUE_IF_TRUE) != 0;
+	}
+
+	/** Once false, prop stays false */
+	public boolean isFalseLatch(int prop) {
+		return (code(nextProps[prop], nextCodes[prop], prop) & FALSE_IF_FALSE) != 0;
+	}
+
+	/**
+	 * Number of next-turn rows computed; less than the number of
+	 * propositions if the analysis ran out of time.
+	 */
+	public synchronized int getRowsComplete() {
+		return rowsComplete;
+	}
+
+	private synchronized void addRowsComplete(int rows) {
+		rowsComplete += rows;
+	}
+
+	private static int code(int[] props, byte[] codes, int prop) {
+		int i = Arrays.binarySearch(props, prop);
+		return i < 0 ? 0 : codes[i];
+	}
+
+	private static int[] decode(int[] props, byte[] codes, int prop) {
+		int code = code(props, codes, prop);
+		if (code == 0)
+			return null;
+		int[] effect = new int[2];
+		effect[0] = ((code & FALSE_IF_FALSE) != 0) ? -1 : ((code & TRUE_IF_FALSE) != 0) ? 1 : 0;
+		effect[1] = ((code & FALSE_IF_TRUE) != 0) ? -1 : ((code & TRUE_IF_TRUE) != 0) ? 1 : 0;
+		return effect;
+	}
+
+	private static int falseBit(int tf) {
+		return tf == 0 ? FALSE_IF_FALSE : FALSE_IF_TRUE;
+	}
+
+	private static int trueBit(int tf) {
+		return tf == 0 ? TRUE_IF_FALSE : TRUE_IF_TRUE;
+	}
+
+	/**
+	 * Builds the same-turn rows, and the direct next-turn rows, level by
+	 * level. A proposition's level is one more than that of the highest gate
+	 * output it feeds; gate outputs always have higher indices than their
+	 * inputs.
+	 */
+	private void sameTurn(ForkJoinPool pool, final Proposition[] propIndex, final Map<Proposition, Integer> propMap, int[][][] goalPropMap,
+			final int inputPropStart, final int internalPropStart, long deadline) {
+		// The other goals of the same role, for every goal proposition
+		final int[][] otherGoals = new int[numProps][];
+		for (int role = 0; role < goalPropMap.length; role++) {
+			for (int goal = 0; goal < goalPropMap[role].length; goal++) {
+				int goalNum = goalPropMap[role][goal][0];
+				if (otherGoals[goalNum] != null)
+					continue;
+				otherGoals[goalNum] = new int[goalPropMap[role].length - 1];
+				int i = 0;
+				for (int otherGoal = 0; otherGoal < goalPropMap[role].length; otherGoal++) {
+					if (otherGoal != goal)
+						otherGoals[goalNum][i++] = goalPropMap[role][otherGoal][0];
+				}
+			}
+		}
+
+		int[] level = new int[numProps];
+		int maxLevel = 0;
+		for (int propNum = numProps - 1; propNum >= 0; propNum--) {
+			for (Component output : propIndex[propNum].getOutputs()) {
+				if (output instanceof Transition)
+					continue;
+				Integer nextPropNum = propMap.get(output.getSingleOutput());
+				if (nextPropNum != null)
+					level[propNum] = Math.max(level[propNum], level[nextPropNum] + 1);
+			}
+			maxLevel = Math.max(maxLevel, level[propNum]);
+		}
+		List<List<Integer>> levels = new ArrayList<List<Integer>>();
+		for (int l = 0; l <= maxLevel; l++) {
+			levels.add(new ArrayList<Integer>());
+		}
+		for (int propNum = 0; propNum < numProps; propNum++) {
+			levels.get(level[propNum]).add(propNum);
+		}
+
+		for (List<Integer> props : levels) {
+			if (System.currentTimeMillis() > deadline) {
+				Log.println('l', "Same-turn effects stopped at the time limit");
+				return;
+			}
+			final int[] rows = new int[props.size()];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = props.get(i);
+			}
+			pool.invoke(new RowTask(new RowWork() {
+				public void compute(int from, int to) {
+					Scratch local = scratch.get();
+					for (int i = from; i < to; i++) {
+						buildSameTurnRow(rows[i], propIndex, propMap, otherGoals, inputPropStart, internalPropStart, local.same, local.next);
+					}
+				}
+			}, 0, rows.length, deadline));
+		}
+	}
+
+	private void buildSameTurnRow(int propNum, Proposition[] propIndex, Map<Proposition, Integer> propMap, int[][] otherGoals,
+			int inputPropStart, int internalPropStart, Row same, Row next) {
+		if (propNum >= inputPropStart && propNum < internalPropStart) {
+			// Moves of a role exclude each other
+			for (int input = inputPropStart; input < internalPropStart; input++) {
+				same.mark(input, 1, false);
+			}
+		}
+		if (otherGoals[propNum] != null) {
+			for (int otherGoal : otherGoals[propNum]) {
+				same.mark(otherGoal, 1, false);
+			}
+		}
+		same.mark(propNum, 0, false);
+		same.mark(propNum, 1, true);
+
+		for (Component output : propIndex[propNum].getOutputs()) {
+			Integer nextPropNum = propMap.get(output.getSingleOutput());
+			if (nextPropNum == null)
+				continue;
+			int n = nextPropNum;
+			if ((output instanceof And || output instanceof Or) && output.getInputs().size() == 1) {
+				same.mark(n, 0, false);
+				same.mark(n, 1, true);
+				for (int tf = 0; tf < 2; tf++) {
+					same.copy(sameProps[n], sameCodes[n], tf, tf);
+					next.copy(nextProps[n], nextCodes[n], tf, tf);
+				}
+			} else if (output instanceof And) {
+				same.mark(n, 0, false);
+				same.copy(sameProps[n], sameCodes[n], 0, 0);
+				next.copy(nextProps[n], nextCodes[n], 0, 0);
+			} else if (output instanceof Or) {
+				same.mark(n, 1, true);
+				same.copy(sameProps[n], sameCodes[n], 1, 1);
+				next.copy(nextProps[n], nextCodes[n], 1, 1);
+			} else if (output instanceof Not) {
+				same.mark(n, 0, true);
+				same.mark(n, 1, false);
+				for (int tf = 0; tf < 2; tf++) {
+					same.copy(sameProps[n], sameCodes[n], tf, 1 - tf);
+					next.copy(nextProps[n], nextCodes[n], tf, 1 - tf);
+				}
+			} else if (output instanceof Transition) {
+				next.mark(n, 0, false);
+				next.mark(n, 1, true);
+			}
+		}
+		same.freeze(propNum, sameProps, sameCodes);
+		next.freeze(propNum, nextProps, nextCodes);
+	}
+
+	/**
+	 * Closes the next-turn rows of [from, to) over the same-turn rows: what a
+	 * proposition implies about the next state in turn implies whatever those
+	 * propositions imply in that state.
+	 */
+	private void nextTurn(ForkJoinPool pool, int from, int to, long deadline) {
+		pool.invoke(new RowTask(new RowWork() {
+			public void compute(int from, int to) {
+				Scratch local = scratch.get();
+				for (int index = from; index < to; index++) {
+					closeNextTurnRow(index, local.next, local.queue, local.visited);
+				}
+				addRowsComplete(to - from);
+			}
+		}, from, to, deadline));
+	}
+
+	private void closeNextTurnRow(int index, Row next, int[] queue, boolean[] visited) {
+		int[] props = nextProps[index];
+		byte[] codes = nextCodes[index];
+		int head = 0;
+		int tail = 0;
+		for (int i = 0; i < props.length; i++) {
+			next.set(props[i], codes[i]);
+			queue[tail++] = props[i];
+			visited[props[i]] = true;
+		}
+		while (head < tail) {
+			int propNum = queue[head++];
+			for (int tf = 0; tf < 2; tf++) {
+				int code = next.get(propNum);
+				int effect;
+				if ((code & falseBit(tf)) != 0) {
+					effect = 0;
+				} else if ((code & trueBit(tf)) != 0) {
+					effect = 1;
+				} else {
+					continue;
+				}
+				int[] sameRow = sameProps[propNum];
+				byte[] sameRowCodes = sameCodes[propNum];
+				for (int i = 0; i < sameRow.length; i++) {
+					int other = sameRow[i];
+					int otherCode = sameRowCodes[i];
+					if ((otherCode & falseBit(effect)) != 0) {
+						next.mark(other, tf, false);
+					} else if ((otherCode & trueBit(effect)) != 0) {
+						next.mark(other, tf, true);
+					} else {
+						continue;
+					}
+					if (!visited[other]) {
+						visited[other] = true;
+						queue[tail++] = other;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < tail; i++) {
+			visited[queue[i]] = false;
+		}
+		next.freeze(index, nextProps, nextCodes);
+	}
+
+	/**
+	 * A row under construction: dense codes plus the list of the entries
+	 * set, so that freezing and clearing cost only the size of the row.
+	 */
+	private static class Row {
+		private final byte[] codes;
+		private int[] touched;
+		private int size;
+
+		public Row(int numProps) {
+			this.codes = new byte[numProps];
+			this.touched = new int[16];
+		}
+
+		public int get(int prop) {
+			return codes[prop];
+		}
+
+		public void set(int prop, int code) {
+			if (codes[prop] == 0) {
+				if (size == touched.length)
+					touched = Arrays.copyOf(touched, size * 2);
+				touched[size++] = prop;
+			}
+			codes[prop] = (byte) code;
+		}
+
+		/** Records that prop has the given value when the source has value tf */
+		public void mark(int prop, int tf, boolean value) {
+			int code = codes[prop] & ~(falseBit(tf) | trueBit(tf));
+			set(prop, code | (value ? trueBit(tf) : falseBit(tf)));
+		}
+
+		/**
+		 * Copies the effects a row has when its proposition has value from
+		 * as the effects of this row's proposition having value to.
+		 */
+		public void copy(int[] props, byte[] rowCodes, int from, int to) {
+			for (int i = 0; i < props.length; i++) {
+				if ((rowCodes[i] & falseBit(from)) != 0) {
+					mark(props[i], to, false);
+				} else if ((rowCodes[i] & trueBit(from)) != 0) {
+					mark(props[i], to, true);
+				}
+			}
+		}
+
+		/** Stores the entries, sorted, as row index and clears this row */
+		public void freeze(int index, int[][] rowProps, byte[][] rowCodes) {
+			Arrays.sort(touched, 0, size);
+			int[] props = Arrays.copyOf(touched, size);
+			byte[] result = new byte[size];
+			for (int i = 0; i < size; i++) {
+				result[i] = codes[props[i]];
+				codes[props[i]] = 0;
+			}
+			size = 0;
+			rowProps[index] = props;
+			rowCodes[index] = result;
+		}
+	}
+
+	/** The rows and BFS buffers one thread reuses from row to row */
+	private static class Scratch {
+		final Row same;
+		final Row next;
+		final int[] queue;
+		final boolean[] visited;
+
+		Scratch(int numProps) {
+			this.same = new Row(numProps);
+			this.next = new Row(numProps);
+			this.queue = new int[numProps];
+			this.visited = new boolean[numProps];
+		}
+	}
+
+	private interface RowWork {
+		void compute(int from, int to);
+	}
+
+	/**
+	 * Splits a range of rows into chunks of CHUNK. Leaves whose turn comes
+	 * after the deadline are skipped.
+	 */
+	private static class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RowWork work;
+		private final int from;
+		private final int to;
+		private final long deadline;
+
+		public RowTask(RowWork work, int from, int to, long deadline) {
+			this.work = work;
+			this.from = from;
+			this.to = to;
+			this.deadline = deadline;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= CHUNK) {
+				if (System.currentTimeMillis() <= deadline)
+					work.compute(from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new RowTask(work, from, middle, deadline), new RowTask(work, middle, to, deadline));
+		}
+	}
+}
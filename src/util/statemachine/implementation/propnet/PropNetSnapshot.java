@@ -0,0 +1,295 @@
+package util.statemachine.implementation.propnet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.gdl.grammar.Gdl;
+import util.gdl.grammar.GdlConstant;
+import util.gdl.grammar.GdlFunction;
+import util.gdl.grammar.GdlPool;
+import util.gdl.grammar.GdlTerm;
+
+/**
+ * Compact binary form of an optimized BooleanPropNet, kept in gen/cache next
+ * to the compiled operators. It holds everything a machine needs to run on
+ * the interpreted operator: the proposition index layout, the flattened
+ * gates, the legal, input and goal maps, and the names of the init, base and
+ * input propositions. Internal propositions are unnamed.
+ *
+ * The file is memory-mapped and read with bulk int transfers straight into
+ * the arrays of a FlatPropNet, so loading allocates no per-gate objects and
+ * does not recurse through the Component graph the way PropNetCache does.
+ *
+ * All values are big-endian ints except the gate types, which take one byte
+ * each and are padded to a multiple of four:
+ *
+ *   MAGIC, VERSION, numProps, initIndex, basePropStart, inputPropStart,
+ *   internalPropStart, terminalIndex, numRoles
+ *   type[numProps]
+ *   inputOffset[numProps + 1], inputs[inputOffset[numProps]]
+ *   legalInputMap[numProps]
+ *   for every role: numLegals, legals[numLegals], numGoals, {goal prop, goal value}[numGoals]
+ *   numTermInts, terms[numTermInts]
+ *   numConstants, and for every constant: length, UTF-8 bytes[length]
+ *
+ * A name is CONSTANT followed by its constant number, FUNCTION followed by
+ * its name's constant number, its arity and its arguments, or NULL.
+ */
+public class PropNetSnapshot {
+	private static final int MAGIC = 0x45504e53;
+
+	/** Changes whenever the format or the optimizations do */
+	private static final int VERSION = 1;
+
+	private static final int NULL = 0;
+	private static final int CONSTANT = 1;
+	private static final int FUNCTION = 2;
+
+	final FlatPropNet net;
+	final int initIndex;
+	final int terminalIndex;
+	final int[][] legalPropMap;
+	final int[] legalInputMap;
+	final int[][][] goalPropMap;
+	/** Names of the propositions below internalPropStart */
+	final GdlTerm[] names;
+
+	public PropNetSnapshot(FlatPropNet net, int initIndex, int terminalIndex, int[][] legalPropMap, int[] legalInputMap, int[][][] goalPropMap,
+			GdlTerm[] names) {
+		this.net = net;
+		this.initIndex = initIndex;
+		this.terminalIndex = terminalIndex;
+		this.legalPropMap = legalPropMap;
+		this.legalInputMap = legalInputMap;
+		this.goalPropMap = goalPropMap;
+		this.names = names;
+	}
+
+	/**
+	 * The file the snapshot of description is stored in, named after a
+	 * digest of the description.
+	 */
+	public static File getFile(List<Gdl> description) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try {
+			digest.update(("v" + VERSION).getBytes("UTF-8"));
+			for (Gdl gdl : description) {
+				digest.update(gdl.toString().getBytes("UTF-8"));
+				digest.update((byte) '\n');
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder builder = new StringBuilder("pnet_");
+		for (byte b : digest.digest()) {
+			builder.append(Character.forDigit((b >>> 4) & 0xF, 16));
+			builder.append(Character.forDigit(b & 0xF, 16));
+		}
+		return OperatorCache.getFile(builder.append(".bin").toString());
+	}
+
+	/**
+	 * Stores the snapshot in file. The file appears complete or not at all.
+	 */
+	public void write(File file) throws IOException {
+		List<String> constants = new ArrayList<String>();
+		Map<String, Integer> constantNumbers = new HashMap<String, Integer>();
+		IntList terms = new IntList();
+		for (GdlTerm name : names) {
+			writeTerm(name, terms, constants, constantNumbers);
+		}
+
+		File temp = OperatorCache.getTempFile(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			int numProps = net.numProps;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numProps);
+			out.writeInt(initIndex);
+			out.writeInt(net.basePropStart);
+			out.writeInt(net.inputPropStart);
+			out.writeInt(net.internalPropStart);
+			out.writeInt(terminalIndex);
+			out.writeInt(legalPropMap.length);
+			out.write(net.type);
+			for (int i = numProps; i % 4 != 0; i++) {
+				out.writeByte(0);
+			}
+			writeInts(out, net.inputOffset, numProps + 1);
+			writeInts(out, net.inputs, net.inputOffset[numProps]);
+			writeInts(out, legalInputMap, numProps);
+			for (int role = 0; role < legalPropMap.length; role++) {
+				out.writeInt(legalPropMap[role].length);
+				writeInts(out, legalPropMap[role], legalPropMap[role].length);
+				out.writeInt(goalPropMap[role].length);
+				for (int[] goal : goalPropMap[role]) {
+					out.writeInt(goal[0]);
+					out.writeInt(goal[1]);
+				}
+			}
+			out.writeInt(terms.size);
+			writeInts(out, terms.values, terms.size);
+			out.writeInt(constants.size());
+			for (String constant : constants) {
+				byte[] bytes = constant.getBytes("UTF-8");
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+		OperatorCache.commit(temp, file);
+	}
+
+	/**
+	 * Maps file and reads the snapshot stored in it.
+	 */
+	public static PropNetSnapshot read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			IntBuffer ints = buffer.asIntBuffer();
+			if (ints.get() != MAGIC || ints.get() != VERSION)
+				throw new IOException("Not a prop net snapshot: " + file);
+			int numProps = ints.get();
+			int initIndex = ints.get();
+			int basePropStart = ints.get();
+			int inputPropStart = ints.get();
+			int internalPropStart = ints.get();
+			int terminalIndex = ints.get();
+			int numRoles = ints.get();
+
+			byte[] type = new byte[numProps];
+			buffer.position(4 * ints.position());
+			buffer.get(type);
+			ints.position(ints.position() + (numProps + 3) / 4);
+
+			int[] inputOffset = new int[numProps + 1];
+			ints.get(inputOffset);
+			int[] inputs = new int[inputOffset[numProps]];
+			ints.get(inputs);
+			int[] legalInputMap = new int[numProps];
+			ints.get(legalInputMap);
+			int[][] legalPropMap = new int[numRoles][];
+			int[][][] goalPropMap = new int[numRoles][][];
+			for (int role = 0; role < numRoles; role++) {
+				legalPropMap[role] = new int[ints.get()];
+				ints.get(legalPropMap[role]);
+				goalPropMap[role] = new int[ints.get()][2];
+				for (int[] goal : goalPropMap[role]) {
+					goal[0] = ints.get();
+					goal[1] = ints.get();
+				}
+			}
+			int[] terms = new int[ints.get()];
+			ints.get(terms);
+
+			GdlConstant[] constants = new GdlConstant[ints.get()];
+			buffer.position(4 * ints.position());
+			for (int i = 0; i < constants.length; i++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				constants[i] = GdlPool.getConstant(new String(bytes, "UTF-8"));
+			}
+
+			GdlTerm[] names = new GdlTerm[internalPropStart];
+			int[] position = new int[1];
+			for (int i = 0; i < internalPropStart; i++) {
+				names[i] = readTerm(terms, position, constants);
+			}
+
+			FlatPropNet net = new FlatPropNet(basePropStart, inputPropStart, internalPropStart, type, inputOffset, inputs);
+			return new PropNetSnapshot(net, initIndex, terminalIndex, legalPropMap, legalInputMap, goalPropMap, names);
+		} catch (RuntimeException e) {
+			// A truncated or corrupt file overruns one of the buffers
+			throw new IOException("Corrupt prop net snapshot: " + file, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values, int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	private static void writeTerm(GdlTerm term, IntList terms, List<String> constants, Map<String, Integer> constantNumbers) throws IOException {
+		if (term == null) {
+			terms.add(NULL);
+		} else if (term instanceof GdlConstant) {
+			terms.add(CONSTANT);
+			terms.add(constantNumber(((GdlConstant) term).getValue(), constants, constantNumbers));
+		} else if (term instanceof GdlFunction) {
+			GdlFunction function = (GdlFunction) term;
+			terms.add(FUNCTION);
+			terms.add(constantNumber(function.getName().getValue(), constants, constantNumbers));
+			terms.add(function.getBody().size());
+			for (GdlTerm argument : function.getBody()) {
+				writeTerm(argument, terms, constants, constantNumbers);
+			}
+		} else {
+			throw new IOException("Unexpected term " + term);
+		}
+	}
+
+	private static int constantNumber(String value, List<String> constants, Map<String, Integer> constantNumbers) {
+		Integer number = constantNumbers.get(value);
+		if (number == null) {
+			number = constants.size();
+			constants.add(value);
+			constantNumbers.put(value, number);
+		}
+		return number;
+	}
+
+	private static GdlTerm readTerm(int[] terms, int[] position, GdlConstant[] constants) {
+		switch (terms[position[0]++]) {
+		case CONSTANT:
+			return constants[terms[position[0]++]];
+		case FUNCTION:
+			GdlConstant name = constants[terms[position[0]++]];
+			GdlTerm[] body = new GdlTerm[terms[position[0]++]];
+			for (int i = 0; i < body.length; i++) {
+				body[i] = readTerm(terms, position, constants);
+			}
+			return GdlPool.getFunction(name, body);
+		default:
+			return null;
+		}
+	}
+
+	/** Growable int array for the term stream */
+	private static class IntList {
+		int[] values = new int[256];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				int[] grown = new int[2 * size];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+	}
+}
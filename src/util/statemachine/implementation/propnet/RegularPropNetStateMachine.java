@@ -5,10 +5,8 @@ package util.statemachine.implementation.propnet;
  */
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +19,7 @@ import util.gdl.grammar.GdlProposition;
 import util.gdl.grammar.GdlRelation;
 import util.gdl.grammar.GdlSentence;
 import util.gdl.grammar.GdlTerm;
+import util.propnet.architecture.BooleanPropNet;
 import util.propnet.architecture.Component;
 import util.propnet.architecture.RegularPropNet;
 import util.propnet.architecture.components.And;
@@ -658,52 +657,14 @@ public class RegularPropNetStateMachine extends StateMachine {
 	 *         set.
 	 */
 	public List<Proposition> getOrdering() {
-		LinkedList<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the components in the PropNet
-		HashSet<Component> components = new HashSet<Component>(pnet.getComponents());
-		// All of the propositions in the prop net
-		HashSet<Proposition> propositions = new HashSet<Proposition>(pnet.getPropositions());
-		Log.println('p', "Components: " + components);
-
-		// Remove all base propositions
-		Collection<Proposition> basePropositionsValues = basePropositions.values();
-		propositions.removeAll(basePropositionsValues);
-		components.removeAll(basePropositionsValues);
-		
-		// Remove all propositions with no inputs (covers init, input, and spurious)
-		Iterator<Proposition> iterator = propositions.iterator();
-		while (iterator.hasNext()) {
-			Proposition prop = iterator.next();
-			if (prop.getInputs().size() == 0) {
-				iterator.remove();
-				components.remove(prop);
-			}
-		}
-
-		// Use DFS to compute topological sort of propositions
-		while (!propositions.isEmpty()) {
-			Proposition currComponent = propositions.iterator().next();
-			topologicalSort(currComponent, order, propositions, components);
-		}
+		// Base propositions are set from the state; init and input
+		// propositions have no inputs and are left out anyway
+		Set<Proposition> sources = new HashSet<Proposition>(basePropositions.values());
+		List<Proposition> order = BooleanPropNet.depthFirstSort(pnet.getPropositions(), sources);
 		Log.println('p', "Order: " + order);
 		return order;
 	}
 
-	private void topologicalSort(Component currComponent, LinkedList<Proposition> order,
-			HashSet<Proposition> propositions, HashSet<Component> components) {
-		for (Component input : currComponent.getInputs()) {
-			if (components.contains(input)) { // not yet visited
-				topologicalSort(input, order, propositions, components);
-			}
-		}
-		if (currComponent instanceof Proposition) {
-			order.add((Proposition) currComponent);
-			propositions.remove(currComponent);
-		}
-		components.remove(currComponent);
-	}
-
 	/** Already implemented for you */
 	@Override
 	public Move getMoveFromSentence(GdlSentence sentence) {
@@ -1,134 +1,243 @@
 package util.statemachine.implementation.propnet.cache;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import util.cache.TtlCache;
 import util.gdl.grammar.GdlProposition;
+import util.statemachine.BooleanMachineState;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
-import util.statemachine.exceptions.GoalDefinitionException;
 import util.statemachine.exceptions.MoveDefinitionException;
-import util.statemachine.exceptions.TransitionDefinitionException;
 import util.statemachine.implementation.propnet.BooleanPropNetStateMachine;
 
+/**
+ * Machine that remembers the terminal flag, goals, legal moves and
+ * successors of the states it is asked about, in a StateCache of bounded
+ * size. The cache takes no locks and is shared with the machine's forks, so
+ * search threads see each other's results.
+ */
 public final class CachedBooleanPropNetStateMachine extends BooleanPropNetStateMachine
 {
+	/** Memory cap in bytes of the caches built from then on */
+	private static long cacheMemory = 64L << 20;
 
-	private final class Entry
-	{
-		public Map<Role, Integer> goals;
-		public Map<Role, List<Move>> moves;
-		public Map<List<Move>, MachineState> nexts;
-		public Boolean terminal;
-
-		public Entry()
-		{
-			goals = new HashMap<Role, Integer>();
-			moves = new HashMap<Role, List<Move>>();
-			nexts = new HashMap<List<Move>, MachineState>();
-			terminal = null;
-		}
-	}
+	/** Built on first use, once the roles and legal moves are known */
+	private volatile StateCache cache;
 
-	private final TtlCache<MachineState, Entry> ttlCache;
-	
 	public CachedBooleanPropNetStateMachine() {
 		super();
-		ttlCache = new TtlCache<MachineState, Entry>(1);
 	}
 
 	public CachedBooleanPropNetStateMachine(GdlProposition roleGDL)
 	{
 		super(roleGDL);
-		ttlCache = new TtlCache<MachineState, Entry>(1);
 	}
 
 	public CachedBooleanPropNetStateMachine(Role role) {
 		super(role);
-		ttlCache = new TtlCache<MachineState, Entry>(1);
 	}
-	
-	private Entry getEntry(MachineState state)
-	{
-		if (!ttlCache.containsKey(state))
-		{
-			ttlCache.put(state, new Entry());
-		}
 
-		return ttlCache.get(state);
+	private CachedBooleanPropNetStateMachine(CachedBooleanPropNetStateMachine copy) {
+		super(copy);
+		cache = copy.getCache();
 	}
 
+	/**
+	 * A machine for another thread, sharing the cache of this one.
+	 */
 	@Override
-	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	public CachedBooleanPropNetStateMachine fork() {
+		return new CachedBooleanPropNetStateMachine(this);
+	}
+
+	/**
+	 * Sets the approximate memory, in bytes, that each cache built from now
+	 * on may take.
+	 */
+	public static void setCacheMemory(long bytes) {
+		cacheMemory = bytes;
+	}
+
+	private StateCache getCache()
 	{
-		Entry entry = getEntry(state);
-		synchronized (entry)
+		StateCache current = cache;
+		if (current == null)
 		{
-			if (!entry.goals.containsKey(role))
+			synchronized (this)
 			{
-				entry.goals.put(role, super.getGoal(state, role));
+				if (cache == null)
+				{
+					cache = new StateCache(this, cacheMemory);
+				}
+				current = cache;
 			}
+		}
+		return current;
+	}
+
+	/**
+	 * The cache entry of state, or null for states not made by this machine.
+	 */
+	private StateCache.Entry getEntry(MachineState state)
+	{
+		if (!(state instanceof BooleanMachineState))
+		{
+			return null;
+		}
+		return getCache().get((BooleanMachineState) state);
+	}
+
+	private long[][] getLegals(StateCache.Entry entry)
+	{
+		long[][] legals = entry.legals;
+		if (legals == null)
+		{
+			legals = cache.newLegals();
+			getLegalBits(entry.state, legals);
+			cache.setLegals(entry, legals);
+		}
+		return legals;
+	}
 
-			return entry.goals.get(role);
+	@Override
+	public int getGoal(MachineState state, int role)
+	{
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
+		{
+			return super.getGoal(state, role);
+		}
+		int goal = entry.goals[role];
+		if (goal == StateCache.UNKNOWN)
+		{
+			goal = super.getGoal(state, role);
+			entry.goals[role] = goal;
 		}
+		return goal;
 	}
 
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
 	{
-		Entry entry = getEntry(state);
-		synchronized (entry)
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
 		{
-			if (!entry.moves.containsKey(role))
-			{
-				entry.moves.put(role, super.getLegalMoves(state, role));
-			}
+			return super.getLegalMoves(state, role);
+		}
+		// One propagation yields the moves of every role
+		return cache.getMoves(getLegals(entry), cache.getRoleIndex(role));
+	}
 
-			return entry.moves.get(role);
+	@Override
+	public List<List<Move>> getAllLegalMoves(MachineState state)
+	{
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
+		{
+			return super.getAllLegalMoves(state);
 		}
+		long[][] legals = getLegals(entry);
+		List<List<Move>> allMoves = new ArrayList<List<Move>>(legals.length);
+		for (int role = 0; role < legals.length; role++)
+		{
+			allMoves.add(cache.getMoves(legals, role));
+		}
+		return allMoves;
 	}
 
 	@Override
-	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	public int getLegalInputs(MachineState state, int role, int[] inputs)
 	{
-		Entry entry = getEntry(state);
-		synchronized (entry)
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
 		{
-			if (!entry.nexts.containsKey(moves))
-			{
-				entry.nexts.put(moves, super.getNextState(state, moves));
-			}
+			return super.getLegalInputs(state, role, inputs);
+		}
+		return cache.getInputs(getLegals(entry), role, inputs);
+	}
 
-			return entry.nexts.get(moves);
+	@Override
+	public void getAllLegalInputs(MachineState state, int[][] inputs, int[] counts)
+	{
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
+		{
+			super.getAllLegalInputs(state, inputs, counts);
+			return;
+		}
+		long[][] legals = getLegals(entry);
+		for (int role = 0; role < legals.length; role++)
+		{
+			counts[role] = cache.getInputs(legals, role, inputs[role]);
 		}
 	}
 
 	@Override
-	public boolean isTerminal(MachineState state)
+	public BooleanMachineState getNextState(MachineState state, int[] jointMove)
 	{
-		Entry entry = getEntry(state);
-		synchronized (entry)
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
 		{
-			if (entry.terminal == null)
+			return super.getNextState(state, jointMove);
+		}
+		// Successors are only kept once the legal moves are known, which
+		// number the joint moves
+		long[][] legals = entry.legals;
+		AtomicReferenceArray<BooleanMachineState> successors = entry.getSuccessors();
+		int joint = (legals == null || successors == null) ? -1 : cache.getJointIndex(legals, jointMove);
+		if (joint >= 0)
+		{
+			BooleanMachineState next = successors.get(joint);
+			if (next != null)
 			{
-				entry.terminal = super.isTerminal(state);
+				return next;
 			}
+		}
+
+		BooleanMachineState next = super.getNextState(state, jointMove);
+		if (joint >= 0)
+		{
+			// Share the state object of the next entry
+			next = cache.get(next).state;
+			successors.lazySet(joint, next);
+		}
+		return next;
+	}
 
-			return entry.terminal;
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		StateCache.Entry entry = getEntry(state);
+		if (entry == null)
+		{
+			return super.isTerminal(state);
+		}
+		int terminal = entry.terminal;
+		if (terminal == 0)
+		{
+			terminal = super.isTerminal(state) ? StateCache.TERMINAL : StateCache.NOT_TERMINAL;
+			entry.terminal = terminal;
 		}
+		return terminal == StateCache.TERMINAL;
 	}
-	
+
 	@Override
 	public void doPerMoveWork()
 	{
 		prune();
 	}
 
+	/**
+	 * Ages the cache, so that states not looked up since are replaced first.
+	 */
 	public void prune()
 	{
-		ttlCache.prune();
+		StateCache current = cache;
+		if (current != null)
+		{
+			current.nextGeneration();
+		}
 	}
 }
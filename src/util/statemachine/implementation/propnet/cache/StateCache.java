@@ -0,0 +1,330 @@
+package util.statemachine.implementation.propnet.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import util.statemachine.BooleanMachineState;
+import util.statemachine.Move;
+import util.statemachine.Role;
+import util.statemachine.implementation.propnet.BooleanPropNetStateMachine;
+
+/**
+ * Fixed-capacity transposition table behind CachedBooleanPropNetStateMachine.
+ * A state's entry lives in one of PROBES slots from the one picked by its
+ * 64-bit hash. When all of them are taken, the entry touched in the oldest
+ * generation gives way, so the table never grows. The number of slots is
+ * chosen so that the entries stay within the memory cap.
+ *
+ * Nothing is locked. Slots are replaced with compare-and-set. Terminal and
+ * goal values are single ints written once. The legal bitsets are filled in
+ * before they are published through a volatile field. A reader thus sees a
+ * complete value or none; in the latter case it computes the value itself,
+ * and threads racing to compute the same value write the same result.
+ *
+ * The successors of a state are kept as references to the next states, one
+ * per joint move, since two states may share a 64-bit hash. A successor
+ * can outlive its own entry, so every one is counted as a state of its own.
+ * They are only allocated while the table is under its memory cap, and are
+ * attached with compare-and-set to an entry that is in the table, so that
+ * their bytes are counted once and given back when the entry is replaced.
+ */
+final class StateCache {
+	/** Slots searched from a state's first slot */
+	private static final int PROBES = 4;
+
+	/** States with more joint moves than this keep no successors */
+	private static final int MAX_JOINT_MOVES = 1024;
+
+	/**
+	 * Rough sizes in bytes of an entry with its state, of a state alone, and
+	 * of an array header
+	 */
+	private static final int ENTRY_BYTES = 96;
+	private static final int STATE_BYTES = 48;
+	private static final int ARRAY_BYTES = 16;
+
+	/** Goal value not computed yet */
+	static final int UNKNOWN = Integer.MIN_VALUE;
+
+	static final int NOT_TERMINAL = 1;
+	static final int TERMINAL = 2;
+
+	/** Successors of an entry not yet in the table, and of one replaced */
+	private static final AtomicReferenceArray<BooleanMachineState> PENDING = new AtomicReferenceArray<BooleanMachineState>(0);
+	private static final AtomicReferenceArray<BooleanMachineState> EVICTED = new AtomicReferenceArray<BooleanMachineState>(0);
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<Entry, AtomicReferenceArray> SUCCESSORS = AtomicReferenceFieldUpdater.newUpdater(Entry.class,
+			AtomicReferenceArray.class, "successors");
+
+	static final class Entry {
+		final long hash;
+		final BooleanMachineState state;
+		/** 0 until known, then NOT_TERMINAL or TERMINAL */
+		int terminal;
+		/** Goal value of every role, or UNKNOWN */
+		final int[] goals;
+		/** Legal bitsets of every role, null until known */
+		volatile long[][] legals;
+		/**
+		 * Next states by joint move, null until known; attached before
+		 * legals. PENDING until the entry is in the table, null while it has
+		 * none, EVICTED once it is replaced.
+		 */
+		volatile AtomicReferenceArray<BooleanMachineState> successors = PENDING;
+		/** Generation of the last lookup */
+		int generation;
+
+		Entry(long hash, BooleanMachineState state, int numRoles, int generation) {
+			this.hash = hash;
+			this.state = state;
+			this.goals = new int[numRoles];
+			for (int role = 0; role < numRoles; role++) {
+				goals[role] = UNKNOWN;
+			}
+			this.generation = generation;
+		}
+
+		/** The successors of the entry, or null if it has none */
+		AtomicReferenceArray<BooleanMachineState> getSuccessors() {
+			AtomicReferenceArray<BooleanMachineState> current = successors;
+			return (current == PENDING || current == EVICTED) ? null : current;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final long memoryCap;
+	private final AtomicLong bytesUsed;
+	private final int entryBytes;
+	private final int successorSlotBytes;
+	private volatile int generation;
+
+	private final int numRoles;
+	private final Map<Role, Integer> roleIndices;
+	/** The move and input proposition of every legal index of every role */
+	private final Move[][] legalMoves;
+	private final int[][] legalInputs;
+	/** The legal index of every input proposition from firstInput on, or -1 */
+	private final int[] inputLegalIndices;
+	private final int firstInput;
+
+	StateCache(BooleanPropNetStateMachine machine, long memoryCap) {
+		List<Role> roles = machine.getRoles();
+		this.numRoles = roles.size();
+		this.roleIndices = new HashMap<Role, Integer>();
+		this.legalMoves = new Move[numRoles][];
+		this.legalInputs = new int[numRoles][];
+		int legalBytes = 0;
+		int lastInput = -1;
+		for (int role = 0; role < numRoles; role++) {
+			roleIndices.put(roles.get(role), role);
+			legalMoves[role] = new Move[machine.getNumLegals(role)];
+			legalInputs[role] = new int[legalMoves[role].length];
+			for (int i = 0; i < legalMoves[role].length; i++) {
+				legalMoves[role][i] = machine.getLegalMove(role, i);
+				legalInputs[role][i] = machine.getLegalInput(role, i);
+				lastInput = Math.max(lastInput, legalInputs[role][i]);
+			}
+			legalBytes += ARRAY_BYTES + 8 * BooleanMachineState.numWords(legalMoves[role].length);
+		}
+		this.firstInput = machine.getInputPropStart();
+		this.inputLegalIndices = new int[Math.max(0, lastInput + 1 - firstInput)];
+		Arrays.fill(inputLegalIndices, -1);
+		for (int role = 0; role < numRoles; role++) {
+			for (int i = 0; i < legalInputs[role].length; i++) {
+				if (legalInputs[role][i] >= firstInput)
+					inputLegalIndices[legalInputs[role][i] - firstInput] = i;
+			}
+		}
+		int stateWords = BooleanMachineState.numWords(machine.getInputPropStart() - machine.getBasePropStart());
+		// The slot, the entry and state objects, the packed state, goals and legals
+		this.entryBytes = 4 + ENTRY_BYTES + ARRAY_BYTES + 8 * stateWords + ARRAY_BYTES + 4 * numRoles + ARRAY_BYTES + 4 * numRoles + legalBytes;
+		// The reference and the state it keeps
+		this.successorSlotBytes = 8 + STATE_BYTES + ARRAY_BYTES + 8 * stateWords;
+
+		long entries = Math.max(PROBES, Math.min(memoryCap / entryBytes, 1 << 30));
+		int capacity = Integer.highestOneBit((int) entries);
+		this.slots = new AtomicReferenceArray<Entry>(capacity);
+		this.mask = capacity - 1;
+		this.memoryCap = memoryCap;
+		this.bytesUsed = new AtomicLong();
+		this.generation = 0;
+	}
+
+	int getRoleIndex(Role role) {
+		return roleIndices.get(role);
+	}
+
+	/**
+	 * The entry of state, which is added to the table if it has none.
+	 */
+	Entry get(BooleanMachineState state) {
+		long hash = state.getLongHash();
+		int first = firstSlot(hash);
+		int current = generation;
+		for (int p = 0; p < PROBES; p++) {
+			Entry entry = slots.get((first + p) & mask);
+			if (entry != null && entry.hash == hash && entry.state.equals(state)) {
+				entry.generation = current;
+				return entry;
+			}
+		}
+		Entry entry = new Entry(hash, state, numRoles, current);
+		insert(entry, first);
+		return entry;
+	}
+
+	private int firstSlot(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Puts entry in the first free slot of its window, or else in place of
+	 * the entry looked up least recently. If another thread changes that
+	 * slot first, entry is simply not kept.
+	 */
+	private void insert(Entry entry, int first) {
+		int slot = -1;
+		Entry victim = null;
+		for (int p = 0; p < PROBES; p++) {
+			int candidate = (first + p) & mask;
+			Entry current = slots.get(candidate);
+			if (current == null) {
+				slot = candidate;
+				victim = null;
+				break;
+			}
+			if (victim == null || current.generation < victim.generation) {
+				slot = candidate;
+				victim = current;
+			}
+		}
+		if (slots.compareAndSet(slot, victim, entry)) {
+			bytesUsed.addAndGet(entryBytes);
+			// Successors may be attached from now on, unless entry was
+			// already replaced in turn
+			SUCCESSORS.compareAndSet(entry, PENDING, null);
+			if (victim != null) {
+				// No successors are attached to victim after this
+				AtomicReferenceArray<?> attached = SUCCESSORS.getAndSet(victim, EVICTED);
+				bytesUsed.addAndGet(-entryBytes - successorBytes(attached));
+			}
+		}
+	}
+
+	private long successorBytes(AtomicReferenceArray<?> successors) {
+		if (successors == null || successors == PENDING || successors == EVICTED)
+			return 0;
+		return 2 * ARRAY_BYTES + (long) successorSlotBytes * successors.length();
+	}
+
+	/**
+	 * Starts a new generation. Entries not looked up since are the first to
+	 * be replaced.
+	 */
+	synchronized void nextGeneration() {
+		generation++;
+	}
+
+	long[][] newLegals() {
+		long[][] legals = new long[numRoles][];
+		for (int role = 0; role < numRoles; role++) {
+			legals[role] = new long[BooleanMachineState.numWords(legalMoves[role].length)];
+		}
+		return legals;
+	}
+
+	/**
+	 * Publishes the legal bitsets of entry, with room for its successors if
+	 * it has few enough joint moves, is in the table, has none yet and the
+	 * table is under its memory cap.
+	 */
+	void setLegals(Entry entry, long[][] legals) {
+		long jointMoves = 1;
+		for (int role = 0; role < numRoles && jointMoves <= MAX_JOINT_MOVES; role++) {
+			jointMoves *= count(legals[role]);
+		}
+		if (jointMoves > 0 && jointMoves <= MAX_JOINT_MOVES && entry.successors == null) {
+			AtomicReferenceArray<BooleanMachineState> successors = new AtomicReferenceArray<BooleanMachineState>((int) jointMoves);
+			long bytes = successorBytes(successors);
+			if (bytesUsed.get() + bytes <= memoryCap && SUCCESSORS.compareAndSet(entry, null, successors)) {
+				bytesUsed.addAndGet(bytes);
+			}
+		}
+		entry.legals = legals;
+	}
+
+	/**
+	 * The legal moves of role in the order of its legal propositions.
+	 */
+	List<Move> getMoves(long[][] legals, int role) {
+		long[] bits = legals[role];
+		List<Move> moves = new ArrayList<Move>(count(bits));
+		for (int w = 0; w < bits.length; w++) {
+			long word = bits[w];
+			while (word != 0) {
+				moves.add(legalMoves[role][(w << 6) + Long.numberOfTrailingZeros(word)]);
+				word &= word - 1;
+			}
+		}
+		return moves;
+	}
+
+	/**
+	 * Writes the input propositions of the legal moves of role to the front
+	 * of inputs and returns their number.
+	 */
+	int getInputs(long[][] legals, int role, int[] inputs) {
+		long[] bits = legals[role];
+		int count = 0;
+		for (int w = 0; w < bits.length; w++) {
+			long word = bits[w];
+			while (word != 0) {
+				inputs[count++] = legalInputs[role][(w << 6) + Long.numberOfTrailingZeros(word)];
+				word &= word - 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The index of jointMove, given as input propositions, among the joint
+	 * moves allowed by legals, taken in mixed radix with the first role most
+	 * significant, or -1 if one of the moves is not legal.
+	 */
+	int getJointIndex(long[][] legals, int[] jointMove) {
+		int index = 0;
+		for (int role = 0; role < numRoles; role++) {
+			int input = jointMove[role] - firstInput;
+			if (input < 0 || input >= inputLegalIndices.length || inputLegalIndices[input] < 0)
+				return -1;
+			int legalIndex = inputLegalIndices[input];
+			long[] bits = legals[role];
+			int word = legalIndex >>> 6;
+			long bit = 1L << (legalIndex & 63);
+			if ((bits[word] & bit) == 0)
+				return -1;
+			int rank = Long.bitCount(bits[word] & (bit - 1));
+			for (int w = 0; w < word; w++) {
+				rank += Long.bitCount(bits[w]);
+			}
+			index = index * count(bits) + rank;
+		}
+		return index;
+	}
+
+	private static int count(long[] bits) {
+		int count = 0;
+		for (long word : bits) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+}